@@ -0,0 +1,548 @@
+package nochum.bw5.utilities;
+import COM.TIBCO.hawk.console.hawkeye.*;
+import COM.TIBCO.hawk.talon.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import static nochum.bw5.utilities.BWProcessUtil.getChildElement;
+import static nochum.bw5.utilities.BWProcessUtil.getChildElements;
+import static nochum.bw5.utilities.BWProcessUtil.getChildText;
+import static nochum.bw5.utilities.BWProcessUtil.getGroupType;
+import static nochum.bw5.utilities.BWProcessUtil.getRelativeName;
+
+/**
+ * Reports the critical section groups, Lock shared resources and shared
+ * variables of a BusinessWorks project, which serialize the jobs that use
+ * them, and the processes that contend on each.
+ * <p>
+ * A critical section group with a Lock shared resource (.lock) serializes
+ * every job that enters a critical section using that lock, whatever its
+ * process.  Without one it serializes only the jobs of its own process
+ * definition.  Get and Set Shared Variable activities lock their Shared
+ * Variable (.sharedvariable) for every job of the engine; a Job Shared
+ * Variable (.jobsharedvariable) belongs to a single job and is contended
+ * only by the parallel branches of that job.
+ * <p>
+ * The work inside a critical section is the number of activities within the
+ * group, including nested groups and, transitively, the processes called
+ * from it; spawned processes run as jobs of their own and are not counted.
+ * Its call depth is the longest chain of Call Process activities that starts
+ * within the group.  A lock or variable used by a called process is
+ * contended by the jobs of every process that calls it, directly or
+ * indirectly, so those processes are listed as contenders too.
+ * <p>
+ * When a Hawk domain and engine are given, as for "Optimize deadcode", the
+ * execution count of each activity is read from the engine's microagent.
+ * The executions of a critical section are those of its most executed
+ * activity.  Each line is weighted by its executions, and a critical section
+ * by its executions multiplied by its activities; without Hawk each
+ * execution count is taken as 1.
+ * <p>
+ * The output is a file of comma-separated values with one line per critical
+ * section or shared variable activity: the kind of resource (lock, process
+ * lock, sharedVariable or jobSharedVariable), the resource, the process, the
+ * group or activity path, the access (critical section, get or set), the
+ * activities and call depth within a critical section, the executions, the
+ * weight, the critical section guarding a variable access, the number of
+ * contending processes and their names.  The lines are grouped by resource,
+ * the resource with the greatest total weight first.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class BWContention {
+
+	private static final String GET_VARIABLE = "com.tibco.pe.core.GetSharedVariableActivity";
+	private static final String SET_VARIABLE = "com.tibco.pe.core.SetSharedVariableActivity";
+	private static final String CALL_PROCESS = "com.tibco.pe.core.CallProcessActivity";
+
+	/**
+	 * The properties required to traverse the project filesystem and,
+	 * optionally, to invoke Hawk
+	 */
+	private Properties _props = null;
+
+	/**
+	 * process -> its activity count and the processes it calls
+	 */
+	private HashMap<String, ProcessInfo> processes = new HashMap<String, ProcessInfo>();
+
+	/**
+	 * All of the critical sections and variable accesses within the project
+	 */
+	private ArrayList<Access> accesses = new ArrayList<Access>();
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws ParserConfigurationException   If errors are incurred parsing the BW process.
+	 * @throws IOException                    If errors are incurred parsing the BW process.
+	 * @throws SAXException                   If errors are incurred parsing the BW process.
+	 * @throws MicroAgentException            If errors are incurred invoking Hawk.
+	 * @throws ConsoleInitializationException If errors are incurred connecting to Hawk.
+	 */
+	public BWContention(Properties props) throws ParserConfigurationException, SAXException, IOException, UsageException,
+			ConsoleInitializationException, MicroAgentException {
+		final String usageString = "\nUsage: Optimize contention [options]\n\n" +
+				"   where options are:\n\n" +
+				"-output    <output location>    - Full path and file name for output report.\n" +
+				"-project   <project location>   - Full path to project on the filesystem.\n" +
+				"-domain    <hawk domain>        - Optional Hawk domain name, to weight by execution counts.\n" +
+				"-engine    <engine name>        - BW engine name; required with -domain.\n" +
+				"-service   <hawk service>       - Hawk RV service parameter.\n" +
+				"-network   <hawk network>       - Hawk RV network parameter.\n" +
+				"-daemon    <hawk daemon>        - Hawk RV daemon parameter.\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("projectRoot")) {
+			throw(new UsageException("Required input parameter '-project' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		if (_props.containsKey("hawkDomain") && !_props.containsKey("engineName")) {
+			throw(new UsageException("Input parameter '-engine' is required with '-domain'.", usageString));
+		}
+
+		traverse(new File(_props.getProperty("projectRoot")));
+
+		for (Access access : accesses) {
+			if (access.callees != null) {
+				for (String callee : access.callees) {
+					access.activities += getWork(callee, new HashSet<String>());
+					access.callDepth = Math.max(access.callDepth, 1 + getCallDepth(callee, new HashSet<String>()));
+				}
+			}
+		}
+
+		if (_props.containsKey("hawkDomain"))
+			readExecutionCounts();
+
+		writeResults();
+	}
+
+	/**
+	 * Works on a single file system entry and
+	 * calls itself recursively if it turns out
+	 * to be a directory.
+	 * @param  file                           A file or a directory to process
+	 * @throws ParserConfigurationException   If errors are incurred parsing the BW process.
+	 * @throws IOException                    If errors are incurred parsing the BW process.
+	 * @throws SAXException                   If errors are incurred parsing the BW process.
+	 */
+	private void traverse( File file ) throws ParserConfigurationException, SAXException, IOException {
+       // Check if it is a directory
+       if( file.isDirectory() ) {
+          // Get a list of all the entries in the directory
+          String entries[] = file.list() ;
+
+          // Ensure that the list is not null
+          if( entries != null ) {
+             // Loop over all the entries
+             for( String entry : entries ) {
+                // Recursive call to traverse
+                traverse( new File(file,entry) ) ;
+             }
+          }
+       } else {
+    	   if (file.getName().endsWith(".process")) {
+    		   processBWProcess(file);
+    	   }
+       }
+	}
+
+	/**
+	 * @param bwProcess
+	 * @throws ParserConfigurationException   If errors are incurred parsing the BW process.
+	 * @throws IOException                    If errors are incurred parsing the BW process.
+	 * @throws SAXException                   If errors are incurred parsing the BW process.
+	 */
+	private void processBWProcess(File bwProcess) throws ParserConfigurationException, SAXException, IOException {
+		DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+		DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+		Document doc = dBuilder.parse(bwProcess);
+
+		doc.getDocumentElement().normalize();
+
+		String relativeFile = getRelativeName(_props.getProperty("projectRoot"), bwProcess);
+
+		ProcessInfo info = new ProcessInfo();
+		info.activities = countActivities(doc.getDocumentElement(), info.callees);
+		processes.put(relativeFile, info);
+
+		processContainer(relativeFile, doc.getDocumentElement(), "", null);
+	}
+
+	/**
+	 * Finds the critical sections and shared variable activities directly
+	 * beneath the parent element and calls itself recursively in order to
+	 * handle nested groups.
+	 * @param processName  the project-relative name of the BW process.
+	 * @param parent       the process definition or an enclosing group.
+	 * @param groupPath    the slash-separated names of the enclosing groups.
+	 * @param guard        the innermost enclosing critical section, or null.
+	 */
+	private void processContainer(String processName, Element parent, String groupPath, Access guard) {
+		for (Element activity : getChildElements(parent, "pd:activity")) {
+			String type = getChildText(activity, "pd:type");
+			if (!GET_VARIABLE.equals(type) && !SET_VARIABLE.equals(type))
+				continue;
+
+			Element config = getChildElement(activity, "config");
+			Access access = new Access();
+			access.processName = processName;
+			access.path = (groupPath.length() == 0 ? "" : groupPath + "/") + activity.getAttribute("name");
+			access.access = GET_VARIABLE.equals(type) ? "get" : "set";
+			access.guard = guard;
+			access.resource = findReference(config, ".jobsharedvariable");
+			if (access.resource != null) {
+				access.kind = "jobSharedVariable";
+			} else {
+				access.resource = findReference(config, ".sharedvariable");
+				access.kind = "sharedVariable";
+			}
+			if (access.resource == null)
+				access.resource = "(unknown)";
+			accesses.add(access);
+		}
+
+		for (Element group : getChildElements(parent, "pd:group")) {
+			String nestedPath = (groupPath.length() == 0 ? "" : groupPath + "/") + group.getAttribute("name");
+			Access section = guard;
+
+			if (isCriticalSection(group)) {
+				section = new Access();
+				section.processName = processName;
+				section.path = nestedPath;
+				section.access = "critical section";
+				section.guard = guard;
+				section.resource = findReference(getChildElement(group, "config"), ".lock");
+				if (section.resource != null) {
+					section.kind = "lock";
+				} else {
+					// without a lock, only the jobs of this process are serialized
+					section.kind = "process lock";
+					section.resource = processName + "#" + nestedPath;
+				}
+				section.callees = new ArrayList<String>();
+				section.activities = countActivities(group, section.callees);
+				for (Element activity : getChildElements(group, "pd:activity"))
+					section.members.add(nestedPath + "/" + activity.getAttribute("name"));
+				accesses.add(section);
+			}
+
+			processContainer(processName, group, nestedPath, section);
+		}
+	}
+
+	/**
+	 * Determines whether a group is a critical section.
+	 */
+	private static boolean isCriticalSection(Element group) {
+		String groupType = getGroupType(group);
+		if (groupType != null)
+			return groupType.toLowerCase().contains("critical");
+
+		String type = getChildText(group, "pd:type");
+		return (type != null && type.endsWith("CriticalSectionGroup"));
+	}
+
+	/**
+	 * Counts the activities within a container, including nested groups, and
+	 * collects the processes it calls without spawning them.
+	 */
+	private static int countActivities(Element parent, ArrayList<String> callees) {
+		int count = 0;
+		for (Element activity : getChildElements(parent, "pd:activity")) {
+			count++;
+			if (CALL_PROCESS.equals(getChildText(activity, "pd:type"))) {
+				Element config = getChildElement(activity, "config");
+				String callee = getChildText(config, "processName");
+				if (callee != null && !"true".equalsIgnoreCase(getChildText(config, "spawn")))
+					callees.add(callee.startsWith("/") ? callee.substring(1) : callee);
+			}
+		}
+
+		for (Element group : getChildElements(parent, "pd:group"))
+			count += countActivities(group, callees);
+
+		return count;
+	}
+
+	/**
+	 * Returns the first path within the configuration that refers to a
+	 * resource with the given extension, without the leading slash.
+	 */
+	private static String findReference(Element config, String extension) {
+		if (config == null)
+			return null;
+
+		NodeList elements = config.getElementsByTagName("*");
+		for (int i = 0; i < elements.getLength(); i++) {
+			String text = elements.item(i).getTextContent().trim();
+			if (text.endsWith(extension) && text.indexOf('\n') < 0)
+				return text.startsWith("/") ? text.substring(1) : text;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the activities of a process and, transitively, of the processes
+	 * it calls.  A recursive call is counted once.
+	 */
+	private int getWork(String processName, HashSet<String> visiting) {
+		ProcessInfo info = processes.get(processName);
+		if (info == null || !visiting.add(processName))
+			return 0;
+
+		int work = info.activities;
+		for (String callee : info.callees)
+			work += getWork(callee, visiting);
+
+		visiting.remove(processName);
+		return work;
+	}
+
+	/**
+	 * Returns the longest chain of calls that starts in a process.
+	 */
+	private int getCallDepth(String processName, HashSet<String> visiting) {
+		ProcessInfo info = processes.get(processName);
+		if (info == null || !visiting.add(processName))
+			return 0;
+
+		int depth = 0;
+		for (String callee : info.callees)
+			depth = Math.max(depth, 1 + getCallDepth(callee, visiting));
+
+		visiting.remove(processName);
+		return depth;
+	}
+
+	/**
+	 * Reads the execution count of every activity of the processes that
+	 * hold a critical section or a shared variable activity.
+	 * @throws MicroAgentException            If errors are incurred invoking Hawk.
+	 * @throws ConsoleInitializationException If errors are incurred connecting to Hawk.
+	 */
+	private void readExecutionCounts() throws MicroAgentException, ConsoleInitializationException {
+		String hawkDomain = _props.getProperty("hawkDomain");
+
+		TIBHawkConsole console = new TIBHawkConsole(hawkDomain,
+				_props.getProperty("rvService"), _props.getProperty("rvNetwork"), _props.getProperty("rvDaemon"));
+
+		// retrieve and initialize the AgentManager
+		AgentManager manager = console.getAgentManager();
+		manager.initialize();
+
+		// Find the microagent for the BW engine
+		final String microAgentBase = "COM.TIBCO.ADAPTER.bwengine";
+		String microagentName = microAgentBase + "." + hawkDomain + "." + _props.getProperty("engineName");
+		MicroAgentID microAgentIds[] = manager.getMicroAgentIDs(microagentName);
+
+		if (microAgentIds.length > 0) {
+			HashMap<String, HashMap<String, Long>> counts = new HashMap<String, HashMap<String, Long>>();
+			for (Access access : accesses) {
+				HashMap<String, Long> activityCounts = counts.get(access.processName);
+				if (activityCounts == null) {
+					activityCounts = getExecutionCounts(manager, microAgentIds[0], access.processName);
+					counts.put(access.processName, activityCounts);
+				}
+
+				// a critical section executes as often as its most executed activity
+				ArrayList<String> activities = access.members;
+				if (access.callees == null) {
+					activities = new ArrayList<String>();
+					activities.add(access.path);
+				}
+
+				access.executions = 0;
+				for (String activity : activities) {
+					Long count = activityCounts.get(activity);
+					if (count != null)
+						access.executions = Math.max(access.executions, count.longValue());
+				}
+			}
+		} else {
+			System.err.println("No microagents found to match the input specifications.");
+		}
+
+		// Close Hawk down
+		manager.shutdown();
+	}
+
+	/**
+	 * Returns the execution count of each activity of a process, by its
+	 * group path and name.
+	 * @throws MicroAgentException
+	 */
+	private HashMap<String, Long> getExecutionCounts(AgentManager manager, MicroAgentID bwMicroAgent,
+			String bwProcess) throws MicroAgentException {
+		HashMap<String, Long> counts = new HashMap<String, Long>();
+
+		// Construct the argument to GetActivities
+		DataElement[] processNames = { new DataElement("ProcessDefinition", bwProcess) };
+
+		MethodInvocation mactivities = new MethodInvocation("GetActivities", processNames);
+		MicroAgentData activitiesInfo = manager.invoke(bwMicroAgent, mactivities);
+		TabularData tabData = (TabularData) activitiesInfo.getData();
+		Object[][] table = tabData.getAllData();
+
+		if (table != null) {
+			for (int row = 0; row < table.length; row++) {
+				// ProcDefName [0], ActivityName [1], ActivityClass [2], ExecutionCount [3]
+				// Hawk prefixes the names of activities within groups with the group names
+				Long executionCount = (Long) table[row][3];
+				if (null != executionCount)
+					counts.put((String) table[row][1], executionCount);
+			}
+		}
+
+		return counts;
+	}
+
+	/**
+	 * Writes the accesses to the output report, grouped by resource, the
+	 * resource with the greatest total weight first.
+	 * @throws IOException
+	 */
+	private void writeResults() throws IOException {
+		// resource -> accessing processes and total weight
+		final HashMap<String, Long> resourceWeights = new HashMap<String, Long>();
+		HashMap<String, TreeSet<String>> resourceProcesses = new HashMap<String, TreeSet<String>>();
+		for (Access access : accesses) {
+			Long weight = resourceWeights.get(access.resource);
+			resourceWeights.put(access.resource, Long.valueOf((weight == null ? 0 : weight.longValue()) + access.getWeight()));
+
+			TreeSet<String> accessors = resourceProcesses.get(access.resource);
+			if (accessors == null) {
+				accessors = new TreeSet<String>();
+				resourceProcesses.put(access.resource, accessors);
+			}
+			accessors.add(access.processName);
+		}
+
+		// the jobs of every process that calls an accessor contend as well
+		HashMap<String, ArrayList<String>> callers = new HashMap<String, ArrayList<String>>();
+		for (String caller : processes.keySet()) {
+			for (String callee : processes.get(caller).callees) {
+				ArrayList<String> calleeCallers = callers.get(callee);
+				if (calleeCallers == null) {
+					calleeCallers = new ArrayList<String>();
+					callers.put(callee, calleeCallers);
+				}
+				calleeCallers.add(caller);
+			}
+		}
+
+		HashMap<String, String> contenders = new HashMap<String, String>();
+		HashMap<String, Integer> contenderCounts = new HashMap<String, Integer>();
+		for (String resource : resourceProcesses.keySet()) {
+			TreeSet<String> contending = new TreeSet<String>(resourceProcesses.get(resource));
+			LinkedList<String> pending = new LinkedList<String>(contending);
+			while (!pending.isEmpty()) {
+				ArrayList<String> processCallers = callers.get(pending.removeFirst());
+				if (processCallers == null)
+					continue;
+				for (String caller : processCallers) {
+					if (contending.add(caller))
+						pending.add(caller);
+				}
+			}
+
+			StringBuilder names = new StringBuilder();
+			for (String name : contending) {
+				if (names.length() > 0)
+					names.append(';');
+				names.append(name);
+			}
+			contenders.put(resource, names.toString());
+			contenderCounts.put(resource, Integer.valueOf(contending.size()));
+		}
+
+		Collections.sort(accesses, new Comparator<Access>() {
+			public int compare(Access a, Access b) {
+				if (!a.resource.equals(b.resource)) {
+					long diff = resourceWeights.get(b.resource).longValue() - resourceWeights.get(a.resource).longValue();
+					return (diff > 0) ? 1 : ((diff < 0) ? -1 : a.resource.compareTo(b.resource));
+				}
+				long diff = b.getWeight() - a.getWeight();
+				return (diff > 0) ? 1 : ((diff < 0) ? -1 : (a.processName + a.path).compareTo(b.processName + b.path));
+			}
+		});
+
+		PrintWriter out = new PrintWriter(_props.getProperty("outLoc"));
+
+		for (Access access : accesses) {
+			boolean section = (access.callees != null);
+			out.println(access.kind + "," + access.resource + "," + access.processName + "," + access.path + "," +
+					access.access + "," + (section ? String.valueOf(access.activities) : "") + "," +
+					(section ? String.valueOf(access.callDepth) : "") + "," +
+					(access.executions < 0 ? "" : String.valueOf(access.executions)) + "," + access.getWeight() + "," +
+					(access.guard == null ? "" : access.guard.resource) + "," +
+					contenderCounts.get(access.resource) + "," + contenders.get(access.resource));
+		}
+
+		out.flush();
+		out.close();
+	}
+
+	/**
+	 * The activities of a single process and the processes it calls.
+	 */
+	class ProcessInfo {
+		private int activities = 0;
+		private ArrayList<String> callees = new ArrayList<String>();
+	}
+
+	/**
+	 * A single critical section or shared variable activity.
+	 */
+	class Access {
+		private String kind = null;
+		private String resource = null;
+		private String processName = null;
+		private String path = null;
+		private String access = null;
+		private Access guard = null;
+
+		// critical sections only: the processes called within, the activities directly within
+		private ArrayList<String> callees = null;
+		private ArrayList<String> members = new ArrayList<String>();
+		private int activities = 0;
+		private int callDepth = 0;
+
+		// -1 when Hawk was not consulted
+		private long executions = -1;
+
+		public long getWeight() {
+			long count = (executions < 0) ? 1 : executions;
+			return (callees != null) ? count * activities : count;
+		}
+	}
+}
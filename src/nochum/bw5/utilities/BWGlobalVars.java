@@ -0,0 +1,136 @@
+package nochum.bw5.utilities;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import static nochum.bw5.utilities.BWProcessUtil.getChildText;
+
+/**
+ * Loads the default values of the global variables of a BusinessWorks
+ * project and resolves references to them.
+ * <p>
+ * Designer stores global variables in defaultVars.substvar files beneath the
+ * defaultVars directory of the project.  Each sub-directory corresponds to a
+ * global variable group, so the variable "Timeout" in
+ * defaultVars/JDBC/defaultVars.substvar is referred to as %%JDBC/Timeout%%
+ * within activity configurations and as
+ * $_globalVariables/ns:GlobalVariables/JDBC/Timeout within mappings.
+ * <p>
+ * Only the default values are known at design time.  Values overridden at
+ * deployment time in the engine TRA or the Administrator are not reflected.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class BWGlobalVars {
+
+	private static final Pattern VAR_REFERENCE = Pattern.compile("%%([^%]+)%%");
+	private static final Pattern XPATH_REFERENCE = Pattern.compile("\\$_globalVariables/[^/]*GlobalVariables/([\\w/.-]+)");
+
+	/**
+	 * global variable path -> default value
+	 */
+	private HashMap<String, String> variables = new HashMap<String, String>();
+
+	/**
+	 * Loads all global variables beneath the defaultVars directory of the
+	 * project.  A project without global variables is not an error.
+	 * @param projectRoot                     the project root directory
+	 * @throws ParserConfigurationException   If errors are incurred parsing a substvar file.
+	 * @throws IOException                    If errors are incurred parsing a substvar file.
+	 * @throws SAXException                   If errors are incurred parsing a substvar file.
+	 */
+	BWGlobalVars(String projectRoot) throws ParserConfigurationException, SAXException, IOException {
+		File defaultVars = new File(projectRoot, "defaultVars");
+		if (defaultVars.isDirectory()) {
+			load(defaultVars, "");
+		}
+	}
+
+	private void load(File directory, String prefix) throws ParserConfigurationException, SAXException, IOException {
+		String entries[] = directory.list();
+		if (entries == null)
+			return;
+
+		for (String entry : entries) {
+			File file = new File(directory, entry);
+			if (file.isDirectory()) {
+				load(file, prefix + entry + "/");
+			} else if (entry.endsWith(".substvar")) {
+				loadSubstvar(file, prefix);
+			}
+		}
+	}
+
+	private void loadSubstvar(File substvar, String prefix) throws ParserConfigurationException, SAXException, IOException {
+		DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+		DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+		Document doc = dBuilder.parse(substvar);
+
+		NodeList globalVariables = doc.getElementsByTagName("globalVariable");
+		for (int i = 0; i < globalVariables.getLength(); i++) {
+			Element globalVariable = (Element) globalVariables.item(i);
+			String name = getChildText(globalVariable, "name");
+			String value = getChildText(globalVariable, "value");
+			if (name != null) {
+				variables.put(prefix + name, value == null ? "" : value);
+			}
+		}
+	}
+
+	/**
+	 * Returns the default value of a global variable, or null if the variable
+	 * is not defined.
+	 * @param path  the variable path, e.g. "JDBC/Timeout".
+	 */
+	String getValue(String path) {
+		return variables.get(path);
+	}
+
+	/**
+	 * Determines whether a value refers to a global variable, either as
+	 * %%name%% or through $_globalVariables in an XPath expression.
+	 */
+	static boolean isReference(String value) {
+		return (value != null &&
+				(VAR_REFERENCE.matcher(value).find() || XPATH_REFERENCE.matcher(value).find()));
+	}
+
+	/**
+	 * Replaces every %%name%% reference in the value with the variable's
+	 * default value.  An XPath expression that consists of a single
+	 * $_globalVariables reference is replaced by the variable's value.
+	 * References to undefined variables are left unchanged.
+	 */
+	String resolve(String value) {
+		if (value == null)
+			return null;
+
+		Matcher xpath = XPATH_REFERENCE.matcher(value.trim());
+		if (xpath.matches()) {
+			String resolved = variables.get(xpath.group(1));
+			return resolved == null ? value : resolved;
+		}
+
+		Matcher matcher = VAR_REFERENCE.matcher(value);
+		StringBuffer result = new StringBuffer();
+		while (matcher.find()) {
+			String resolved = variables.get(matcher.group(1));
+			matcher.appendReplacement(result, Matcher.quoteReplacement(resolved == null ? matcher.group() : resolved));
+		}
+		matcher.appendTail(result);
+
+		return result.toString();
+	}
+}
@@ -2,7 +2,9 @@ package nochum.bw5.utilities;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Properties;
+import java.util.regex.Pattern;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -20,6 +22,12 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import static nochum.bw5.utilities.BWProcessUtil.compilePattern;
+import static nochum.bw5.utilities.BWProcessUtil.getChildElement;
+import static nochum.bw5.utilities.BWProcessUtil.getChildElements;
+import static nochum.bw5.utilities.BWProcessUtil.getChildText;
+import static nochum.bw5.utilities.BWProcessUtil.getRelativeName;
+
 /**
  * This class intruments a BACKUP COPY of an existing BW application with
  * tooling that generates a heap dump after the Start activity and before the
@@ -33,6 +41,14 @@ import org.xml.sax.SAXException;
  * such that it becomes easier to see which processes cause more memory to be
  * consumed, and which classes are generated within the BW process that consume
  * the memory.
+ * <p>
+ * When -activities is given, each matching activity, including those inside
+ * groups, is also wrapped with a ProfileEnter activity before it and a
+ * ProfileExit activity after it.  The transitions into and out of the
+ * activity within its own group are rewired through the new activities,
+ * except error transitions, which must still leave the activity itself.
+ * Catch activities, which no transition may enter, are not wrapped.  Entry
+ * and exit probes are only supported with -mode probe or jfr.
  * 
  * @author Nochum Klein
  * @version %I%, %G%
@@ -58,6 +74,34 @@ class BWInstrument {
 	 */
 	private String jmapLoc    = null;
 	
+	/**
+	 * how heap histograms are generated: "jmap" forks the jmap executable,
+	 * "mbean" uses the DiagnosticCommand MBean within the engine's JVM
+	 */
+	private String histoMode         = "jmap";
+	
+	/**
+	 * what the injected activities record: "histo" takes a heap histogram,
+	 * "probe" records elapsed time, CPU time and allocated bytes, "jfr" emits
+	 * a Java Flight Recorder event
+	 */
+	private String instrumentMode    = "histo";
+	
+	/**
+	 * full path to the profiling policy properties file on the deployment host
+	 */
+	private String configLocation    = null;
+	
+	/**
+	 * the processes to instrument, or null for all of them
+	 */
+	private Pattern processPattern   = null;
+	
+	/**
+	 * the activities to wrap with entry and exit probes, or null for none
+	 */
+	private Pattern activityPattern  = null;
+	
 	/**
 	 * directory where hprof files will be placed
 	 */
@@ -80,33 +124,79 @@ class BWInstrument {
 		final String usageString = "\nUsage: Optimize Instrument [options]\n\n" +
 				"   where options are:\n\n" +
 				"-project   <project location>   - Full path to project on the filesystem.\n" +
-				"-output    <output location>    - Directory where heap dump files will be placed.\n" +
+				"-output    <output location>    - Directory where heap dump files will be placed.  Not required when -mode is jfr.\n" +
 				"-jar       <jar location>       - Full path to jar file containing heap dump logic.\n" +
 				"-jmap      <jmap location>      - Full path to the jmap executable on the host where the code will be deployed.\n" +
-				"-slash     <file Separator>     - Either a backslash or a forward slash depending on the DEPLOYMENT platform.\n"
+				"                                  Not required when -histo is mbean or -mode is probe or jfr.\n" +
+				"-slash     <file Separator>     - Either a backslash or a forward slash depending on the DEPLOYMENT platform.\n" +
+				"-histo     <jmap|mbean>         - Optional.  Generate histograms by forking jmap (the default) or in-process\n" +
+				"                                  through the DiagnosticCommand MBean (Java 8 and later).\n" +
+				"-mode      <histo|probe|jfr>    - Optional.  Take a heap histogram (the default), record the elapsed time,\n" +
+				"                                  CPU time and allocated bytes of each job in a probe file, or emit a Java\n" +
+				"                                  Flight Recorder event for each job.\n" +
+				"-config    <policy location>    - Optional.  Full path to a profiling policy properties file on the deployment\n" +
+				"                                  host, limiting which invocations are profiled.\n" +
+				"-processes <pattern>            - Optional.  Instrument only the processes whose path within the project (or\n" +
+				"                                  file name, if the pattern has no '/') matches.  A glob, or regex:<expression>.\n" +
+				"-activities <pattern>           - Optional.  Also wrap each activity whose name matches with entry and exit\n" +
+				"                                  probes.  A glob such as '*' for all activities, or regex:<expression>.\n" +
+				"                                  Only with -mode probe or jfr.\n"
 				;
 
 		// set the props class variable
 		_props = props;
 
-		if (!_props.containsKey("outLoc")) {
-			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
-		} else {
-			outputLocation = _props.getProperty("outLoc");
-		}
-
 		if (!_props.containsKey("jarFile")) {
 			throw(new UsageException("Required input parameter '-jar' has not been specified.", usageString));
 		} else {
 			jarLocation = _props.getProperty("jarFile");
 		}
 
+		if (_props.containsKey("histoMode")) {
+			histoMode = _props.getProperty("histoMode");
+			if (!histoMode.equals("jmap") && !histoMode.equals("mbean")) {
+				throw(new UsageException("Input parameter '-histo' must be either 'jmap' or 'mbean'.", usageString));
+			}
+		}
+
+		if (_props.containsKey("instrumentMode")) {
+			instrumentMode = _props.getProperty("instrumentMode");
+			if (!instrumentMode.equals("histo") && !instrumentMode.equals("probe") && !instrumentMode.equals("jfr")) {
+				throw(new UsageException("Input parameter '-mode' must be 'histo', 'probe' or 'jfr'.", usageString));
+			}
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			if (!instrumentMode.equals("jfr")) {
+				throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+			}
+		} else {
+			outputLocation = _props.getProperty("outLoc");
+		}
+
 		if (!_props.containsKey("jmapLoc")) {
-			throw(new UsageException("Required input parameter '-jmap' has not been specified.", usageString));
+			if (histoMode.equals("jmap") && instrumentMode.equals("histo")) {
+				throw(new UsageException("Required input parameter '-jmap' has not been specified.", usageString));
+			}
 		} else {
 			jmapLoc = _props.getProperty("jmapLoc");
 		}
 
+		if (_props.containsKey("profileConfig")) {
+			configLocation = _props.getProperty("profileConfig");
+		}
+
+		if (_props.containsKey("processPattern")) {
+			processPattern = compilePattern(_props.getProperty("processPattern"));
+		}
+
+		if (_props.containsKey("activityPattern")) {
+			if (instrumentMode.equals("histo")) {
+				throw(new UsageException("Input parameter '-activities' requires '-mode' probe or jfr.", usageString));
+			}
+			activityPattern = compilePattern(_props.getProperty("activityPattern"));
+		}
+
 		if (!_props.containsKey("slashStyle")) {
 			throw(new UsageException("Required input parameter '-slash' has not been specified.", usageString));
 		} else {
@@ -147,12 +237,24 @@ class BWInstrument {
              }
           }
        } else {
-    	   if (file.getName().endsWith(".process")) {
+    	   if (file.getName().endsWith(".process") && isSelected(file)) {
     		   processBWProcess(file);
     	   }
        }
 	}
 	
+	/**
+	 * Determines whether a process matches the -processes pattern.
+	 */
+	private boolean isSelected(File bwProcess) {
+		if (processPattern == null)
+			return true;
+
+		String name = _props.getProperty("processPattern").contains("/") ?
+				getRelativeName(_props.getProperty("projectRoot"), bwProcess) : bwProcess.getName();
+		return processPattern.matcher(name).matches();
+	}
+	
 	/**
 	 * recursively process each activity input
 	 * 
@@ -183,10 +285,10 @@ class BWInstrument {
 			String processName = fullName.substring(lastSlash + 1);
 	
 			// create the ProfileStart node
-			Node startNode = createNode(processName, "ProfileStart", getStartXY());
+			Node startNode = createNode(processName, "ProfileStart", processName, true, getStartXY());
 			
 			// create the ProfileEnd node
-			Node endNode = createNode(processName, "ProfileEnd", getEndXY());
+			Node endNode = createNode(processName, "ProfileEnd", processName, false, getEndXY());
 	
 			// get the name of the Start activity
 			String startName = getStartName();
@@ -213,6 +315,10 @@ class BWInstrument {
 				procdefNode.insertBefore(startTransition, insertionPoint);
 				procdefNode.insertBefore(endTransition, insertionPoint);
 				
+				// wrap the selected activities with entry and exit probes
+				if (activityPattern != null)
+					instrumentActivities((Element) procdefNode, processName);
+				
 				// write the DOM object back to the BW process file
 				TransformerFactory transformerFactory = TransformerFactory
 						.newInstance();
@@ -225,6 +331,50 @@ class BWInstrument {
 		}
 	}
 
+	/**
+	 * Wraps each selected activity of the process or group, and of the
+	 * groups nested within it, with ProfileEnter and ProfileExit activities.
+	 */
+	private void instrumentActivities(Element container, String processName)
+			throws SAXException, IOException, ParserConfigurationException {
+		for (Element group : getChildElements(container, "pd:group")) {
+			instrumentActivities(group, processName);
+		}
+		
+		for (Element activity : getChildElements(container, "pd:activity")) {
+			String activityName = activity.getAttribute("name");
+			if (activityName.equals("ProfileStart") || activityName.equals("ProfileEnd") ||
+					"com.tibco.pe.core.CatchActivity".equals(getChildText(activity, "pd:type")) ||
+					!activityPattern.matcher(activityName).matches())
+				continue;
+			
+			String enterName = "ProfileEnter-" + activityName;
+			String exitName = "ProfileExit-" + activityName;
+			
+			// only transitions within the same group can refer to the activity
+			for (Element transition : getChildElements(container, "pd:transition")) {
+				Element toNode = getChildElement(transition, "pd:to");
+				if (toNode != null && activityName.equals(toNode.getTextContent().trim()))
+					toNode.setTextContent(enterName);
+				
+				Element fromNode = getChildElement(transition, "pd:from");
+				if (fromNode != null && activityName.equals(fromNode.getTextContent().trim()) &&
+						!"error".equals(getChildText(transition, "pd:conditionType")))
+					fromNode.setTextContent(exitName);
+			}
+			
+			int x = Integer.parseInt(getChildText(activity, "pd:x"));
+			int y = Integer.parseInt(getChildText(activity, "pd:y"));
+			String probeName = processName + "/" + activityName;
+			
+			Node insertionPoint = findInsertionPoint(container);
+			container.insertBefore(createNode(processName, enterName, probeName, true, new XYCoord(x - 115, y - 35)), insertionPoint);
+			container.insertBefore(createNode(processName, exitName, probeName, false, new XYCoord(x - 35, y - 35)), insertionPoint);
+			container.insertBefore(createTransition(enterName, activityName), insertionPoint);
+			container.insertBefore(createTransition(activityName, exitName), insertionPoint);
+		}
+	}
+
 	private Node findInsertionPoint(Node procdefNode) {
 		NodeList childNodes = procdefNode.getChildNodes();
 		
@@ -322,11 +472,56 @@ class BWInstrument {
 		return new XYCoord(startX, startY);
 	}
 
-	private Node createNode(String processName, String activityName, XYCoord xyCoord) 
+	private Node createNode(String processName, String activityName, String probeName, boolean start, XYCoord xyCoord) 
 			throws SAXException, IOException, ParserConfigurationException {
+		
+		// the XPath expressions bound to each parameter of the BWProfile method
+		ArrayList<String> parameters = new ArrayList<String>();
+		String methodName = null;
+		
+		if (instrumentMode.equals("probe")) {
+			methodName = start ? "probeStart" : "probeEnd";
+			parameters.add(xpathLiteral(outputLocation));
+			parameters.add(xpathLiteral(probeName));
+			parameters.add("$_processContext/pe:ProcessContext/JobId");
+		} else if (instrumentMode.equals("jfr")) {
+			// the probe name of an activity is process/activity
+			methodName = start ? "jfrStart" : "jfrEnd";
+			parameters.add(xpathLiteral(processName));
+			parameters.add(xpathLiteral(probeName.length() > processName.length() ?
+					probeName.substring(processName.length() + 1) : ""));
+			parameters.add("$_processContext/pe:ProcessContext/JobId");
+		} else {
+			parameters.add("concat(" + xpathLiteral(outputLocation + slashStyle) +
+					", tib:timestamp(), " + xpathLiteral("-" + processName + "-" + activityName) + ")");
+			
+			if (histoMode.equals("mbean")) {
+				methodName = "classHisto";
+			} else {
+				methodName = "heapHisto";
+				parameters.add(xpathLiteral(jmapLoc));
+			}
+			
+			// bind the policy file and the job ID so that HistoSummary can pair
+			// the start and end snapshots of concurrent jobs
+			parameters.add(xpathLiteral(configLocation == null ? "" : configLocation));
+			parameters.add("$_processContext/pe:ProcessContext/JobId");
+		}
+		
+		String methodParameters = "";
+		String parameterBindings = "";
+		for (int i = 1; i <= parameters.size(); i++) {
+			methodParameters +=
+				"                <methodParameter>java.lang.String</methodParameter>";
+			parameterBindings +=
+				"                    <Parameter" + i + " xmlns:tib=\"http://www.tibco.com/bw/xslt/custom-functions\"" +
+				" xmlns:pe=\"http://www.tibco.com/pe/EngineTypes\">" +
+				"                        <xsl:value-of select=\"" + escapeXml(parameters.get(i - 1)) + "\"/>" +
+				"                    </Parameter" + i + ">";
+		}
         
 		String insertActivity = 
-				"    <pd:activity name=\"" + activityName + "\">" +
+				"    <pd:activity name=\"" + escapeXml(activityName) + "\">" +
 				"        <pd:type>com.tibco.plugin.java.JavaMethodActivity</pd:type>" +
 				"        <pd:resourceType>ae.activities.JavaMethodActivity</pd:resourceType>" +
 				"        <pd:x>" + (xyCoord.getXCoord() + 75) + "</pd:x>" +
@@ -338,22 +533,15 @@ class BWInstrument {
 				"            <MethodInfo>" +
 				"                <classLocation>" + jarLocation + "</classLocation>" +
 				"                <className>nochum.bw5.utilities.BWProfile</className>" +
-				"                <methodName>heapHisto</methodName>" +
+				"                <methodName>" + methodName + "</methodName>" +
 				"                <methodReturn>void</methodReturn>" +
-				"                <methodParameter>java.lang.String</methodParameter>" +
-				"                <methodParameter>java.lang.String</methodParameter>" +
+				methodParameters +
 				"            </MethodInfo>" +
 				"        </config>" +
 				"        <pd:inputBindings>" +
 				"            <jmai:JavaMethodActivityInput xmlns:jmai=\"www.tibco.com/plugin/java/JavaMethodActivityInput\">" +
 				"                <MethodParameters>" +
-				"                    <Parameter1 xmlns:tib=\"http://www.tibco.com/bw/xslt/custom-functions\">" +
-				"                        <xsl:value-of select=\"concat(\'" + outputLocation + slashStyle + "\'" +
-				", tib:timestamp(), " + "\'-" + processName + "-" + activityName + "\')\"/>" +
-				"                    </Parameter1>" +
-				"                    <Parameter2>" +
-				"                        <xsl:value-of select=\"\'" + jmapLoc + "\'\"/>" +
-				"                    </Parameter2>" +
+				parameterBindings +
 				"                </MethodParameters>" +
 				"            </jmai:JavaMethodActivityInput>" +
 				"        </pd:inputBindings>" +
@@ -369,11 +557,28 @@ class BWInstrument {
 		return doc.importNode(fragmentNode, true);
 	}
 
+	/**
+	 * Quotes a string as an XPath 1.0 literal, which has no escape for its
+	 * own quote character.
+	 */
+	private static String xpathLiteral(String value) {
+		if (value.indexOf('\'') < 0)
+			return "\'" + value + "\'";
+		return "concat(\'" + value.replace("\'", "\', \"\'\", \'") + "\')";
+	}
+
+	/**
+	 * Escapes text for an XML attribute value or element content.
+	 */
+	private static String escapeXml(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
 	private Node createTransition(String fromActivity, String toActivity) throws SAXException, IOException, ParserConfigurationException {
 	    
 		String insertTranstion = "    <pd:transition>"
-				+ "        <pd:from>"+ fromActivity + "</pd:from>"
-				+ "        <pd:to>"+ toActivity + "</pd:to>"
+				+ "        <pd:from>"+ escapeXml(fromActivity) + "</pd:from>"
+				+ "        <pd:to>"+ escapeXml(toActivity) + "</pd:to>"
 				+ "        <pd:lineType>Default</pd:lineType>"
 				+ "        <pd:lineColor>-16777216</pd:lineColor>"
 				+ "        <pd:conditionType>always</pd:conditionType>"
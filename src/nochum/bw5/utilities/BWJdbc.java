@@ -0,0 +1,290 @@
+package nochum.bw5.utilities;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Properties;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import static nochum.bw5.utilities.BWProcessUtil.getChildElement;
+import static nochum.bw5.utilities.BWProcessUtil.getChildElements;
+import static nochum.bw5.utilities.BWProcessUtil.getChildText;
+import static nochum.bw5.utilities.BWProcessUtil.getRelativeName;
+import static nochum.bw5.utilities.BWProcessUtil.isLoopGroup;
+
+/**
+ * Scans the JDBC Query, Update, Call Procedure and SQL Direct activities of
+ * every BusinessWorks process in a project and reports on common database
+ * round-trip problems:
+ * <ul>
+ * <li>JDBC Update activities inside a loop group that do not use batch
+ * update, i.e. one round trip per row.
+ * <li>JDBC statements executed once per iteration of a loop group.
+ * <li>JDBC Query activities with neither a maximum number of rows nor a fetch
+ * size, which can pull an entire table into job memory.
+ * <li>JDBC activities with no timeout, which can hold an engine thread and a
+ * pooled connection indefinitely.
+ * <li>The same statement executed by more than one activity in a process.
+ * </ul>
+ * Each finding is assigned an estimated impact: a base weight for the kind of
+ * finding multiplied by ten for every loop group that encloses the activity,
+ * on the assumption that each loop executes its body about ten times.  The
+ * report is sorted by descending impact.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class BWJdbc {
+
+	/**
+	 * The base weights for each kind of finding
+	 */
+	private static final int ROW_AT_A_TIME   = 5;
+	private static final int STATEMENT_IN_LOOP = 3;
+	private static final int UNLIMITED_ROWS  = 3;
+	private static final int NO_TIMEOUT      = 2;
+	private static final int DUPLICATE       = 1;
+
+	/**
+	 * All of the findings discovered within the project
+	 */
+	private ArrayList<Finding> findings = new ArrayList<Finding>();
+
+	/**
+	 * The properties required to traverse the project filesystem
+	 */
+	private Properties _props = null;
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws ParserConfigurationException   If errors are incurred parsing the BW process.
+	 * @throws IOException                    If errors are incurred parsing the BW process.
+	 * @throws SAXException                   If errors are incurred parsing the BW process.
+	 */
+	public BWJdbc(Properties props) throws ParserConfigurationException, SAXException, IOException, UsageException {
+		final String usageString = "\nUsage: Optimize jdbc [options]\n\n" +
+				"   where options are:\n\n" +
+				"-output    <output location>    - Full path and file name for output report.\n" +
+				"-project   <project location>   - Full path to project on the filesystem.\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("projectRoot")) {
+			throw(new UsageException("Required input parameter '-project' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		traverse(new File(_props.getProperty("projectRoot")));
+		writeResults();
+	}
+
+	/**
+	 * Works on a single file system entry and
+	 * calls itself recursively if it turns out
+	 * to be a directory.
+	 * @param  file                           A file or a directory to process
+	 * @throws ParserConfigurationException   If errors are incurred parsing the BW process.
+	 * @throws IOException                    If errors are incurred parsing the BW process.
+	 * @throws SAXException                   If errors are incurred parsing the BW process.
+	 */
+	private void traverse( File file ) throws ParserConfigurationException, SAXException, IOException {
+       // Check if it is a directory
+       if( file.isDirectory() ) {
+          // Get a list of all the entries in the directory
+          String entries[] = file.list() ;
+
+          // Ensure that the list is not null
+          if( entries != null ) {
+             // Loop over all the entries
+             for( String entry : entries ) {
+                // Recursive call to traverse
+                traverse( new File(file,entry) ) ;
+             }
+          }
+       } else {
+    	   if (file.getName().endsWith(".process")) {
+    		   processBWProcess(file);
+    	   }
+       }
+	}
+
+	/**
+	 * @param bwProcess
+	 * @throws ParserConfigurationException   If errors are incurred parsing the BW process.
+	 * @throws IOException                    If errors are incurred parsing the BW process.
+	 * @throws SAXException                   If errors are incurred parsing the BW process.
+	 */
+	private void processBWProcess(File bwProcess) throws ParserConfigurationException, SAXException, IOException {
+		DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+		DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+		Document doc = dBuilder.parse(bwProcess);
+
+		doc.getDocumentElement().normalize();
+
+		String processName = getRelativeName(_props.getProperty("projectRoot"), bwProcess);
+
+		// statement text -> the activities within this process that execute it
+		HashMap<String, ArrayList<String>> statements = new HashMap<String, ArrayList<String>>();
+		processContainer(processName, doc.getDocumentElement(), "", 0, statements);
+
+		for (ArrayList<String> activities : statements.values()) {
+			if (activities.size() > 1) {
+				for (String activityPath : activities) {
+					int lastSlash = activityPath.lastIndexOf('/');
+					addFinding(processName,
+							lastSlash < 0 ? "" : activityPath.substring(0, lastSlash),
+							activityPath.substring(lastSlash + 1),
+							"Statement also executed by " + (activities.size() - 1) + " other activities",
+							DUPLICATE, 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the JDBC activities directly beneath the parent element and
+	 * calls itself recursively in order to handle nested groups.
+	 * @param processName  the project-relative name of the BW process.
+	 * @param parent       the process definition or an enclosing group.
+	 * @param groupPath    the slash-separated names of the enclosing groups.
+	 * @param loopDepth    the number of loop groups enclosing the parent.
+	 * @param statements   the statements seen so far within the process.
+	 */
+	private void processContainer(String processName, Element parent, String groupPath, int loopDepth,
+			HashMap<String, ArrayList<String>> statements) {
+		for (Element activity : getChildElements(parent, "pd:activity")) {
+			String type = getChildText(activity, "pd:type");
+			if (type != null && type.startsWith("com.tibco.plugin.jdbc.")) {
+				processJdbcActivity(processName, groupPath, loopDepth, activity, type, statements);
+			}
+		}
+
+		for (Element group : getChildElements(parent, "pd:group")) {
+			String nestedPath = (groupPath.length() == 0 ? "" : groupPath + "/") + group.getAttribute("name");
+			processContainer(processName, group, nestedPath,
+					isLoopGroup(group) ? loopDepth + 1 : loopDepth, statements);
+		}
+	}
+
+	/**
+	 * Evaluates a single JDBC activity's configuration.
+	 */
+	private void processJdbcActivity(String processName, String groupPath, int loopDepth, Element activity,
+			String type, HashMap<String, ArrayList<String>> statements) {
+		String activityName = activity.getAttribute("name");
+		Element config = getChildElement(activity, "config");
+
+		if (loopDepth > 0) {
+			if (type.endsWith("JDBCUpdateActivity") && !"true".equalsIgnoreCase(getChildText(config, "batchUpdate"))) {
+				addFinding(processName, groupPath, activityName,
+						"Row-at-a-time update inside a loop; consider batch update", ROW_AT_A_TIME, loopDepth);
+			} else {
+				addFinding(processName, groupPath, activityName,
+						"Statement executed once per loop iteration", STATEMENT_IN_LOOP, loopDepth);
+			}
+		}
+
+		if (type.endsWith("JDBCQueryActivity") && isUnset(getChildText(config, "maxRows"))
+				&& isUnset(getChildText(config, "fetchSize"))) {
+			addFinding(processName, groupPath, activityName,
+					"Query has no max rows or fetch size limit", UNLIMITED_ROWS, loopDepth);
+		}
+
+		if (isUnset(getChildText(config, "timeout"))) {
+			addFinding(processName, groupPath, activityName, "No timeout configured", NO_TIMEOUT, loopDepth);
+		}
+
+		String statement = getChildText(config, "statement");
+		if (statement == null)
+			statement = getChildText(config, "ProcedureName");
+		if (statement != null) {
+			// normalize whitespace and case so that cosmetic differences are ignored
+			String key = statement.replaceAll("\\s+", " ").toLowerCase();
+			ArrayList<String> activities = statements.get(key);
+			if (activities == null) {
+				activities = new ArrayList<String>();
+				statements.put(key, activities);
+			}
+			activities.add((groupPath.length() == 0 ? "" : groupPath + "/") + activityName);
+		}
+	}
+
+	/**
+	 * A numeric setting is considered unset when it is missing or zero.  BW
+	 * treats a zero timeout or maximum row count as "no limit".  Values that
+	 * refer to global variables are assumed to be set.
+	 */
+	private static boolean isUnset(String value) {
+		if (value == null)
+			return true;
+
+		try {
+			return Long.parseLong(value) <= 0;
+		} catch (NumberFormatException nfe) {
+			return false;
+		}
+	}
+
+	private void addFinding(String processName, String groupPath, String activityName, String description,
+			int weight, int loopDepth) {
+		Finding finding = new Finding();
+		finding.processName = processName;
+		finding.groupPath = groupPath;
+		finding.activityName = activityName;
+		finding.description = description;
+		finding.impact = weight;
+		for (int i = 0; i < loopDepth; i++)
+			finding.impact *= 10;
+
+		findings.add(finding);
+	}
+
+	/**
+	 * Writes the findings to the output report, highest impact first.
+	 * @throws IOException
+	 */
+	private void writeResults() throws IOException {
+		PrintWriter out = new PrintWriter(_props.getProperty("outLoc"));
+
+		Collections.sort(findings, new Comparator<Finding>() {
+			public int compare(Finding a, Finding b) {
+				return (a.impact < b.impact) ? 1 : ((a.impact == b.impact) ? 0 : -1);
+			}
+		});
+
+		for (Finding finding : findings) {
+			out.println(finding.processName + "," + finding.groupPath + "," + finding.activityName + "," +
+					finding.description + "," + finding.impact);
+		}
+
+		out.flush();
+		out.close();
+	}
+
+	/**
+	 * A single problem found with a JDBC activity.
+	 */
+	class Finding {
+		private String processName = null;
+		private String groupPath = null;
+		private String activityName = null;
+		private String description = null;
+		private long impact = 0;
+	}
+}
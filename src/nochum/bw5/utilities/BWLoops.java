@@ -0,0 +1,282 @@
+package nochum.bw5.utilities;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Properties;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import static nochum.bw5.utilities.BWProcessUtil.getChildElement;
+import static nochum.bw5.utilities.BWProcessUtil.getChildElements;
+import static nochum.bw5.utilities.BWProcessUtil.getChildText;
+import static nochum.bw5.utilities.BWProcessUtil.getGroupType;
+import static nochum.bw5.utilities.BWProcessUtil.getRelativeName;
+import static nochum.bw5.utilities.BWProcessUtil.isLoopGroup;
+
+/**
+ * Introspects the group structure of BusinessWorks processes and reports on
+ * iterate, repeat-until and while groups that are likely to be expensive at
+ * run time.
+ * <p>
+ * Loop groups can accumulate the output of an activity on every iteration
+ * (the "Accumulate Output" option).  The accumulated output remains in job
+ * memory until the job completes, so a loop over a large collection with
+ * accumulation enabled grows the job linearly with the size of the input.
+ * Nested accumulating loops grow it multiplicatively.  Similarly, parsing,
+ * rendering, database and sub-process calls inside a loop body are paid once
+ * per iteration rather than once per job.
+ * <p>
+ * For every loop group this class reports:
+ * <ul>
+ * <li>whether the group accumulates output.
+ * <li>whether the loop is unbounded, i.e. an iterate group over an XPath
+ * expression with no predicate, or a repeat/while group whose condition does
+ * not reference the index variable.
+ * <li>the Parse XML, Render XML, JDBC and Call Process activities anywhere
+ * within the loop body, including nested groups.
+ * </ul>
+ * Each loop is scored by its loop nesting depth (the outermost loop has a
+ * depth of 1) multiplied by the sum of its findings: 1 for the loop itself, 4
+ * for accumulated output, 3 for an unbounded collection and 2 for every
+ * expensive activity in its body.  The report is sorted by descending score.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class BWLoops {
+
+	/**
+	 * Activity types that are expensive when executed once per iteration,
+	 * mapped to a short description for the report.
+	 */
+	private static final HashMap<String, String> expensiveTypes = new HashMap<String, String>();
+	static {
+		expensiveTypes.put("com.tibco.plugin.xml.XMLParseActivity", "Parse XML");
+		expensiveTypes.put("com.tibco.plugin.xml.XMLRendererActivity", "Render XML");
+		expensiveTypes.put("com.tibco.plugin.jdbc.JDBCQueryActivity", "JDBC Query");
+		expensiveTypes.put("com.tibco.plugin.jdbc.JDBCUpdateActivity", "JDBC Update");
+		expensiveTypes.put("com.tibco.plugin.jdbc.JDBCCallActivity", "JDBC Call Procedure");
+		expensiveTypes.put("com.tibco.plugin.jdbc.JDBCGeneralActivity", "JDBC SQL Direct");
+		expensiveTypes.put("com.tibco.pe.core.CallProcessActivity", "Call Process");
+	}
+
+	/**
+	 * All of the loop groups discovered within the project
+	 */
+	private ArrayList<LoopInfo> loops = new ArrayList<LoopInfo>();
+
+	/**
+	 * The properties required to traverse the project filesystem
+	 */
+	private Properties _props = null;
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws ParserConfigurationException   If errors are incurred parsing the BW process.
+	 * @throws IOException                    If errors are incurred parsing the BW process.
+	 * @throws SAXException                   If errors are incurred parsing the BW process.
+	 */
+	public BWLoops(Properties props) throws ParserConfigurationException, SAXException, IOException, UsageException {
+		final String usageString = "\nUsage: Optimize loops [options]\n\n" +
+				"   where options are:\n\n" +
+				"-output    <output location>    - Full path and file name for output report.\n" +
+				"-project   <project location>   - Full path to project on the filesystem.\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("projectRoot")) {
+			throw(new UsageException("Required input parameter '-project' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		traverse(new File(_props.getProperty("projectRoot")));
+		writeResults();
+	}
+
+	/**
+	 * Works on a single file system entry and
+	 * calls itself recursively if it turns out
+	 * to be a directory.
+	 * @param  file                           A file or a directory to process
+	 * @throws ParserConfigurationException   If errors are incurred parsing the BW process.
+	 * @throws IOException                    If errors are incurred parsing the BW process.
+	 * @throws SAXException                   If errors are incurred parsing the BW process.
+	 */
+	private void traverse( File file ) throws ParserConfigurationException, SAXException, IOException {
+       // Check if it is a directory
+       if( file.isDirectory() ) {
+          // Get a list of all the entries in the directory
+          String entries[] = file.list() ;
+
+          // Ensure that the list is not null
+          if( entries != null ) {
+             // Loop over all the entries
+             for( String entry : entries ) {
+                // Recursive call to traverse
+                traverse( new File(file,entry) ) ;
+             }
+          }
+       } else {
+    	   if (file.getName().endsWith(".process")) {
+    		   processBWProcess(file);
+    	   }
+       }
+	}
+
+	/**
+	 * @param bwProcess
+	 * @throws ParserConfigurationException   If errors are incurred parsing the BW process.
+	 * @throws IOException                    If errors are incurred parsing the BW process.
+	 * @throws SAXException                   If errors are incurred parsing the BW process.
+	 */
+	private void processBWProcess(File bwProcess) throws ParserConfigurationException, SAXException, IOException {
+		DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+		DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+		Document doc = dBuilder.parse(bwProcess);
+
+		doc.getDocumentElement().normalize();
+
+		String relativeFile = getRelativeName(_props.getProperty("projectRoot"), bwProcess);
+
+		processGroups(relativeFile, doc.getDocumentElement(), "", 0);
+	}
+
+	/**
+	 * Evaluates each group directly beneath the parent element and calls
+	 * itself recursively in order to handle nested groups.
+	 * @param processName  the project-relative name of the BW process.
+	 * @param parent       the process definition or an enclosing group.
+	 * @param parentPath   the slash-separated names of the enclosing groups.
+	 * @param loopDepth    the number of loop groups enclosing the parent.
+	 */
+	private void processGroups(String processName, Element parent, String parentPath, int loopDepth) {
+		for (Element group : getChildElements(parent, "pd:group")) {
+			String groupPath = (parentPath.length() == 0 ? "" : parentPath + "/") + group.getAttribute("name");
+			Element config = getChildElement(group, "config");
+			String groupType = getGroupType(group);
+
+			int depth = loopDepth;
+			if (isLoopGroup(group)) {
+				depth++;
+
+				LoopInfo loop = new LoopInfo();
+				loop.processName = processName;
+				loop.groupPath = groupPath;
+				loop.groupType = groupType;
+				loop.depth = depth;
+				loop.accumulate = "true".equalsIgnoreCase(getChildText(config, "pd:accumulateOutput"));
+				loop.unbounded = isUnbounded(config, groupType);
+				findExpensiveActivities(group, "", loop.expensive);
+				loops.add(loop);
+			}
+
+			processGroups(processName, group, groupPath, depth);
+		}
+	}
+
+	/**
+	 * An iterate group is considered unbounded when the collection it iterates
+	 * over is not restricted by a predicate.  A repeat or while group is
+	 * considered unbounded when its condition never refers to the index
+	 * variable, i.e. nothing caps the number of iterations.
+	 */
+	private boolean isUnbounded(Element config, String groupType) {
+		String over = getChildText(config, "pd:over");
+		if (over != null) {
+			return !over.contains("[");
+		}
+
+		String condition = getChildText(config, "pd:repeatCondition");
+		if (condition == null)
+			condition = getChildText(config, "pd:whileCondition");
+		if (condition == null)
+			return false;
+
+		String indexSlot = getChildText(config, "pd:indexSlot");
+		return (indexSlot == null || !condition.contains("$" + indexSlot));
+	}
+
+	/**
+	 * Collects the expensive activities within a group, including those
+	 * within nested groups.
+	 * @param group     the group to search.
+	 * @param prefix    the path of nested groups relative to the loop.
+	 * @param expensive the list to which activity descriptions are added.
+	 */
+	private void findExpensiveActivities(Element group, String prefix, ArrayList<String> expensive) {
+		for (Element activity : getChildElements(group, "pd:activity")) {
+			String description = expensiveTypes.get(getChildText(activity, "pd:type"));
+			if (description != null) {
+				expensive.add(prefix + activity.getAttribute("name") + " (" + description + ")");
+			}
+		}
+
+		for (Element nested : getChildElements(group, "pd:group")) {
+			findExpensiveActivities(nested, prefix + nested.getAttribute("name") + "/", expensive);
+		}
+	}
+
+	/**
+	 * Writes the loops to the output report, highest score first.
+	 * @throws IOException
+	 */
+	private void writeResults() throws IOException {
+		PrintWriter out = new PrintWriter(_props.getProperty("outLoc"));
+
+		Collections.sort(loops, new Comparator<LoopInfo>() {
+			public int compare(LoopInfo a, LoopInfo b) {
+				return b.getScore() - a.getScore();
+			}
+		});
+
+		for (LoopInfo loop : loops) {
+			StringBuilder activities = new StringBuilder();
+			for (String activity : loop.expensive) {
+				if (activities.length() > 0)
+					activities.append(';');
+				activities.append(activity);
+			}
+
+			out.println(loop.processName + "," + loop.groupPath + "," + loop.groupType + "," +
+					loop.depth + "," + loop.accumulate + "," + loop.unbounded + "," +
+					loop.expensive.size() + "," + activities + "," + loop.getScore());
+		}
+
+		out.flush();
+		out.close();
+	}
+
+	/**
+	 * The findings for a single loop group.
+	 */
+	class LoopInfo {
+		private String processName = null;
+		private String groupPath = null;
+		private String groupType = null;
+		private int depth = 0;
+		private boolean accumulate = false;
+		private boolean unbounded = false;
+		private ArrayList<String> expensive = new ArrayList<String>();
+
+		public int getScore() {
+			int findings = 1 + (accumulate ? 4 : 0) + (unbounded ? 3 : 0) + (2 * expensive.size());
+			return depth * findings;
+		}
+	}
+}
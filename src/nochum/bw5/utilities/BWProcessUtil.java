@@ -0,0 +1,144 @@
+package nochum.bw5.utilities;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Helper methods shared by the classes that introspect the structure of
+ * BusinessWorks process definitions.
+ * <p>
+ * BW processes nest activities, transitions and further groups within
+ * pd:group elements.  The DOM getElementsByTagName() method searches the
+ * entire subtree, so these helpers look only at the direct children of an
+ * element in order to keep group membership intact.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class BWProcessUtil {
+
+	private BWProcessUtil() {
+	}
+
+	/**
+	 * Compiles a selection pattern given on the command line.  A pattern
+	 * prefixed with "regex:" is a Java regular expression; anything else is a
+	 * glob in which * matches within a path segment, ** matches across
+	 * segments and ? matches a single character.  An optional "glob:" prefix
+	 * is accepted.
+	 */
+	static Pattern compilePattern(String pattern) {
+		if (pattern.startsWith("regex:"))
+			return Pattern.compile(pattern.substring("regex:".length()));
+		if (pattern.startsWith("glob:"))
+			pattern = pattern.substring("glob:".length());
+
+		StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '*' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+				regex.append(".*");
+				i++;
+			} else if (c == '*') {
+				regex.append("[^/]*");
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+
+		return Pattern.compile(regex.toString());
+	}
+
+	/**
+	 * Returns the path of a file relative to the project root, e.g.
+	 * "Processes/Orders/LoadOrders.process".
+	 */
+	static String getRelativeName(String projectRoot, File file) {
+		String rootPath = new File(projectRoot).getAbsolutePath();
+		String filePath = file.getAbsolutePath();
+
+		if (filePath.startsWith(rootPath) && filePath.length() > rootPath.length())
+			return filePath.substring(rootPath.length() + 1).replace(File.separatorChar, '/');
+		else
+			return filePath;
+	}
+
+	/**
+	 * Returns the child elements of the parent with the given tag name.
+	 * Unlike getElementsByTagName() this does not descend into nested groups.
+	 */
+	static ArrayList<Element> getChildElements(Element parent, String tagName) {
+		ArrayList<Element> children = new ArrayList<Element>();
+		if (parent == null)
+			return children;
+
+		NodeList childNodes = parent.getChildNodes();
+		for (int i = 0; i < childNodes.getLength(); i++) {
+			Node child = childNodes.item(i);
+			if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals(tagName))
+				children.add((Element) child);
+		}
+
+		return children;
+	}
+
+	/**
+	 * Returns the first child element of the parent with the given tag name.
+	 */
+	static Element getChildElement(Element parent, String tagName) {
+		ArrayList<Element> children = getChildElements(parent, tagName);
+		return children.isEmpty() ? null : children.get(0);
+	}
+
+	/**
+	 * Returns the trimmed text content of the first child element of the
+	 * parent with the given tag name, or null if there is none.
+	 */
+	static String getChildText(Element parent, String tagName) {
+		Element child = getChildElement(parent, tagName);
+		if (child == null)
+			return null;
+
+		String text = child.getTextContent().trim();
+		return text.length() == 0 ? null : text;
+	}
+
+	/**
+	 * Returns the group type (inputLoop, repeat, critical, ...) from the
+	 * group's configuration, or null if none is configured.
+	 */
+	static String getGroupType(Element group) {
+		return getChildText(getChildElement(group, "config"), "pd:groupType");
+	}
+
+	/**
+	 * Determines whether a group iterates.  Critical section, transaction and
+	 * "simple" groups do not.
+	 */
+	static boolean isLoopGroup(Element group) {
+		String groupType = getGroupType(group);
+		if (groupType != null) {
+			String lower = groupType.toLowerCase();
+			return (lower.contains("loop") || lower.contains("repeat") || lower.contains("while"));
+		}
+
+		String type = getChildText(group, "pd:type");
+		return (type != null && type.endsWith("LoopGroup"));
+	}
+
+	/**
+	 * Quotes a field of a comma-separated report that contains a comma, quote
+	 * or line break, such as an XPath expression, doubling its quotes.
+	 */
+	static String quote(String field) {
+		if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0)
+			return field;
+		return "\"" + field.replace("\"", "\"\"") + "\"";
+	}
+}
@@ -1,13 +1,22 @@
 package nochum.bw5.utilities;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
+import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
@@ -24,11 +33,23 @@ public class BWProfile {
     private static final String HOTSPOT_BEAN_NAME =
          "com.sun.management:type=HotSpotDiagnostic";
 
+    // This is the name of the HotSpot Diagnostic Command MBean (Java 8 and later)
+    private static final String DIAGNOSTIC_COMMAND_BEAN_NAME =
+         "com.sun.management:type=DiagnosticCommand";
+
     // field to store the hotspot diagnostic MBean 
     private static volatile HotSpotDiagnosticMXBean hotspotMBean;
     
     private static final Logger logger = org.apache.log4j.Logger.getLogger("bw.logger");
 
+    // distinguishes snapshots of the same job taken within the same millisecond
+    private static final AtomicLong snapshotSequence = new AtomicLong();
+
+    // used by the timing probes; allocated bytes are only available on HotSpot
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean hotspotThreadBean =
+    		(threadBean instanceof com.sun.management.ThreadMXBean) ? (com.sun.management.ThreadMXBean) threadBean : null;
+
     /**
      * This method executes the jmap executable in order to generate a heap
      *  histogram.  It requires a full path to a jmap executable as input.
@@ -39,14 +60,67 @@ public class BWProfile {
      *  is believed that jmap triggers a full gc when the live option is
      *  specified).  For this reason this method executes unconditionally.
      *  
+     *  When asynchronous profiling is enabled (see ProfileWriter) the request
+     *  is queued and this method returns immediately.
+     *  
      * @param fileName  - The full path to the location where the histogram 
-     *                    should be written.
+     *                    should be written, without the .gz suffix.
      * @param jmapLoc   - The full path to the jmap executable.
-     * @param memoryThreshold
      * @throws IOException
      */
     public static void heapHisto(String fileName, String jmapLoc)  throws IOException {
-		
+    	if (ProfileWriter.isEnabled()) {
+    		ProfileWriter.getInstance().submit(
+    				new ProfileWriter.CaptureRequest(ProfileWriter.Kind.JMAP_HISTO, fileName, jmapLoc, null));
+    		return;
+    	}
+
+    	writeHistogram(jmapHistogram(jmapLoc), fileName);
+    }
+
+    /**
+     * Generates a heap histogram with jmap, subject to the sampling and rate
+     *  limiting policy configured by the given properties file and the
+     *  bw5.profile system properties (see ProfilePolicy).  Invocations that
+     *  the policy skips return at once.
+     *  
+     * @param fileName  - The full path to the location where the histogram 
+     *                    should be written, without the .gz suffix.
+     * @param jmapLoc   - The full path to the jmap executable.
+     * @param configLoc - The full path to the policy properties file, or an
+     *                    empty string to use system properties only.
+     * @throws IOException
+     */
+    public static void heapHisto(String fileName, String jmapLoc, String configLoc)  throws IOException {
+    	if (ProfilePolicy.getPolicy(configLoc).shouldCapture(fileName, null))
+    		heapHisto(fileName, jmapLoc);
+    }
+
+    /**
+     * Generates a heap histogram with jmap, subject to the profiling policy,
+     *  and records the BW job ID and a sequence number in the file name so
+     *  that HistoSummary can pair the start and end snapshots of each job.
+     *  
+     * @param fileName  - The full path to the location where the histogram 
+     *                    should be written, without the .gz suffix.
+     * @param jmapLoc   - The full path to the jmap executable.
+     * @param configLoc - The full path to the policy properties file, or an
+     *                    empty string to use system properties only.
+     * @param jobId     - The ID of the job that is being profiled.
+     * @throws IOException
+     */
+    public static void heapHisto(String fileName, String jmapLoc, String configLoc, String jobId)  throws IOException {
+    	if (ProfilePolicy.getPolicy(configLoc).shouldCapture(fileName, jobId))
+    		heapHisto(getJobFileName(fileName, jobId), jmapLoc);
+    }
+
+    /**
+     * Executes "jmap -histo:live" against this JVM and returns its output.
+     * @param jmapLoc   - The full path to the jmap executable.
+     * @return the histogram, or null if the jmap executable does not exist.
+     * @throws IOException
+     */
+    static byte[] jmapHistogram(String jmapLoc) throws IOException {
     	if ( (null != jmapLoc) && (jmapLoc.isEmpty() == false) && (new File(jmapLoc).exists()) ) {
 			// get the process pid
 			String procName = ManagementFactory.getRuntimeMXBean().getName();
@@ -57,7 +131,7 @@ public class BWProfile {
 			Executor exec = new DefaultExecutor();
 			
 			// set stdout and stderr
-			FileOutputStream outErr=new FileOutputStream(fileName);
+			ByteArrayOutputStream outErr = new ByteArrayOutputStream(256 * 1024);
 			PumpStreamHandler streamHandler = new PumpStreamHandler(outErr);
 			exec.setStreamHandler(streamHandler);
 			 
@@ -73,11 +147,139 @@ public class BWProfile {
 				ex.printStackTrace();
 			}
 			
-			outErr.close();
-			
-            // attempt to compress the heap histogram
-            Runtime.getRuntime().exec("gzip " + fileName);
+			return outErr.toByteArray();
+    	}
+
+    	return null;
+    }
+
+    /**
+     * Writes a histogram to the profile log when it is enabled (see
+     *  ProfileLog), and otherwise to its own gzipped file.
+     * @param data      - The histogram.  Nothing is written if null.
+     * @param fileName  - The full path of the snapshot, without the .gz suffix.
+     * @throws IOException
+     */
+    static void writeHistogram(byte[] data, String fileName) throws IOException {
+    	if (data == null)
+    		return;
+
+    	if (!ProfileLog.isEnabled() || !ProfileLog.getInstance(fileName).append(fileName, data))
+    		writeGzipped(data, fileName);
+    }
+
+    /**
+     * Compresses the data to fileName + ".gz", the same result that running
+     *  gzip on the file would produce, without forking a process.
+     * @param data      - The data to write.  Nothing is written if null.
+     * @param fileName  - The full path of the file, without the .gz suffix.
+     * @throws IOException
+     */
+    static void writeGzipped(byte[] data, String fileName) throws IOException {
+    	if (data == null)
+    		return;
+
+    	OutputStream out = new GZIPOutputStream(new FileOutputStream(fileName + ".gz"), 64 * 1024);
+    	try {
+    		out.write(data);
+    	} finally {
+    		out.close();
+    	}
+    }
+    
+    /**
+     * Generates a heap histogram of live objects from within the engine's own
+     *  JVM by invoking the GC.class_histogram diagnostic command, and writes
+     *  it gzipped to fileName + ".gz".  The output is the same as that of
+     *  "jmap -histo:live" followed by "gzip", so HistoSummary reads it
+     *  unchanged, but no jmap or gzip process is forked.
+     *  
+     *  Like jmap -histo:live, the diagnostic command performs a full gc in
+     *  order to count only live objects.
+     *  
+     *  The DiagnosticCommand MBean is available on HotSpot JVMs from Java 8.
+     *  
+     *  When asynchronous profiling is enabled (see ProfileWriter) the request
+     *  is queued and this method returns immediately.
+     *  
+     * @param fileName  - The full path to the location where the histogram 
+     *                    should be written, without the .gz suffix.
+     * @throws IOException  if the histogram cannot be generated or written.
+     */
+    public static void classHisto(String fileName) throws IOException {
+    	if (ProfileWriter.isEnabled()) {
+    		ProfileWriter.getInstance().submit(
+    				new ProfileWriter.CaptureRequest(ProfileWriter.Kind.CLASS_HISTO, fileName, null, null));
+    		return;
     	}
+
+    	writeHistogram(classHistogram(), fileName);
+    }
+
+    /**
+     * Generates a heap histogram through the DiagnosticCommand MBean, subject
+     *  to the sampling and rate limiting policy configured by the given
+     *  properties file and the bw5.profile system properties (see
+     *  ProfilePolicy).  Invocations that the policy skips return at once.
+     *  
+     * @param fileName  - The full path to the location where the histogram 
+     *                    should be written, without the .gz suffix.
+     * @param configLoc - The full path to the policy properties file, or an
+     *                    empty string to use system properties only.
+     * @throws IOException  if the histogram cannot be generated or written.
+     */
+    public static void classHisto(String fileName, String configLoc) throws IOException {
+    	if (ProfilePolicy.getPolicy(configLoc).shouldCapture(fileName, null))
+    		classHisto(fileName);
+    }
+
+    /**
+     * Generates a heap histogram through the DiagnosticCommand MBean, subject
+     *  to the profiling policy, and records the BW job ID and a sequence
+     *  number in the file name so that HistoSummary can pair the start and
+     *  end snapshots of each job.
+     *  
+     * @param fileName  - The full path to the location where the histogram 
+     *                    should be written, without the .gz suffix.
+     * @param configLoc - The full path to the policy properties file, or an
+     *                    empty string to use system properties only.
+     * @param jobId     - The ID of the job that is being profiled.
+     * @throws IOException  if the histogram cannot be generated or written.
+     */
+    public static void classHisto(String fileName, String configLoc, String jobId) throws IOException {
+    	if (ProfilePolicy.getPolicy(configLoc).shouldCapture(fileName, jobId))
+    		classHisto(getJobFileName(fileName, jobId));
+    }
+
+    /**
+     * Inserts the job ID and a sequence number after the timestamp of a
+     *  snapshot file name, giving &lt;timestamp&gt;-&lt;job&gt;.&lt;sequence&gt;-&lt;process&gt;-&lt;activity&gt;.
+     */
+    static String getJobFileName(String fileName, String jobId) {
+    	int nameStart = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1;
+    	int firstDash = fileName.indexOf('-', nameStart);
+    	if (firstDash < 0)
+    		return fileName;
+
+    	String job = (jobId == null || jobId.trim().length() == 0) ? "0" : jobId.trim();
+    	return fileName.substring(0, firstDash) + "-" + job + "." + snapshotSequence.incrementAndGet() +
+    			fileName.substring(firstDash);
+    }
+
+    // invoke GC.class_histogram through the platform MBean server
+    static byte[] classHistogram() throws IOException {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            String histogram = (String) server.invoke(new ObjectName(DIAGNOSTIC_COMMAND_BEAN_NAME),
+            		"gcClassHistogram",
+            		new Object[] { new String[0] },
+            		new String[] { String[].class.getName() });
+            return histogram.getBytes("US-ASCII");
+        } catch (InstanceNotFoundException infe) {
+        	throw new IOException("The DiagnosticCommand MBean is not available in this JVM; use jmap instead.", infe);
+        } catch (Exception exp) {
+        	throw new IOException("Unable to generate class histogram: " + exp.getMessage(), exp);
+        }
     }
     
 	/**
@@ -88,15 +290,36 @@ public class BWProfile {
 	 * 3. The gc() that precedes the heap dump is only advisory, so there is
 	 * no guarantee that it will happen. The garbage collector is free to
 	 * ignore the request.
+	 * <p>
+	 * When asynchronous profiling is enabled (see ProfileWriter) the request
+	 * is queued and this method returns immediately.  When the heap dump
+	 * trigger is enabled (see HeapDumpTrigger) the first call arms it and no
+	 * call collects or dumps the heap itself.
 	 * 
 	 * @param fileName
 	 *            name of the heap dump file
-	 * @param live
-	 *            flag that tells whether to dump only the live objects
+	 * @param memoryThreshold
+	 *            used heap, in bytes, above which the heap is dumped
 	 * @throws IOException
 	 * @throws AttachNotSupportedException
 	 */
     public static void heapDump(String fileName, Long memoryThreshold) throws AttachNotSupportedException, IOException {
+    	if (HeapDumpTrigger.isEnabled()) {
+    		HeapDumpTrigger.arm(fileName, memoryThreshold.longValue());
+    		return;
+    	}
+
+    	if (ProfileWriter.isEnabled()) {
+    		ProfileWriter.getInstance().submit(
+    				new ProfileWriter.CaptureRequest(ProfileWriter.Kind.HEAP_DUMP, fileName, null, memoryThreshold));
+    		return;
+    	}
+
+    	dumpHeap(fileName, memoryThreshold);
+    }
+
+    // the synchronous implementation of heapDump
+    static void dumpHeap(String fileName, Long memoryThreshold) {
         
         // take a full gc before profiling.  This will reduce
     	// the number of objects awaiting finalization
@@ -113,14 +336,8 @@ public class BWProfile {
     			( thresholdExceeded == true ? ".  Generating heap dump..." : ""));
     	
     	if (thresholdExceeded == true) {
-            // initialize hotspot diagnostic MBean
-            initHotspotMBean();
-            
             try {
-                hotspotMBean.dumpHeap(fileName, true);
-                
-                // heap dumps can get large -- compress them
-                Runtime.getRuntime().exec("gzip " + fileName);
+                dumpHeap(fileName);
             } catch (RuntimeException re) {
                 throw re;
             } catch (Exception exp) {
@@ -130,6 +347,148 @@ public class BWProfile {
     	}
     }
     
+    /**
+     * Dumps the live objects on the heap to fileName and compresses the dump
+     *  in-process to fileName + ".gz", removing the uncompressed file.
+     * @param fileName  - The full path of the dump, ending in .hprof.
+     * @throws IOException
+     */
+    static void dumpHeap(String fileName) throws IOException {
+        // initialize hotspot diagnostic MBean
+        initHotspotMBean();
+
+        hotspotMBean.dumpHeap(fileName, true);
+
+        // heap dumps can get large -- compress them
+        File dump = new File(fileName);
+        InputStream in = new FileInputStream(dump);
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(fileName + ".gz"), 64 * 1024);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                    out.write(buffer, 0, read);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        dump.delete();
+    }
+
+    /**
+     * A lightweight alternative to a heap histogram, wired in by
+     *  BWInstrument's probe mode.  Records the elapsed time, the CPU time and
+     *  the bytes allocated by the current thread in a ring buffer that is
+     *  flushed once a second to a binary file in outputDir (see ProbeBuffer).
+     *  The probeSummary command reports on these files.  The probes also
+     *  tell the stack sampler, when it is enabled, what each thread is
+     *  running (see StackSampler).
+     *  
+     * @param outputDir - The directory where the probe file is written.
+     * @param name      - The name of the process being timed.
+     */
+    public static void probeStart(String outputDir, String name) {
+    	probe(ProbeBuffer.START, outputDir, name, null);
+    }
+
+    /**
+     * Records the start of a job or activity, as probeStart(outputDir, name),
+     *  and tells the stack sampler which job the thread is running.
+     *  
+     * @param outputDir - The directory where the probe file is written.
+     * @param name      - The name of the process being timed.
+     * @param jobId     - The BW job ID.
+     */
+    public static void probeStart(String outputDir, String name, String jobId) {
+    	probe(ProbeBuffer.START, outputDir, name, jobId);
+    }
+
+    /**
+     * Records the end of the job, or of the activity, named by the
+     *  matching probeStart.
+     *  
+     * @param outputDir - The directory where the probe file is written.
+     * @param name      - The name given to the matching probeStart.
+     */
+    public static void probeEnd(String outputDir, String name) {
+    	probe(ProbeBuffer.END, outputDir, name, null);
+    }
+
+    /**
+     * Records the end of the job, or of the activity, named by the
+     *  matching probeStart.
+     *  
+     * @param outputDir - The directory where the probe file is written.
+     * @param name      - The name given to the matching probeStart.
+     * @param jobId     - The BW job ID.
+     */
+    public static void probeEnd(String outputDir, String name, String jobId) {
+    	probe(ProbeBuffer.END, outputDir, name, jobId);
+    }
+
+    private static void probe(byte event, String outputDir, String name, String jobId) {
+    	if (StackSampler.isEnabled()) {
+    		if (event == ProbeBuffer.START)
+    			StackSampler.enter(outputDir, name, jobId);
+    		else
+    			StackSampler.exit(name, jobId);
+    	}
+
+    	long nanoTime = System.nanoTime();
+    	long cpuTime = threadBean.getCurrentThreadCpuTime();
+    	long allocated = (hotspotThreadBean == null) ? -1 :
+    		hotspotThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+    	ProbeBuffer.getInstance(outputDir).record(event, name, nanoTime, cpuTime, allocated);
+    }
+
+    /**
+     * Begins a Java Flight Recorder event for a job or activity, wired in by
+     *  BWInstrument's jfr mode (see JfrEvents).  JFR's own CPU, allocation
+     *  and lock events recorded while it is open are attributed to it by the
+     *  jfrSummary command.  Does nothing when JFR is not available.
+     *  
+     * @param process   - The name of the process.
+     * @param activity  - The name of the activity, or an empty string for the whole job.
+     * @param jobId     - The BW job ID.
+     */
+    public static void jfrStart(String process, String activity, String jobId) {
+    	if (StackSampler.isEnabled())
+    		StackSampler.enter(null, activity.length() == 0 ? process : process + "/" + activity, jobId);
+
+    	JfrEvents events = JfrEvents.getInstance();
+    	if (events != null)
+    		events.start(process, activity, jobId);
+    }
+
+    /**
+     * Ends and commits the event begun by the matching jfrStart.
+     *  
+     * @param process   - The name given to the matching jfrStart.
+     * @param activity  - The activity given to the matching jfrStart.
+     * @param jobId     - The BW job ID.
+     */
+    public static void jfrEnd(String process, String activity, String jobId) {
+    	JfrEvents events = JfrEvents.getInstance();
+    	if (events != null)
+    		events.end(process, activity, jobId);
+
+    	if (StackSampler.isEnabled())
+    		StackSampler.exit(activity.length() == 0 ? process : process + "/" + activity, jobId);
+    }
+
+    /**
+     * Returns the counters of the asynchronous profiling writer (submitted,
+     *  served, dropped, coalesced and failed captures), or an empty string if
+     *  asynchronous profiling has not been used.
+     */
+    public static String getProfileStatistics() {
+    	return ProfileWriter.getStatistics();
+    }
+    
     // initialize the hotspot diagnostic MBean field
     private static void initHotspotMBean() {
         if (hotspotMBean == null) {
@@ -0,0 +1,192 @@
+package nochum.bw5.utilities;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Properties;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Reports the XSDs and WSDLs of a BusinessWorks project that no process
+ * needs, and the cost of loading each schema together with everything it
+ * imports and includes.
+ * <p>
+ * "Optimize namespaces" removes the unused namespace declarations and
+ * imports of one process at a time, but the engine still loads every schema
+ * reached through other processes, shared resources and transitive imports
+ * and includes.  This class builds a SchemaGraph of the whole project and
+ * follows it from every process and service agent.  Schemas that are not
+ * reached are not needed by any process; a process import whose prefix is
+ * unused does not count.  Removing an unused schema together with the unused
+ * schemas it imports cuts engine startup time and permanent memory by far
+ * more than pruning a single prefix.
+ * <p>
+ * The output is a file of comma-separated values with one line per schema:
+ * the schema, xsd or wsdl, its size in bytes, the number and total size of
+ * the schemas it loads (itself included), the number of files referring to
+ * it, the number of processes and service agents that need it, whether it is
+ * unused, and for the root of each removable tree, the total size of the
+ * unused schemas it loads.  A root is an unused schema that no other unused
+ * schema refers to, except schemas it loads in turn: of unused schemas that
+ * import each other in a cycle, the first by name is the root.  Unused
+ * schemas come first, the largest removable tree first; the rest follow by
+ * load size.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class BWSchemas {
+
+	/**
+	 * The properties required to traverse the project filesystem
+	 */
+	private Properties _props = null;
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws ParserConfigurationException   If errors are incurred creating the parser.
+	 * @throws IOException                    If errors are incurred reading the project.
+	 */
+	public BWSchemas(Properties props) throws ParserConfigurationException, IOException, UsageException {
+		final String usageString = "\nUsage: Optimize schemas [options]\n\n" +
+				"   where options are:\n\n" +
+				"-output    <output location>    - Full path and file name for output report.\n" +
+				"-project   <project location>   - Full path to project on the filesystem.\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("projectRoot")) {
+			throw(new UsageException("Required input parameter '-project' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		writeResults(new SchemaGraph(_props.getProperty("projectRoot")));
+	}
+
+	private void writeResults(SchemaGraph graph) throws IOException {
+		// schema -> the processes and service agents that need it
+		HashMap<String, Integer> needed = new HashMap<String, Integer>();
+		// schema -> the files that refer to it
+		HashMap<String, ArrayList<String>> referrers = new HashMap<String, ArrayList<String>>();
+
+		for (SchemaGraph.FileNode node : graph.getFiles()) {
+			for (String reference : node.references) {
+				ArrayList<String> names = referrers.get(reference);
+				if (names == null) {
+					names = new ArrayList<String>();
+					referrers.put(reference, names);
+				}
+				names.add(node.name);
+			}
+
+			if (node.isProcess() || node.name.endsWith(".serviceagent")) {
+				for (String schema : graph.getSchemaClosure(node.name)) {
+					Integer count = needed.get(schema);
+					needed.put(schema, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+				}
+			}
+		}
+
+		ArrayList<SchemaInfo> schemas = new ArrayList<SchemaInfo>();
+		for (SchemaGraph.FileNode node : graph.getFiles()) {
+			if (!node.isSchema())
+				continue;
+
+			SchemaInfo info = new SchemaInfo();
+			info.node = node;
+			info.closure = graph.getSchemaClosure(node.name);
+			info.loadBytes = graph.getBytes(info.closure);
+			Integer count = needed.get(node.name);
+			info.needed = (count == null) ? 0 : count.intValue();
+			ArrayList<String> names = referrers.get(node.name);
+			info.referrers = (names == null) ? new ArrayList<String>() : names;
+			schemas.add(info);
+		}
+
+		HashMap<String, SchemaInfo> infos = new HashMap<String, SchemaInfo>();
+		for (SchemaInfo info : schemas)
+			infos.put(info.node.name, info);
+
+		// the unused schemas loading each other form a strongly connected component;
+		// a component that no other unused schema refers to is the root of a removable
+		// tree, represented by its first schema by name
+		for (SchemaInfo info : schemas) {
+			if (info.needed > 0)
+				continue;
+
+			ArrayList<SchemaInfo> component = new ArrayList<SchemaInfo>();
+			for (String schema : info.closure) {
+				SchemaInfo member = infos.get(schema);
+				if (member != null && member.needed == 0 && member.closure.contains(info.node.name))
+					component.add(member);
+			}
+
+			info.treeRoot = true;
+			for (SchemaInfo member : component) {
+				if (member.node.name.compareTo(info.node.name) < 0)
+					info.treeRoot = false;
+				for (String referrer : member.referrers) {
+					SchemaInfo other = infos.get(referrer);
+					if (other != null && other.needed == 0 && !component.contains(other))
+						info.treeRoot = false;
+				}
+			}
+
+			if (info.treeRoot) {
+				ArrayList<String> removable = new ArrayList<String>();
+				for (String schema : info.closure) {
+					if (needed.get(schema) == null)
+						removable.add(schema);
+				}
+				info.removableBytes = graph.getBytes(removable);
+			}
+		}
+
+		Collections.sort(schemas, new Comparator<SchemaInfo>() {
+			public int compare(SchemaInfo a, SchemaInfo b) {
+				if ((a.needed == 0) != (b.needed == 0))
+					return (a.needed == 0) ? -1 : 1;
+				if (a.removableBytes != b.removableBytes)
+					return (a.removableBytes < b.removableBytes) ? 1 : -1;
+				if (a.loadBytes != b.loadBytes)
+					return (a.loadBytes < b.loadBytes) ? 1 : -1;
+				return a.node.name.compareTo(b.node.name);
+			}
+		});
+
+		PrintWriter out = new PrintWriter(_props.getProperty("outLoc"));
+
+		for (SchemaInfo info : schemas) {
+			String name = info.node.name;
+			out.println(name + "," + name.substring(name.lastIndexOf('.') + 1) + "," + info.node.bytes + "," +
+					info.closure.size() + "," + info.loadBytes + "," + info.referrers.size() + "," +
+					info.needed + "," + (info.needed == 0) + "," + (info.treeRoot ? String.valueOf(info.removableBytes) : ""));
+		}
+
+		out.flush();
+		out.close();
+	}
+
+	/**
+	 * The findings for a single schema.
+	 */
+	class SchemaInfo {
+		private SchemaGraph.FileNode node = null;
+		private HashSet<String> closure = null;
+		private long loadBytes = 0;
+		private ArrayList<String> referrers = null;
+		private int needed = 0;
+		private boolean treeRoot = false;
+		private long removableBytes = 0;
+	}
+}
@@ -0,0 +1,234 @@
+package nochum.bw5.utilities;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import static nochum.bw5.utilities.BWProcessUtil.getChildElement;
+import static nochum.bw5.utilities.BWProcessUtil.getChildText;
+import static nochum.bw5.utilities.BWProcessUtil.getRelativeName;
+
+/**
+ * Describes the process starter of a BusinessWorks process and the settings
+ * that determine how many jobs it can create concurrently.
+ * <p>
+ * A JMS receiver in client-acknowledge, explicit-acknowledge or transactional
+ * mode holds each message until its job completes, so it cannot have more
+ * jobs in flight than it has sessions.  In auto-acknowledge mode messages
+ * are acknowledged on receipt and the receiver creates jobs as fast as
+ * messages arrive.  HTTP receivers are bounded by the HTTP server's processor
+ * threads, and timers fire one job at a time.  Other starters are bounded only
+ * by the flow limit configured for the engine.
+ * <p>
+ * A sequencing key forces jobs with the same key value to run one after the
+ * other.  A constant key therefore serializes every job of the starter, while
+ * a key computed from the message limits concurrency to the number of
+ * distinct key values in flight.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class BWStarter {
+
+	/**
+	 * The default number of HTTP server processor threads
+	 * (bw.plugin.http.server.maxProcessors)
+	 */
+	static final int DEFAULT_HTTP_PROCESSORS = 75;
+
+	/**
+	 * Indicates that a starter is not bounded by its own configuration
+	 */
+	static final int UNBOUNDED = -1;
+
+	/**
+	 * starter type -> description for reports
+	 */
+	private static final HashMap<String, String> descriptions = new HashMap<String, String>();
+	static {
+		descriptions.put("com.tibco.plugin.jms.JMSQueueEventSource", "JMS Queue Receiver");
+		descriptions.put("com.tibco.plugin.jms.JMSTopicEventSource", "JMS Topic Subscriber");
+		descriptions.put("com.tibco.plugin.http.HTTPEventSource", "HTTP Receiver");
+		descriptions.put("com.tibco.plugin.soap.SOAPEventSource", "SOAP Event Source");
+		descriptions.put("com.tibco.plugin.timer.TimerEventSource", "Timer");
+		descriptions.put("com.tibco.plugin.ae.AESubscriberActivity", "Adapter Subscriber");
+		descriptions.put("com.tibco.plugin.file.FileEventSource", "File Poller");
+	}
+
+	String processName = null;
+	String starterName = null;
+	String type = null;
+	String description = null;
+
+	/**
+	 * JMS settings.  maxSessions is 0 for non-JMS starters.
+	 */
+	int maxSessions = 0;
+	String ackMode = null;
+	boolean holdsMessage = false;
+
+	/**
+	 * The sequencing key expression from the starter's Misc tab, or null
+	 */
+	String sequencingKey = null;
+
+	/**
+	 * Loads the starters of every process in the project.
+	 * @param projectRoot                     the project root directory.
+	 * @param globalVars                      used to resolve settings that refer to global variables.
+	 * @throws ParserConfigurationException   If errors are incurred parsing the BW process.
+	 * @throws IOException                    If errors are incurred parsing the BW process.
+	 * @throws SAXException                   If errors are incurred parsing the BW process.
+	 */
+	static ArrayList<BWStarter> loadStarters(String projectRoot, BWGlobalVars globalVars)
+			throws ParserConfigurationException, SAXException, IOException {
+		ArrayList<BWStarter> starters = new ArrayList<BWStarter>();
+		traverse(projectRoot, new File(projectRoot), globalVars, starters);
+		return starters;
+	}
+
+	private static void traverse(String projectRoot, File file, BWGlobalVars globalVars, ArrayList<BWStarter> starters)
+			throws ParserConfigurationException, SAXException, IOException {
+		if (file.isDirectory()) {
+			String entries[] = file.list();
+			if (entries != null) {
+				for (String entry : entries) {
+					traverse(projectRoot, new File(file, entry), globalVars, starters);
+				}
+			}
+		} else if (file.getName().endsWith(".process")) {
+			DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+			DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+			Document doc = dBuilder.parse(file);
+
+			NodeList starterList = doc.getElementsByTagName("pd:starter");
+			if (starterList.getLength() > 0) {
+				starters.add(new BWStarter(getRelativeName(projectRoot, file),
+						(Element) starterList.item(0), globalVars));
+			}
+		}
+	}
+
+	BWStarter(String processName, Element starter, BWGlobalVars globalVars) {
+		this.processName = processName;
+		this.starterName = starter.getAttribute("name");
+		this.type = getChildText(starter, "pd:type");
+
+		description = descriptions.get(type);
+		if (description == null)
+			description = (type == null) ? "Unknown" : type.substring(type.lastIndexOf('.') + 1);
+
+		sequencingKey = findSequencingKey(starter);
+
+		if (isJms()) {
+			Element config = getChildElement(starter, "config");
+			Element session = getChildElement(config, "SessionAttributes");
+			if (session == null)
+				session = config;
+
+			maxSessions = 1;
+			String sessions = globalVars.resolve(getChildText(session, "maxSessions"));
+			if (sessions != null) {
+				try {
+					maxSessions = Integer.parseInt(sessions);
+				} catch (NumberFormatException nfe) {
+					// unresolved global variable -- keep the BW default
+				}
+			}
+
+			ackMode = describeAckMode(globalVars.resolve(getChildText(session, "acknowledgeMode")));
+			if ("true".equalsIgnoreCase(globalVars.resolve(getChildText(session, "transacted"))))
+				ackMode = "Transactional";
+
+			holdsMessage = !(ackMode.equals("Auto") || ackMode.equals("Dups OK") || ackMode.equals("No Acknowledge"));
+		}
+	}
+
+	boolean isJms() {
+		return (type != null && type.startsWith("com.tibco.plugin.jms."));
+	}
+
+	/**
+	 * Estimates the number of jobs the starter can have in flight, ignoring
+	 * any flow limit.
+	 * @param httpProcessors  the number of HTTP server processor threads.
+	 * @return the estimate, or UNBOUNDED.
+	 */
+	int getMaxConcurrentJobs(int httpProcessors) {
+		if (isConstantSequencingKey())
+			return 1;
+		else if (isJms())
+			return holdsMessage ? maxSessions : UNBOUNDED;
+		else if ("HTTP Receiver".equals(description) || "SOAP Event Source".equals(description))
+			return httpProcessors;
+		else if ("Timer".equals(description))
+			return 1;
+		else
+			return UNBOUNDED;
+	}
+
+	/**
+	 * Determines whether the sequencing key is a literal rather than an
+	 * expression evaluated against the incoming data.
+	 */
+	boolean isConstantSequencingKey() {
+		if (sequencingKey == null)
+			return false;
+
+		String key = sequencingKey.trim();
+		return (key.startsWith("'") || key.startsWith("\"") || !(key.contains("$") || key.contains("(")));
+	}
+
+	/**
+	 * Searches the starter for its sequencing key.  Depending on the BW
+	 * version this is stored as the select expression of a value-of beneath
+	 * a sequencing key element, or as the element's text.
+	 */
+	private static String findSequencingKey(Element starter) {
+		NodeList descendants = starter.getElementsByTagName("*");
+		for (int i = 0; i < descendants.getLength(); i++) {
+			Element element = (Element) descendants.item(i);
+			String nodeName = element.getNodeName();
+			String localName = nodeName.substring(nodeName.indexOf(':') + 1).toLowerCase();
+
+			if (localName.contains("sequencekey") || localName.contains("sequencingkey")) {
+				Element valueOf = getChildElement(element, "xsl:value-of");
+				String key = (valueOf != null) ? valueOf.getAttribute("select") : element.getTextContent();
+				key = key.trim();
+				return key.length() == 0 ? null : key;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Translates the JMS acknowledge mode setting, which Designer stores as
+	 * the JMS (or TIBCO EMS extension) numeric constant.
+	 */
+	private static String describeAckMode(String mode) {
+		if (mode == null || mode.equals("1") || mode.equalsIgnoreCase("auto"))
+			return "Auto";
+		else if (mode.equals("2") || mode.equalsIgnoreCase("client"))
+			return "Client";
+		else if (mode.equals("3") || mode.equalsIgnoreCase("dupsok"))
+			return "Dups OK";
+		else if (mode.equals("22"))
+			return "No Acknowledge";
+		else if (mode.equals("23") || mode.equals("24"))
+			return "Explicit Client";
+		else if (mode.equals("0") || mode.equalsIgnoreCase("transactional") || mode.equalsIgnoreCase("xa"))
+			return "Transactional";
+		else
+			return mode;
+	}
+}
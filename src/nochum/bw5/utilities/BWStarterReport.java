@@ -0,0 +1,130 @@
+package nochum.bw5.utilities;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import static nochum.bw5.utilities.BWProcessUtil.quote;
+
+/**
+ * Reports on the concurrency model of every process starter in a
+ * BusinessWorks project (JMS receivers, HTTP receivers, timers, adapter
+ * subscribers, ...).
+ * <p>
+ * For each starter the report shows the settings that govern how many jobs
+ * it creates: the JMS maximum number of sessions, the JMS acknowledge mode
+ * and whether it holds each message until the job completes (client,
+ * explicit or transactional acknowledgement), the sequencing key and the
+ * flow limit.  From these it estimates the maximum number of concurrent jobs
+ * the starter can create and compares it with the engine thread count:
+ * <ul>
+ * <li>a starter limited to a single job at a time serializes throughput no
+ * matter how many engine threads are available.
+ * <li>a starter that can create more jobs than there are engine threads
+ * floods the engine.  The excess jobs wait for a thread while holding their
+ * memory.
+ * </ul>
+ * The engine thread count, flow limits and HTTP processor threads are taken
+ * from the engine TRA given by -tra.  Without it the BW defaults are assumed.
+ * <p>
+ * The output is a file of comma-separated values with one line per starter:
+ * the process name, the starter name, the starter type, the maximum number of
+ * JMS sessions, the acknowledge mode, whether messages are held until the job
+ * completes, the sequencing key, the flow limit, the estimated maximum number
+ * of concurrent jobs, the engine thread count and an assessment.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class BWStarterReport {
+
+	/**
+	 * The properties collected by the Optimize facade class
+	 */
+	private Properties _props = null;
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws ParserConfigurationException   If errors are incurred parsing the BW process.
+	 * @throws IOException                    If errors are incurred parsing the BW process.
+	 * @throws SAXException                   If errors are incurred parsing the BW process.
+	 */
+	public BWStarterReport(Properties props) throws ParserConfigurationException, SAXException, IOException, UsageException {
+		final String usageString = "\nUsage: Optimize starters [options]\n\n" +
+				"   where options are:\n\n" +
+				"-output    <output location>    - Full path and file name for output report.\n" +
+				"-project   <project location>   - Full path to project on the filesystem.\n" +
+				"-tra       <tra location>       - Optional.  Full path to the engine TRA file.\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("projectRoot")) {
+			throw(new UsageException("Required input parameter '-project' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		Map<String, String> settings = new HashMap<String, String>();
+		if (_props.containsKey("traLoc")) {
+			File traFile = new File(_props.getProperty("traLoc"));
+			if (!traFile.isFile()) {
+				throw(new UsageException("Input parameter '-tra' must refer to a TRA file.", usageString));
+			}
+			settings = BWTra.loadTra(traFile);
+		}
+
+		String projectRoot = _props.getProperty("projectRoot");
+		writeResults(BWStarter.loadStarters(projectRoot, new BWGlobalVars(projectRoot)), settings);
+	}
+
+	/**
+	 * Writes one line per starter to the output report.
+	 * @throws IOException
+	 */
+	private void writeResults(Iterable<BWStarter> starters, Map<String, String> settings) throws IOException {
+		PrintWriter out = new PrintWriter(_props.getProperty("outLoc"));
+
+		int engineThreads = BWTra.getEngineThreads(settings);
+		int httpProcessors = BWTra.getHttpProcessors(settings);
+
+		for (BWStarter starter : starters) {
+			int flowLimit = BWTra.getFlowLimit(settings, starter.processName);
+			int maxJobs = starter.getMaxConcurrentJobs(httpProcessors);
+			if (flowLimit > 0 && (maxJobs == BWStarter.UNBOUNDED || flowLimit < maxJobs))
+				maxJobs = flowLimit;
+
+			String assessment = null;
+			if (maxJobs == BWStarter.UNBOUNDED)
+				assessment = "Unbounded; a burst of input floods the engine - set a flow limit";
+			else if (maxJobs == 1 && !"Timer".equals(starter.description))
+				assessment = "Serializes throughput to one job at a time";
+			else if (maxJobs > engineThreads)
+				assessment = "More concurrent jobs than engine threads; excess jobs wait holding memory";
+			else
+				assessment = "OK";
+
+			out.println(starter.processName + "," + starter.starterName + "," + starter.description + "," +
+					(starter.isJms() ? String.valueOf(starter.maxSessions) : "") + "," +
+					(starter.ackMode == null ? "" : starter.ackMode) + "," +
+					starter.holdsMessage + "," +
+					(starter.sequencingKey == null ? "" : quote(starter.sequencingKey)) + "," +
+					(flowLimit > 0 ? String.valueOf(flowLimit) : "") + "," +
+					(maxJobs == BWStarter.UNBOUNDED ? "unbounded" : String.valueOf(maxJobs)) + "," +
+					engineThreads + "," + assessment);
+		}
+
+		out.flush();
+		out.close();
+	}
+}
@@ -0,0 +1,268 @@
+package nochum.bw5.utilities;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Properties;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Estimates the cost of loading each process of a BusinessWorks project when
+ * the engine starts, and of each folder of processes, in order to find the
+ * processes to split out or deploy lazily to shorten engine restarts.
+ * <p>
+ * The engine parses every process definition, compiles its activities and
+ * mappings, and loads every schema its imports, activities and shared
+ * resources lead to, transitively.  The cost of a process is measured in
+ * kilobyte equivalents: a kilobyte of the process file counts 1, each
+ * activity (starter included) 2, each element of an input mapping 0.1, and
+ * each kilobyte of the schemas it loads 1, as found by a SchemaGraph.
+ * <p>
+ * With -calibrate &lt;runs&gt; every process and schema is parsed that many
+ * times on the local machine after one warm-up parse.  The mean milliseconds
+ * per kilobyte of processes and of schemas then convert the kilobyte
+ * equivalents of each into milliseconds.  This times the parse only; the
+ * compilation of mappings is still estimated by the weights above.  The
+ * report then begins with two calibration lines, for processes and for
+ * schemas, giving the milliseconds per kilobyte in the cost column.
+ * <p>
+ * Each folder holding processes, and each of its parent folders, is
+ * reported as the sum of its processes, except that a schema loaded by
+ * several of its processes is counted once, as an engine deploying the
+ * folder loads it once.  The output is a file of comma-separated values, the
+ * folders first and then the processes, each sorted by descending cost: the
+ * scope (folder or process), the name, the number of processes, the bytes,
+ * activities and mapping elements of the processes, the number and bytes of
+ * the schemas loaded, the estimated cost and its percentage of the cost of
+ * the whole project.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class BWStartupCost {
+
+	/**
+	 * The kilobyte equivalents of each part of a process
+	 */
+	private static final double PROCESS_KB   = 1.0;
+	private static final double ACTIVITY     = 2.0;
+	private static final double MAPPING_NODE = 0.1;
+	private static final double SCHEMA_KB    = 1.0;
+
+	/**
+	 * The properties required to traverse the project filesystem
+	 */
+	private Properties _props = null;
+
+	/**
+	 * The conversion of kilobyte equivalents into cost, which becomes
+	 * milliseconds when calibrated
+	 */
+	private double processRate = 1.0;
+	private double schemaRate = 1.0;
+	private boolean calibrated = false;
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws ParserConfigurationException   If errors are incurred creating the parser.
+	 * @throws IOException                    If errors are incurred reading the project.
+	 */
+	public BWStartupCost(Properties props) throws ParserConfigurationException, IOException, UsageException {
+		final String usageString = "\nUsage: Optimize startupCost [options]\n\n" +
+				"   where options are:\n\n" +
+				"-output    <output location>    - Full path and file name for output report.\n" +
+				"-project   <project location>   - Full path to project on the filesystem.\n" +
+				"-calibrate <runs>               - Optionally time this many local parses of each file to report milliseconds.\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("projectRoot")) {
+			throw(new UsageException("Required input parameter '-project' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		int runs = 0;
+		if (_props.containsKey("calibrateRuns")) {
+			try {
+				runs = Integer.parseInt(_props.getProperty("calibrateRuns"));
+			} catch (NumberFormatException nfe) {
+				runs = -1;
+			}
+			if (runs <= 0) {
+				throw(new UsageException("Input parameter '-calibrate' must be a positive number of runs.", usageString));
+			}
+		}
+
+		SchemaGraph graph = new SchemaGraph(_props.getProperty("projectRoot"));
+		if (runs > 0)
+			calibrate(graph, runs);
+
+		writeResults(graph);
+	}
+
+	/**
+	 * Times local parses of every process and schema to convert kilobyte
+	 * equivalents into milliseconds.
+	 */
+	private void calibrate(SchemaGraph graph, int runs) throws ParserConfigurationException, IOException {
+		DocumentBuilder dBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+
+		long processNanos = 0, processBytes = 0, schemaNanos = 0, schemaBytes = 0;
+		for (SchemaGraph.FileNode node : graph.getFiles()) {
+			if (!node.isProcess() && !node.isSchema())
+				continue;
+
+			// parse from memory so that only the parse is timed
+			File file = graph.getLocation(node);
+			byte[] content = new byte[(int) file.length()];
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				in.readFully(content);
+			} finally {
+				in.close();
+			}
+
+			long nanos = 0;
+			try {
+				for (int run = 0; run <= runs; run++) {
+					long started = System.nanoTime();
+					dBuilder.parse(new ByteArrayInputStream(content));
+					if (run > 0)
+						nanos += System.nanoTime() - started;
+				}
+			} catch (SAXException se) {
+				continue;
+			}
+
+			if (node.isProcess()) {
+				processNanos += nanos / runs;
+				processBytes += content.length;
+			} else {
+				schemaNanos += nanos / runs;
+				schemaBytes += content.length;
+			}
+		}
+
+		// milliseconds per kilobyte; a kind with no files takes the rate of the other
+		double processMsPerKb = (processBytes > 0) ? (processNanos / 1e6) / (processBytes / 1024.0) : -1;
+		double schemaMsPerKb = (schemaBytes > 0) ? (schemaNanos / 1e6) / (schemaBytes / 1024.0) : -1;
+		processRate = (processMsPerKb >= 0) ? processMsPerKb : Math.max(0, schemaMsPerKb);
+		schemaRate = (schemaMsPerKb >= 0) ? schemaMsPerKb : Math.max(0, processMsPerKb);
+		calibrated = true;
+	}
+
+	private void writeResults(SchemaGraph graph) throws IOException {
+		ArrayList<CostInfo> processes = new ArrayList<CostInfo>();
+		HashMap<String, CostInfo> folders = new HashMap<String, CostInfo>();
+		CostInfo project = new CostInfo();
+
+		for (SchemaGraph.FileNode node : graph.getFiles()) {
+			if (!node.isProcess())
+				continue;
+
+			CostInfo process = new CostInfo();
+			process.scope = "process";
+			process.name = node.name;
+			process.add(node, graph.getSchemaClosure(node.name));
+			processes.add(process);
+			project.add(node, process.schemas);
+
+			// every enclosing folder, to match any deployable unit
+			String folder = node.name;
+			while (folder.lastIndexOf('/') > 0) {
+				folder = folder.substring(0, folder.lastIndexOf('/'));
+				CostInfo folderCost = folders.get(folder);
+				if (folderCost == null) {
+					folderCost = new CostInfo();
+					folderCost.scope = "folder";
+					folderCost.name = folder;
+					folders.put(folder, folderCost);
+				}
+				folderCost.add(node, process.schemas);
+			}
+		}
+
+		project.schemaBytes = graph.getBytes(project.schemas);
+		for (CostInfo cost : folders.values())
+			cost.schemaBytes = graph.getBytes(cost.schemas);
+		for (CostInfo cost : processes)
+			cost.schemaBytes = graph.getBytes(cost.schemas);
+
+		Comparator<CostInfo> byCost = new Comparator<CostInfo>() {
+			public int compare(CostInfo a, CostInfo b) {
+				double diff = b.getCost() - a.getCost();
+				return (diff > 0) ? 1 : ((diff < 0) ? -1 : a.name.compareTo(b.name));
+			}
+		};
+
+		ArrayList<CostInfo> results = new ArrayList<CostInfo>(folders.values());
+		Collections.sort(results, byCost);
+		Collections.sort(processes, byCost);
+		results.addAll(processes);
+
+		double total = project.getCost();
+
+		PrintWriter out = new PrintWriter(_props.getProperty("outLoc"));
+
+		if (calibrated) {
+			out.println("calibration,processes,,,,,,," + String.format(Locale.US, "%.4f", processRate) + ",");
+			out.println("calibration,schemas,,,,,,," + String.format(Locale.US, "%.4f", schemaRate) + ",");
+		}
+
+		for (CostInfo cost : results) {
+			out.println(cost.scope + "," + cost.name + "," + cost.processes + "," + cost.bytes + "," +
+					cost.activities + "," + cost.mappingNodes + "," + cost.schemas.size() + "," + cost.schemaBytes + "," +
+					String.format(Locale.US, calibrated ? "%.3f" : "%.1f", cost.getCost()) + "," +
+					String.format(Locale.US, "%.1f", (total > 0) ? 100.0 * cost.getCost() / total : 0.0));
+		}
+
+		out.flush();
+		out.close();
+	}
+
+	/**
+	 * The load cost of a process or of the processes of a folder.
+	 */
+	class CostInfo {
+		private String scope = null;
+		private String name = null;
+		private int processes = 0;
+		private long bytes = 0;
+		private long activities = 0;
+		private long mappingNodes = 0;
+		private long schemaBytes = 0;
+		private HashSet<String> schemas = new HashSet<String>();
+
+		void add(SchemaGraph.FileNode process, HashSet<String> processSchemas) {
+			processes++;
+			bytes += process.bytes;
+			activities += process.activities;
+			mappingNodes += process.mappingNodes;
+			schemas.addAll(processSchemas);
+		}
+
+		public double getCost() {
+			double processCost = (bytes / 1024.0) * PROCESS_KB + activities * ACTIVITY + mappingNodes * MAPPING_NODE;
+			return processCost * processRate + (schemaBytes / 1024.0) * SCHEMA_KB * schemaRate;
+		}
+	}
+}
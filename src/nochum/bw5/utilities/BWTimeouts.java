@@ -0,0 +1,307 @@
+package nochum.bw5.utilities;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Properties;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import static nochum.bw5.utilities.BWProcessUtil.getChildElement;
+import static nochum.bw5.utilities.BWProcessUtil.getChildElements;
+import static nochum.bw5.utilities.BWProcessUtil.getChildText;
+import static nochum.bw5.utilities.BWProcessUtil.getRelativeName;
+import static nochum.bw5.utilities.BWProcessUtil.quote;
+
+/**
+ * Audits the timeouts of the activities in a BusinessWorks project that call
+ * out to other systems or wait for messages.
+ * <p>
+ * An HTTP, SOAP, JDBC or JMS call without a timeout holds its engine thread
+ * for as long as the remote system takes to answer, which may be forever.
+ * When enough jobs are stuck in such calls the engine thread pool is
+ * exhausted and the whole engine stops processing.  The same applies to JMS
+ * receive and wait activities that block without a limit.
+ * <p>
+ * The timeout of each activity is taken from its configuration or, for the
+ * activities that take it as input, from its input bindings.  Values that
+ * refer to global variables are resolved using the default values in the
+ * project's defaultVars directory.  The following are reported:
+ * <ul>
+ * <li>activities with no timeout configured.
+ * <li>activities with a timeout of zero, which BW treats as "wait forever".
+ * <li>activities whose timeout exceeds the ceiling specified by -maxTimeout
+ * (60 seconds by default).
+ * <li>activities whose timeout refers to an undefined global variable.
+ * </ul>
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class BWTimeouts {
+
+	/**
+	 * The default ceiling, in seconds, above which a timeout is reported
+	 */
+	private static final double DEFAULT_CEILING = 60;
+
+	/**
+	 * activity type -> where and how that type configures its timeout
+	 */
+	private static final HashMap<String, TimeoutRule> rules = new HashMap<String, TimeoutRule>();
+	static {
+		TimeoutRule jdbc = new TimeoutRule("JDBC", 1, false, "timeout");
+		rules.put("com.tibco.plugin.jdbc.JDBCQueryActivity", jdbc);
+		rules.put("com.tibco.plugin.jdbc.JDBCUpdateActivity", jdbc);
+		rules.put("com.tibco.plugin.jdbc.JDBCCallActivity", jdbc);
+		rules.put("com.tibco.plugin.jdbc.JDBCGeneralActivity", jdbc);
+
+		rules.put("com.tibco.plugin.http.client.HttpRequestActivity",
+				new TimeoutRule("Send HTTP Request", 0.001, false, "timeout"));
+		rules.put("com.tibco.plugin.soap.SOAPSendReceiveActivity",
+				new TimeoutRule("SOAP Request Reply", 0.001, false, "timeout"));
+
+		TimeoutRule requestor = new TimeoutRule("JMS Request Reply", 0.001, true, "requestTimeout", "timeout");
+		rules.put("com.tibco.plugin.jms.JMSQueueRequestReplyActivity", requestor);
+		rules.put("com.tibco.plugin.jms.JMSTopicRequestReplyActivity", requestor);
+
+		rules.put("com.tibco.plugin.jms.JMSQueueGetMessageActivity",
+				new TimeoutRule("Get JMS Queue Message", 0.001, true, "timeout"));
+
+		TimeoutRule jmsWait = new TimeoutRule("Wait for JMS Message", 0.001, true, "timeout");
+		rules.put("com.tibco.plugin.jms.JMSQueueSignalInActivity", jmsWait);
+		rules.put("com.tibco.plugin.jms.JMSTopicSignalInActivity", jmsWait);
+	}
+
+	/**
+	 * Applies to wait activities of other palettes (Wait for HTTP Request,
+	 * Wait for Notification, ...) that are not listed explicitly.
+	 */
+	private static final TimeoutRule genericWait = new TimeoutRule("Wait", 0.001, true, "timeout");
+
+	private PrintWriter out = null;
+
+	/**
+	 * The properties required to traverse the project filesystem
+	 */
+	private Properties _props = null;
+
+	/**
+	 * The default values of the project's global variables
+	 */
+	private BWGlobalVars globalVars = null;
+
+	/**
+	 * timeouts above this number of seconds are reported
+	 */
+	private double ceiling = DEFAULT_CEILING;
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws ParserConfigurationException   If errors are incurred parsing the BW process.
+	 * @throws IOException                    If errors are incurred parsing the BW process.
+	 * @throws SAXException                   If errors are incurred parsing the BW process.
+	 */
+	public BWTimeouts(Properties props) throws ParserConfigurationException, SAXException, IOException, UsageException {
+		final String usageString = "\nUsage: Optimize timeouts [options]\n\n" +
+				"   where options are:\n\n" +
+				"-output     <output location>    - Full path and file name for output report.\n" +
+				"-project    <project location>   - Full path to project on the filesystem.\n" +
+				"-maxTimeout <seconds>            - Optional.  Timeouts above this value are reported (default 60).\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("projectRoot")) {
+			throw(new UsageException("Required input parameter '-project' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		if (_props.containsKey("maxTimeout")) {
+			try {
+				ceiling = Double.parseDouble(_props.getProperty("maxTimeout"));
+			} catch (NumberFormatException nfe) {
+				throw(new UsageException("Input parameter '-maxTimeout' must be a number of seconds.", usageString));
+			}
+		}
+
+		globalVars = new BWGlobalVars(_props.getProperty("projectRoot"));
+
+		out = new PrintWriter(_props.getProperty("outLoc"));
+		traverse(new File(_props.getProperty("projectRoot")));
+		out.close();
+	}
+
+	/**
+	 * Works on a single file system entry and
+	 * calls itself recursively if it turns out
+	 * to be a directory.
+	 * @param  file                           A file or a directory to process
+	 * @throws ParserConfigurationException   If errors are incurred parsing the BW process.
+	 * @throws IOException                    If errors are incurred parsing the BW process.
+	 * @throws SAXException                   If errors are incurred parsing the BW process.
+	 */
+	private void traverse( File file ) throws ParserConfigurationException, SAXException, IOException {
+       // Check if it is a directory
+       if( file.isDirectory() ) {
+          // Get a list of all the entries in the directory
+          String entries[] = file.list() ;
+
+          // Ensure that the list is not null
+          if( entries != null ) {
+             // Loop over all the entries
+             for( String entry : entries ) {
+                // Recursive call to traverse
+                traverse( new File(file,entry) ) ;
+             }
+          }
+       } else {
+    	   if (file.getName().endsWith(".process")) {
+    		   processBWProcess(file);
+    	   }
+       }
+	}
+
+	/**
+	 * @param bwProcess
+	 * @throws ParserConfigurationException   If errors are incurred parsing the BW process.
+	 * @throws IOException                    If errors are incurred parsing the BW process.
+	 * @throws SAXException                   If errors are incurred parsing the BW process.
+	 */
+	private void processBWProcess(File bwProcess) throws ParserConfigurationException, SAXException, IOException {
+		DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+		DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+		Document doc = dBuilder.parse(bwProcess);
+
+		doc.getDocumentElement().normalize();
+
+		processContainer(getRelativeName(_props.getProperty("projectRoot"), bwProcess),
+				doc.getDocumentElement(), "");
+	}
+
+	/**
+	 * Evaluates the activities directly beneath the parent element and calls
+	 * itself recursively in order to handle nested groups.
+	 */
+	private void processContainer(String processName, Element parent, String groupPath) {
+		for (Element activity : getChildElements(parent, "pd:activity")) {
+			String type = getChildText(activity, "pd:type");
+			TimeoutRule rule = rules.get(type);
+			if (rule == null && type != null && (type.endsWith("SignalInActivity") || type.endsWith("WaitActivity")))
+				rule = genericWait;
+
+			if (rule != null) {
+				processActivity(processName, groupPath + activity.getAttribute("name"), activity, rule);
+			}
+		}
+
+		for (Element group : getChildElements(parent, "pd:group")) {
+			processContainer(processName, group, groupPath + group.getAttribute("name") + "/");
+		}
+	}
+
+	/**
+	 * Locates, resolves and evaluates the timeout of a single activity.
+	 */
+	private void processActivity(String processName, String activityPath, Element activity, TimeoutRule rule) {
+		String setting = findSetting(getChildElement(activity, "config"), rule.names);
+		if (setting == null)
+			setting = findSetting(getChildElement(activity, "pd:inputBindings"), rule.names);
+
+		String finding = null;
+		if (setting == null) {
+			finding = rule.blocking ? "Blocks without a timeout" : "No timeout configured";
+		} else {
+			String resolved = globalVars.resolve(setting);
+			if (BWGlobalVars.isReference(resolved)) {
+				finding = "Timeout refers to an undefined global variable";
+			} else {
+				try {
+					double seconds = Double.parseDouble(resolved) * rule.secondsPerUnit;
+					if (seconds <= 0)
+						finding = rule.blocking ? "Blocks indefinitely (timeout of 0)" : "Infinite timeout (timeout of 0)";
+					else if (seconds > ceiling)
+						finding = "Timeout of " + seconds + "s exceeds ceiling of " + ceiling + "s";
+				} catch (NumberFormatException nfe) {
+					// computed at run time from the job data -- cannot be evaluated
+				}
+			}
+
+			if (!setting.equals(resolved))
+				setting = setting + " = " + resolved;
+		}
+
+		if (finding != null) {
+			out.println(processName + "," + activityPath + "," + rule.description + "," +
+					(setting == null ? "" : quote(setting)) + "," + finding);
+		}
+	}
+
+	/**
+	 * Searches beneath the element for the first element with one of the
+	 * given local names (ignoring case), and returns its setting.  For input
+	 * bindings the setting is the select expression of a value-of with any
+	 * quotes around a literal removed.
+	 * @return the setting, or null if the element is not present or empty.
+	 */
+	private static String findSetting(Element parent, String[] names) {
+		if (parent == null)
+			return null;
+
+		NodeList descendants = parent.getElementsByTagName("*");
+		for (String name : names) {
+			for (int i = 0; i < descendants.getLength(); i++) {
+				Element element = (Element) descendants.item(i);
+				String nodeName = element.getNodeName();
+				String localName = nodeName.substring(nodeName.indexOf(':') + 1);
+
+				if (localName.equalsIgnoreCase(name)) {
+					Element valueOf = getChildElement(element, "xsl:value-of");
+					String value = (valueOf != null) ? valueOf.getAttribute("select") : element.getTextContent();
+					value = value.trim();
+					if (value.length() > 1 && (value.startsWith("'") || value.startsWith("\"")))
+						value = value.substring(1, value.length() - 1);
+
+					return value.length() == 0 ? null : value;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Describes where an activity type configures its timeout.
+	 */
+	static class TimeoutRule {
+		private String description = null;
+		private double secondsPerUnit = 1;
+		private boolean blocking = false;
+		private String[] names = null;
+
+		/**
+		 * @param description     the activity description used in the report.
+		 * @param secondsPerUnit  1 for timeouts in seconds, 0.001 for milliseconds.
+		 * @param blocking        whether the activity waits for an incoming message.
+		 * @param names           the element names that hold the timeout, in order of preference.
+		 */
+		TimeoutRule(String description, double secondsPerUnit, boolean blocking, String... names) {
+			this.description = description;
+			this.secondsPerUnit = secondsPerUnit;
+			this.blocking = blocking;
+			this.names = names;
+		}
+	}
+}
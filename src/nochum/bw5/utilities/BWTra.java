@@ -0,0 +1,476 @@
+package nochum.bw5.utilities;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Performs sanity checks on the settings in BusinessWorks engine TRA files
+ * and engine properties files that matter most for performance:
+ * <ul>
+ * <li>the maximum heap size relative to the memory limit of the container or
+ * host (-containerMem), including thread stacks and PermGen/Metaspace.
+ * <li>an initial heap size that differs from the maximum.
+ * <li>EngineThreadCount.
+ * <li>per-process flow limits and max jobs.  Max jobs without an activation
+ * limit causes jobs to be paged to disk.
+ * <li>garbage collection flags in java.extended.properties: GC logging, heap
+ * dumps on OutOfMemoryError and explicit System.gc() calls.
+ * <li>trace and statistics collection settings left enabled.
+ * </ul>
+ * When the project is also specified, the process starters in the project
+ * are cross-checked against the engine: starters that can create more
+ * concurrent jobs than EngineThreadCount can serve, and starters that are
+ * unbounded and have no flow limit, are reported.
+ * <p>
+ * Each .tra and .properties file found at the -tra location is evaluated
+ * separately.  The output is a file of comma-separated values with one line
+ * per finding: the file, the setting, its value, a severity (ERROR, WARNING
+ * or INFO) and a description of the finding.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class BWTra {
+
+	/**
+	 * The BW default for EngineThreadCount
+	 */
+	static final int DEFAULT_ENGINE_THREADS = 8;
+
+	/**
+	 * The fraction of the container memory that the heap should not exceed
+	 */
+	private static final double MAX_HEAP_FRACTION = 0.75;
+
+	private static final Pattern XMX  = Pattern.compile("-Xmx(\\S+)");
+	private static final Pattern XMS  = Pattern.compile("-Xms(\\S+)");
+	private static final Pattern XSS  = Pattern.compile("-Xss(\\S+)");
+	private static final Pattern PERM = Pattern.compile("-XX:Max(?:Perm|Metaspace)Size=(\\S+)");
+
+	private PrintWriter out = null;
+
+	/**
+	 * The properties collected by the Optimize facade class
+	 */
+	private Properties _props = null;
+
+	/**
+	 * The process starters of the project, or null if no project was given
+	 */
+	private ArrayList<BWStarter> starters = null;
+
+	/**
+	 * The memory limit of the container in bytes, or 0 if not specified
+	 */
+	private long containerMem = 0;
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws ParserConfigurationException   If errors are incurred parsing a BW process.
+	 * @throws IOException                    If errors are incurred reading a file.
+	 * @throws SAXException                   If errors are incurred parsing a BW process.
+	 */
+	public BWTra(Properties props) throws ParserConfigurationException, SAXException, IOException, UsageException {
+		final String usageString = "\nUsage: Optimize tra [options]\n\n" +
+				"   where options are:\n\n" +
+				"-tra          <tra location>       - Full path to a TRA or properties file, or a directory containing them.\n" +
+				"-output       <output location>    - Full path and file name for output report.\n" +
+				"-project      <project location>   - Optional.  Full path to project on the filesystem, for starter cross-checks.\n" +
+				"-containerMem <size>               - Optional.  Memory limit of the container or host, e.g. 4096M or 4G.\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("traLoc")) {
+			throw(new UsageException("Required input parameter '-tra' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		if (_props.containsKey("containerMem")) {
+			containerMem = parseSize(_props.getProperty("containerMem"), 1024 * 1024);
+			if (containerMem <= 0) {
+				throw(new UsageException("Input parameter '-containerMem' must be a size such as 4096M or 4G.", usageString));
+			}
+		}
+
+		if (_props.containsKey("projectRoot")) {
+			String projectRoot = _props.getProperty("projectRoot");
+			starters = BWStarter.loadStarters(projectRoot, new BWGlobalVars(projectRoot));
+		}
+
+		out = new PrintWriter(_props.getProperty("outLoc"));
+		traverse(new File(_props.getProperty("traLoc")));
+		out.close();
+	}
+
+	/**
+	 * Works on a single file system entry and
+	 * calls itself recursively if it turns out
+	 * to be a directory.
+	 * @param file A file or a directory to process
+	 * @throws IOException  If errors are incurred reading the file.
+	 */
+	private void traverse( File file ) throws IOException {
+       // Check if it is a directory
+       if( file.isDirectory() ) {
+          // Get a list of all the entries in the directory
+          String entries[] = file.list() ;
+
+          // Ensure that the list is not null
+          if( entries != null ) {
+             // Loop over all the entries
+             for( String entry : entries ) {
+                // Recursive call to traverse
+                traverse( new File(file,entry) ) ;
+             }
+          }
+       } else {
+    	   if (file.getName().endsWith(".tra") || file.getName().endsWith(".properties")) {
+    		   processTra(file);
+    	   }
+       }
+	}
+
+	/**
+	 * Reads a TRA or properties file into an ordered map.  TRA files are not
+	 * quite Java properties files -- they contain unescaped backslashes in
+	 * Windows paths -- so they are parsed line by line.
+	 * @param traFile  the file to read.
+	 * @return the settings in the order in which they appear.
+	 * @throws IOException  If errors are incurred reading the file.
+	 */
+	static LinkedHashMap<String, String> loadTra(File traFile) throws IOException {
+		LinkedHashMap<String, String> settings = new LinkedHashMap<String, String>();
+		BufferedReader reader = new BufferedReader(new FileReader(traFile));
+
+		String line = null;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#") || line.startsWith("!"))
+				continue;
+
+			int separator = line.indexOf('=');
+			if (separator < 0) {
+				separator = line.indexOf(' ');
+				if (separator < 0)
+					separator = line.indexOf('\t');
+			}
+
+			if (separator > 0)
+				settings.put(line.substring(0, separator).trim(), line.substring(separator + 1).trim());
+			else
+				settings.put(line, "");
+		}
+
+		reader.close();
+		return settings;
+	}
+
+	/**
+	 * Returns the EngineThreadCount of the settings, or the BW default.
+	 */
+	static int getEngineThreads(Map<String, String> settings) {
+		String threads = settings.get("EngineThreadCount");
+		if (threads != null) {
+			try {
+				return Integer.parseInt(threads);
+			} catch (NumberFormatException nfe) {
+				// fall through to the default
+			}
+		}
+
+		return DEFAULT_ENGINE_THREADS;
+	}
+
+	/**
+	 * Returns the flow limit configured for a process, or 0 if none is.  Flow
+	 * limits are matched on the setting name ending with "FlowLimit" and
+	 * containing the process name.
+	 */
+	static int getFlowLimit(Map<String, String> settings, String processName) {
+		String shortName = processName.endsWith(".process") ?
+				processName.substring(0, processName.length() - 8) : processName;
+
+		for (Map.Entry<String, String> setting : settings.entrySet()) {
+			String key = setting.getKey();
+			if (key.toLowerCase().endsWith("flowlimit") && key.contains(shortName)) {
+				try {
+					return Integer.parseInt(setting.getValue());
+				} catch (NumberFormatException nfe) {
+					// ignore unparseable values
+				}
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Returns the number of HTTP server processor threads of the settings, or
+	 * the BW default.
+	 */
+	static int getHttpProcessors(Map<String, String> settings) {
+		String processors = settings.get("bw.plugin.http.server.maxProcessors");
+		if (processors != null) {
+			try {
+				return Integer.parseInt(processors);
+			} catch (NumberFormatException nfe) {
+				// fall through to the default
+			}
+		}
+
+		return BWStarter.DEFAULT_HTTP_PROCESSORS;
+	}
+
+	/**
+	 * Evaluates a single TRA or properties file.
+	 * @throws IOException  If errors are incurred reading the file.
+	 */
+	private void processTra(File traFile) throws IOException {
+		LinkedHashMap<String, String> settings = loadTra(traFile);
+		String fileName = traFile.getPath();
+
+		checkMemory(fileName, settings);
+		checkThreads(fileName, settings);
+		checkFlowControl(fileName, settings);
+		checkGCFlags(fileName, settings);
+		checkTracing(fileName, settings);
+
+		if (starters != null)
+			checkStarters(fileName, settings);
+	}
+
+	private void checkMemory(String fileName, Map<String, String> settings) {
+		String extended = settings.get("java.extended.properties");
+		if (extended == null)
+			extended = "";
+
+		// heap sizes are in megabytes in the TRA unless a unit is given
+		long maxHeap = parseSize(settings.get("java.heap.size.max"), 1024 * 1024);
+		long initialHeap = parseSize(settings.get("java.heap.size.initial"), 1024 * 1024);
+		long stackSize = parseSize(settings.get("java.thread.stack.size"), 1024 * 1024);
+
+		Matcher xmx = XMX.matcher(extended);
+		if (xmx.find()) {
+			long extendedMax = parseSize(xmx.group(1), 1);
+			if (maxHeap > 0 && extendedMax != maxHeap)
+				report(fileName, "java.extended.properties", xmx.group(), "WARNING",
+						"Conflicts with java.heap.size.max; the JVM uses whichever comes last on the command line");
+			maxHeap = extendedMax;
+		}
+
+		Matcher xms = XMS.matcher(extended);
+		if (xms.find())
+			initialHeap = parseSize(xms.group(1), 1);
+
+		Matcher xss = XSS.matcher(extended);
+		if (xss.find())
+			stackSize = parseSize(xss.group(1), 1);
+
+		if (maxHeap <= 0) {
+			report(fileName, "java.heap.size.max", "", "WARNING",
+					"No maximum heap size; the JVM default depends on the host rather than the engine's needs");
+			return;
+		}
+
+		if (initialHeap > 0 && initialHeap < maxHeap)
+			report(fileName, "java.heap.size.initial", settings.get("java.heap.size.initial"), "INFO",
+					"Initial heap is smaller than the maximum; each heap expansion requires a full collection");
+
+		if (containerMem > 0) {
+			long permSize = 0;
+			Matcher perm = PERM.matcher(extended);
+			if (perm.find())
+				permSize = parseSize(perm.group(1), 1);
+
+			// thread stacks are 1M by default on 64-bit JVMs; allow for the engine threads plus housekeeping
+			long threads = getEngineThreads(settings) + 50;
+			long footprint = maxHeap + permSize + threads * (stackSize > 0 ? stackSize : 1024 * 1024);
+
+			if (footprint > containerMem)
+				report(fileName, "java.heap.size.max", toMegabytes(maxHeap), "ERROR",
+						"Heap + PermGen/Metaspace + thread stacks (" + toMegabytes(footprint) +
+						") exceed the container memory limit (" + toMegabytes(containerMem) + ")");
+			else if (maxHeap > containerMem * MAX_HEAP_FRACTION)
+				report(fileName, "java.heap.size.max", toMegabytes(maxHeap), "WARNING",
+						"Heap exceeds " + (int) (MAX_HEAP_FRACTION * 100) + "% of the container memory limit (" +
+						toMegabytes(containerMem) + "), leaving little room for native memory");
+		}
+	}
+
+	private void checkThreads(String fileName, Map<String, String> settings) {
+		String threads = settings.get("EngineThreadCount");
+		if (threads == null) {
+			report(fileName, "EngineThreadCount", "", "INFO",
+					"Not set; the engine uses the default of " + DEFAULT_ENGINE_THREADS + " threads");
+		} else {
+			int engineThreads = getEngineThreads(settings);
+			if (engineThreads < DEFAULT_ENGINE_THREADS)
+				report(fileName, "EngineThreadCount", threads, "WARNING",
+						"Fewer threads than the BW default of " + DEFAULT_ENGINE_THREADS);
+			else if (engineThreads > 64)
+				report(fileName, "EngineThreadCount", threads, "WARNING",
+						"A large thread count increases context switching and the memory held by concurrent jobs");
+		}
+	}
+
+	private void checkFlowControl(String fileName, Map<String, String> settings) {
+		// the prefixes (the key less its setting name) of the processes with an activation limit
+		HashSet<String> activationLimits = new HashSet<String>();
+		for (Map.Entry<String, String> setting : settings.entrySet()) {
+			String key = setting.getKey().toLowerCase();
+			if (key.endsWith("activationlimit") && "true".equalsIgnoreCase(setting.getValue()))
+				activationLimits.add(key.substring(0, key.length() - "activationlimit".length()));
+		}
+
+		for (Map.Entry<String, String> setting : settings.entrySet()) {
+			String key = setting.getKey().toLowerCase();
+			String value = setting.getValue();
+
+			if (key.endsWith("flowlimit")) {
+				int limit = parseInt(value);
+				if (limit > 0 && limit < getEngineThreads(settings))
+					report(fileName, setting.getKey(), value, "INFO",
+							"Flow limit is below EngineThreadCount; the starter is throttled before the engine is busy");
+			} else if (key.endsWith("maxjobs") || key.endsWith("maxjob")) {
+				String prefix = key.substring(0, key.length() - (key.endsWith("maxjobs") ? "maxjobs" : "maxjob").length());
+				if (parseInt(value) > 0 && !activationLimits.contains(prefix))
+					report(fileName, setting.getKey(), value, "WARNING",
+							"Max jobs without an activation limit pages jobs to disk when the limit is reached");
+			}
+		}
+	}
+
+	private void checkGCFlags(String fileName, Map<String, String> settings) {
+		String extended = settings.get("java.extended.properties");
+		if (extended == null)
+			extended = "";
+
+		if (!extended.contains("-verbose:gc") && !extended.contains("-Xloggc") &&
+				!extended.contains("PrintGCDetails") && !extended.contains("-Xlog:gc"))
+			report(fileName, "java.extended.properties", "", "INFO",
+					"GC logging is not enabled; pauses cannot be diagnosed after the fact");
+
+		if (!extended.contains("HeapDumpOnOutOfMemoryError"))
+			report(fileName, "java.extended.properties", "", "INFO",
+					"-XX:+HeapDumpOnOutOfMemoryError is not set");
+
+		if (!extended.contains("DisableExplicitGC") && !extended.contains("ExplicitGCInvokesConcurrent"))
+			report(fileName, "java.extended.properties", "", "INFO",
+					"Explicit System.gc() calls trigger a stop-the-world full collection");
+	}
+
+	private void checkTracing(String fileName, Map<String, String> settings) {
+		for (Map.Entry<String, String> setting : settings.entrySet()) {
+			String key = setting.getKey();
+			String lower = key.toLowerCase();
+
+			if (!"true".equalsIgnoreCase(setting.getValue()))
+				continue;
+
+			if (key.startsWith("Trace.") && !key.startsWith("Trace.Engine"))
+				report(fileName, key, setting.getValue(), "WARNING",
+						"Tracing is enabled; every job writes trace output");
+			else if (lower.startsWith("bw.engine.showinput") || lower.startsWith("bw.engine.showoutput"))
+				report(fileName, key, setting.getValue(), "WARNING",
+						"Activity input/output is serialized for every activity");
+			else if (lower.contains("stats"))
+				report(fileName, key, setting.getValue(), "INFO",
+						"Statistics collection is enabled and adds per-activity overhead");
+		}
+	}
+
+	/**
+	 * Cross-checks the process starters of the project against the engine
+	 * thread count and flow limits.
+	 */
+	private void checkStarters(String fileName, Map<String, String> settings) {
+		int engineThreads = getEngineThreads(settings);
+		int httpProcessors = getHttpProcessors(settings);
+
+		for (BWStarter starter : starters) {
+			int flowLimit = getFlowLimit(settings, starter.processName);
+			int maxJobs = starter.getMaxConcurrentJobs(httpProcessors);
+
+			if (maxJobs == BWStarter.UNBOUNDED && flowLimit <= 0) {
+				report(fileName, starter.processName, starter.description, "WARNING",
+						"Starter can create an unbounded number of jobs and has no flow limit");
+			} else {
+				int concurrent = (flowLimit > 0 && (maxJobs == BWStarter.UNBOUNDED || flowLimit < maxJobs)) ? flowLimit : maxJobs;
+				if (concurrent > engineThreads)
+					report(fileName, starter.processName, starter.description, "INFO",
+							"Starter can create " + concurrent + " concurrent jobs but EngineThreadCount is " +
+							engineThreads + "; excess jobs wait for a thread while holding memory");
+			}
+		}
+	}
+
+	private void report(String fileName, String setting, String value, String severity, String finding) {
+		out.println(fileName + "," + setting + "," + (value == null ? "" : value) + "," + severity + "," + finding);
+	}
+
+	/**
+	 * Parses a JVM-style size such as 512M, 2g or 1048576.
+	 * @param size         the size to parse.
+	 * @param defaultUnit  the multiplier to apply when no unit is given.
+	 * @return the size in bytes, or 0 if the size is missing or invalid.
+	 */
+	static long parseSize(String size, long defaultUnit) {
+		if (size == null)
+			return 0;
+
+		size = size.trim().toUpperCase();
+		if (size.endsWith("B"))
+			size = size.substring(0, size.length() - 1);
+		if (size.length() == 0)
+			return 0;
+
+		long unit = defaultUnit;
+		char last = size.charAt(size.length() - 1);
+		if (last == 'K')
+			unit = 1024L;
+		else if (last == 'M')
+			unit = 1024L * 1024;
+		else if (last == 'G')
+			unit = 1024L * 1024 * 1024;
+
+		if (!Character.isDigit(last))
+			size = size.substring(0, size.length() - 1);
+
+		try {
+			return Long.parseLong(size) * unit;
+		} catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
+
+	private static int parseInt(String value) {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
+
+	private static String toMegabytes(long bytes) {
+		return (bytes / (1024 * 1024)) + "M";
+	}
+}
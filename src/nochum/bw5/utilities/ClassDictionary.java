@@ -0,0 +1,39 @@
+package nochum.bw5.utilities;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Assigns dense integer ids to names (classes or processes) as they are
+ * first seen, so that counts can be held in arrays indexed by id rather than
+ * in maps keyed by string.  Safe for use by several parsing threads.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class ClassDictionary {
+
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private final ArrayList<String> names = new ArrayList<String>();
+
+	/**
+	 * Returns the id of the name, assigning the next id if it is new.
+	 */
+	synchronized int intern(String name) {
+		Integer id = ids.get(name);
+		if (id == null) {
+			id = Integer.valueOf(names.size());
+			ids.put(name, id);
+			names.add(name);
+		}
+		return id.intValue();
+	}
+
+	synchronized String getName(int id) {
+		return names.get(id);
+	}
+
+	synchronized int size() {
+		return names.size();
+	}
+}
@@ -0,0 +1,589 @@
+package nochum.bw5.utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Attributes the GC pauses of an engine to the BusinessWorks processes whose
+ * jobs were running when they occurred, so that pause time and promotion can
+ * be traced to processes rather than to the engine as a whole.
+ * <p>
+ * The GC log (-gclog, a file or a directory of rotated files, optionally
+ * gzipped) is read a line at a time.  Both formats written by HotSpot are
+ * understood:
+ * <ul>
+ * <li>The legacy format of -Xloggc with -XX:+PrintGCDetails, ideally with
+ * -XX:+PrintGCDateStamps.  The pause time is the last "secs" figure of each
+ * GC record; records split across lines by other output are reassembled.
+ * Promotion is the amount by which the young generation shrank beyond the
+ * heap as a whole, or for G1 the growth of the heap outside eden and the
+ * survivors.
+ * <li>The unified format of -Xlog:gc* (Java 9 and later), ideally with the
+ * time decoration.  Each "Pause" line ending in milliseconds is a pause, and
+ * promotion is the growth of the old generation reported by the gc+heap lines
+ * of the same young collection.
+ * </ul>
+ * Concurrent phases are not pauses and are ignored.
+ * <p>
+ * The jobs are read from the -profiles directory: the probe files of a
+ * project instrumented with "Optimize instrument -mode probe", and the start
+ * and end snapshots of the memory profiling mode.  Activity probes are
+ * ignored.  Probe files record the wall clock and the JVM start time, which
+ * place GC logs that carry only the JVM uptime on the same clock as the
+ * jobs; snapshots need a GC log with date stamps.
+ * <p>
+ * The output is a file of comma-separated values with one line per process,
+ * sorted by attributed pause time: the process, the number of jobs, their
+ * total elapsed milliseconds, the number of pauses that occurred while any of
+ * its jobs was active, their total milliseconds and promoted bytes, and the
+ * share of that pause time and promotion attributed to the process.  A pause
+ * that overlaps several jobs is shared among them in equal parts; a called
+ * subprocess counts as a job of its own.  The pauses that occurred while no
+ * job was active are reported on a final line named (no job).
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class GcCorrelate {
+
+	/**
+	 * The properties collected by the Optimize facade class
+	 */
+	private Properties _props = null;
+
+	private static final String DATE_STAMP = "\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3}[+-]\\d{4}";
+
+	// unified logging: the decorations, in brackets, then the message
+	private static final Pattern DECORATIONS = Pattern.compile("^((?:\\[[^\\[\\]]*\\])+)\\s*(.*)$");
+	private static final Pattern DECORATION = Pattern.compile("\\[\\s*([^\\[\\]]*?)\\s*\\]");
+	private static final Pattern UNIFIED_PAUSE = Pattern.compile("^GC\\((\\d+)\\) (?:[YO]: )?(Pause .*?) ([\\d.]+)ms$");
+	private static final Pattern UNIFIED_OLD = Pattern.compile(
+			"^GC\\((\\d+)\\) (?:ParOldGen|PSOldGen|Tenured|CMS): (\\d+)K(?:\\(\\d+K\\))?->(\\d+)K");
+	private static final Pattern UNIFIED_OLD_REGIONS = Pattern.compile("^GC\\((\\d+)\\) Old regions: (\\d+)->(\\d+)");
+	private static final Pattern REGION_SIZE = Pattern.compile("(?i)Heap Region Size: (\\d+)([KMG])");
+
+	// legacy logging: the optional date and uptime stamps of a GC record
+	private static final Pattern LEGACY_START = Pattern.compile(
+			"^(?:(" + DATE_STAMP + "): )?(?:(\\d+\\.\\d+): )?\\[(?:GC|Full GC)\\b.*");
+	private static final Pattern LEGACY_TIMES = Pattern.compile("\\[Times:[^\\]]*\\]");
+	private static final Pattern LEGACY_SECS = Pattern.compile(", ([\\d.]+) secs\\]");
+	private static final Pattern LEGACY_YOUNG = Pattern.compile(
+			"\\[(?:PSYoungGen|ParNew|DefNew)[^\\]]*?: (\\d+)K->(\\d+)K\\(\\d+K\\)(?:, [\\d.]+ secs)?\\] (\\d+)K->(\\d+)K\\(");
+	private static final Pattern LEGACY_G1_HEAP = Pattern.compile(
+			"\\[Eden: ([\\d.]+[BKMG])\\([\\d.]+[BKMG]\\)->([\\d.]+[BKMG])\\([\\d.]+[BKMG]\\) " +
+			"Survivors: ([\\d.]+[BKMG])->([\\d.]+[BKMG]) Heap: ([\\d.]+[BKMG])\\([\\d.]+[BKMG]\\)->([\\d.]+[BKMG])");
+
+	// a legacy record split by other output is abandoned after this many lines
+	private static final int MAX_RECORD_LINES = 50;
+
+	private final SimpleDateFormat dateStamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+	/**
+	 * A stop-the-world pause; times are in microseconds
+	 */
+	private static class Pause {
+		long wallStart = -1;
+		long uptimeStart = -1;
+		long start;
+		long duration;
+		boolean young;
+		boolean promotionKnown = false;
+		long promoted = 0;
+
+		long end() {
+			return start + duration;
+		}
+	}
+
+	private final ArrayList<Pause> pauses = new ArrayList<Pause>();
+
+	// the state of the log being read
+	private Pause lastPause = null;
+	private long regionSize = 0;
+	private final HashMap<Integer, long[]> oldGrowth = new HashMap<Integer, long[]>();
+
+	/**
+	 * The jobs of every process; times are in microseconds on the wall clock
+	 */
+	private long[] jobStart = new long[1024];
+	private long[] jobEnd = new long[1024];
+	private int[] jobProcess = new int[1024];
+	private int jobCount = 0;
+
+	private final ArrayList<String> processNames = new ArrayList<String>();
+	private final HashMap<String, Integer> processIds = new HashMap<String, Integer>();
+
+	/**
+	 * The JVM start time recorded by the probe files, or -1
+	 */
+	private long jvmStart = -1;
+
+	/**
+	 * The results of a single process
+	 */
+	private static class ProcessStats {
+		String name = null;
+		long jobs = 0;
+		long jobMicros = 0;
+		BitSet pauses = null;
+		long pauseMicros = 0;
+		long promoted = 0;
+		double sharedMicros = 0;
+		double sharedPromoted = 0;
+	}
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws IOException                    If errors are incurred reading the GC log or the profiles.
+	 */
+	public GcCorrelate(Properties props) throws IOException, UsageException {
+		final String usageString = "\nUsage: Optimize gcCorrelate [options]\n\n" +
+				"   where options are:\n\n" +
+				"-output    <output location>    - Full path and file name for output report.\n" +
+				"-gclog     <GC log location>    - Full path to the GC log, or to a directory of rotated GC logs.\n" +
+				"-profiles  <profile location>   - Full path to the directory containing the probe files or snapshots.\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("gcLoc")) {
+			throw(new UsageException("Required input parameter '-gclog' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("profileLoc")) {
+			throw(new UsageException("Required input parameter '-profiles' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		File profileDir = new File(_props.getProperty("profileLoc"));
+		if (!profileDir.isDirectory()) {
+			throw(new UsageException("Input parameter '-profiles' must refer to a directory.", usageString));
+		}
+
+		File gcLoc = new File(_props.getProperty("gcLoc"));
+		File[] gcFiles = gcLoc.isDirectory() ? gcLoc.listFiles() : new File[] { gcLoc };
+		if (gcFiles == null || !gcLoc.exists()) {
+			throw(new UsageException("Input parameter '-gclog' must refer to a file or a directory.", usageString));
+		}
+
+		readJobs(profileDir);
+
+		for (File gcFile : gcFiles) {
+			if (gcFile.isFile())
+				readGcLog(gcFile);
+		}
+
+		placePauses(usageString);
+		writeResults(attribute());
+	}
+
+	/**
+	 * Reads the process jobs of the probe files and snapshots.
+	 */
+	private void readJobs(File profileDir) throws IOException {
+		final long[] clock = new long[2];
+		for (File file : profileDir.listFiles()) {
+			if (!file.getName().startsWith("probes-") || !file.getName().endsWith(".bin"))
+				continue;
+
+			clock[0] = -1;
+			ProbeSummary.readProbes(file, new ProbeSummary.ProbeHandler() {
+				void clock(long wallMillis, long nanoTime, long jvmStartMillis) {
+					clock[0] = wallMillis;
+					clock[1] = nanoTime;
+					if (jvmStart < 0)
+						jvmStart = jvmStartMillis;
+					else if (jvmStart != jvmStartMillis)
+						System.err.println("Probe files from more than one JVM; GC log uptimes are placed using the first.");
+				}
+
+				void probe(String name, long startNanos, long endNanos, long cpuNanos, long allocatedBytes) {
+					if (clock[0] < 0 || name.indexOf('/') >= 0)
+						return;
+					addJob(name, clock[0] * 1000 + (startNanos - clock[1]) / 1000,
+							clock[0] * 1000 + (endNanos - clock[1]) / 1000);
+				}
+			});
+
+			if (clock[0] < 0)
+				System.err.println(file + " predates clock recording and cannot be placed in time; skipping.");
+		}
+
+		for (HistoSummary.SnapshotPair pair : HistoSummary.pairSnapshots(HistoSummary.readSnapshots(profileDir.getPath()))) {
+			if (pair.start == null || pair.end == null || pair.start.name.indexOf('/') >= 0)
+				continue;
+			addJob(pair.start.name, pair.start.timestamp * 1000, pair.end.timestamp * 1000);
+		}
+	}
+
+	private void addJob(String name, long start, long end) {
+		Integer processId = processIds.get(name);
+		if (processId == null) {
+			processId = Integer.valueOf(processNames.size());
+			processIds.put(name, processId);
+			processNames.add(name);
+		}
+
+		if (jobCount == jobStart.length) {
+			jobStart = Arrays.copyOf(jobStart, jobCount * 2);
+			jobEnd = Arrays.copyOf(jobEnd, jobCount * 2);
+			jobProcess = Arrays.copyOf(jobProcess, jobCount * 2);
+		}
+		jobStart[jobCount] = start;
+		jobEnd[jobCount] = end;
+		jobProcess[jobCount] = processId.intValue();
+		jobCount++;
+	}
+
+	/**
+	 * Streams the pauses of a single GC log.
+	 */
+	private void readGcLog(File file) throws IOException {
+		InputStream stream = new FileInputStream(file);
+		if (file.getName().endsWith(".gz"))
+			stream = new GZIPInputStream(stream, 64 * 1024);
+		BufferedReader in = new BufferedReader(new InputStreamReader(stream, "UTF-8"), 64 * 1024);
+
+		lastPause = null;
+		regionSize = 0;
+		oldGrowth.clear();
+
+		try {
+			StringBuilder record = null;
+			int recordLines = 0;
+
+			String line = null;
+			while ((line = in.readLine()) != null) {
+				if (LEGACY_START.matcher(line).matches()) {
+					record = new StringBuilder(line);
+					recordLines = 1;
+				} else if (record != null) {
+					record.append(' ').append(line.trim());
+					recordLines++;
+				} else {
+					if (!readUnified(line))
+						readG1Heap(line);
+					continue;
+				}
+
+				if (record.indexOf(" secs]") >= 0 && LEGACY_SECS.matcher(record).find()) {
+					readLegacy(record.toString());
+					record = null;
+				} else if (recordLines >= MAX_RECORD_LINES) {
+					record = null;
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a line of the unified format, returning false if it is not one.
+	 */
+	private boolean readUnified(String line) {
+		// a legacy record without stamps also begins with a bracket
+		if (!line.startsWith("[") || line.startsWith("[GC") || line.startsWith("[Full GC"))
+			return false;
+
+		Matcher decorated = DECORATIONS.matcher(line);
+		if (!decorated.matches())
+			return false;
+
+		String message = decorated.group(2);
+		if (!message.startsWith("GC(")) {
+			Matcher region = REGION_SIZE.matcher(message);
+			if (region.find())
+				regionSize = size(region.group(1) + region.group(2));
+			return true;
+		}
+
+		Matcher old = UNIFIED_OLD.matcher(message);
+		if (old.find()) {
+			addOldGrowth(old.group(1), (Long.parseLong(old.group(3)) - Long.parseLong(old.group(2))) * 1024);
+			return true;
+		}
+
+		Matcher regions = UNIFIED_OLD_REGIONS.matcher(message);
+		if (regions.find()) {
+			if (regionSize > 0)
+				addOldGrowth(regions.group(1), (Long.parseLong(regions.group(3)) - Long.parseLong(regions.group(2))) * regionSize);
+			return true;
+		}
+
+		Matcher pause = UNIFIED_PAUSE.matcher(message);
+		if (!pause.matches())
+			return true;
+
+		Pause event = new Pause();
+		event.duration = Math.round(Double.parseDouble(pause.group(3)) * 1000);
+		event.young = pause.group(2).startsWith("Pause Young");
+
+		long[] growth = oldGrowth.remove(Integer.valueOf(pause.group(1)));
+		if (event.young && growth != null) {
+			event.promotionKnown = true;
+			event.promoted = Math.max(0, growth[0]);
+		}
+
+		// the pause is logged when it ends
+		Matcher decoration = DECORATION.matcher(decorated.group(1));
+		while (decoration.find()) {
+			String value = decoration.group(1);
+			if (value.matches(DATE_STAMP)) {
+				event.wallStart = parseDate(value) * 1000 - event.duration;
+			} else if (value.matches("[\\d.]+s")) {
+				event.uptimeStart = Math.round(Double.parseDouble(value.substring(0, value.length() - 1)) * 1e6) - event.duration;
+			} else if (value.matches("\\d+ms")) {
+				// timemillis and uptimemillis differ only in magnitude
+				long millis = Long.parseLong(value.substring(0, value.length() - 2));
+				if (millis > 100000000000L)
+					event.wallStart = millis * 1000 - event.duration;
+				else
+					event.uptimeStart = millis * 1000 - event.duration;
+			} else if (value.matches("\\d+ns")) {
+				long nanos = Long.parseLong(value.substring(0, value.length() - 2));
+				if (nanos > 100000000000000000L)
+					event.wallStart = nanos / 1000 - event.duration;
+				else
+					event.uptimeStart = nanos / 1000 - event.duration;
+			}
+		}
+
+		addPause(event);
+		return true;
+	}
+
+	private void addOldGrowth(String gcId, long bytes) {
+		Integer key = Integer.valueOf(gcId);
+		long[] growth = oldGrowth.get(key);
+		if (growth == null) {
+			growth = new long[1];
+			oldGrowth.put(key, growth);
+		}
+		growth[0] += bytes;
+	}
+
+	/**
+	 * Reads a complete GC record of the legacy format.
+	 */
+	private void readLegacy(String record) {
+		if (record.toLowerCase(Locale.US).indexOf("concurrent") >= 0)
+			return;
+
+		Matcher secs = LEGACY_SECS.matcher(LEGACY_TIMES.matcher(record).replaceAll(""));
+		String duration = null;
+		while (secs.find())
+			duration = secs.group(1);
+		if (duration == null)
+			return;
+
+		Matcher start = LEGACY_START.matcher(record);
+		start.matches();
+
+		Pause event = new Pause();
+		event.duration = Math.round(Double.parseDouble(duration) * 1e6);
+		if (start.group(1) != null)
+			event.wallStart = parseDate(start.group(1)) * 1000;
+		if (start.group(2) != null)
+			event.uptimeStart = Math.round(Double.parseDouble(start.group(2)) * 1e6);
+
+		boolean full = record.indexOf("[Full GC") >= 0;
+		event.young = !full && (record.indexOf("(young)") >= 0 || record.indexOf("(mixed)") >= 0);
+
+		Matcher young = LEGACY_YOUNG.matcher(record);
+		if (!full && young.find()) {
+			long youngFreed = Long.parseLong(young.group(1)) - Long.parseLong(young.group(2));
+			long heapFreed = Long.parseLong(young.group(3)) - Long.parseLong(young.group(4));
+			event.young = true;
+			event.promotionKnown = true;
+			event.promoted = Math.max(0, youngFreed - heapFreed) * 1024;
+		}
+
+		addPause(event);
+
+		// the G1 heap summary may be part of the record or follow it
+		readG1Heap(record);
+	}
+
+	/**
+	 * Reads the eden, survivor and heap sizes printed by G1 after a pause.
+	 */
+	private void readG1Heap(String line) {
+		if (lastPause == null || !lastPause.young || lastPause.promotionKnown)
+			return;
+
+		Matcher heap = LEGACY_G1_HEAP.matcher(line);
+		if (!heap.find())
+			return;
+
+		long oldBefore = size(heap.group(5)) - size(heap.group(1)) - size(heap.group(3));
+		long oldAfter = size(heap.group(6)) - size(heap.group(2)) - size(heap.group(4));
+		lastPause.promotionKnown = true;
+		lastPause.promoted = Math.max(0, oldAfter - oldBefore);
+	}
+
+	private void addPause(Pause event) {
+		if (event.wallStart < 0 && event.uptimeStart < 0)
+			return;
+
+		pauses.add(event);
+		lastPause = event;
+	}
+
+	/**
+	 * Places every pause on the wall clock and sorts them.
+	 */
+	private void placePauses(String usageString) throws UsageException {
+		for (Pause pause : pauses) {
+			if (pause.wallStart >= 0) {
+				pause.start = pause.wallStart;
+			} else if (jvmStart >= 0) {
+				pause.start = jvmStart * 1000 + pause.uptimeStart;
+			} else {
+				throw(new UsageException("The GC log has no date stamps and no probe file records the JVM start time.  " +
+						"Log with -XX:+PrintGCDateStamps or -Xlog:gc*:file=<file>:time,uptime.", usageString));
+			}
+		}
+
+		Collections.sort(pauses, new Comparator<Pause>() {
+			public int compare(Pause a, Pause b) {
+				return (a.start < b.start) ? -1 : ((a.start > b.start) ? 1 : 0);
+			}
+		});
+	}
+
+	/**
+	 * Attributes each pause to the jobs it overlapped.  Pauses do not
+	 * overlap one another, so those overlapping a job are found by a binary
+	 * search of the pause ends.
+	 */
+	private ProcessStats[] attribute() {
+		int pauseCount = pauses.size();
+		long[] pauseEnds = new long[pauseCount];
+		for (int i = 0; i < pauseCount; i++)
+			pauseEnds[i] = pauses.get(i).end();
+
+		ProcessStats[] results = new ProcessStats[processNames.size()];
+		for (int i = 0; i < results.length; i++) {
+			results[i] = new ProcessStats();
+			results[i].name = processNames.get(i);
+			results[i].pauses = new BitSet(pauseCount);
+		}
+
+		// first count the jobs active during each pause, then share the pause among them
+		int[] activeJobs = new int[pauseCount];
+		for (int pass = 0; pass < 2; pass++) {
+			for (int job = 0; job < jobCount; job++) {
+				ProcessStats stats = results[jobProcess[job]];
+				if (pass == 0) {
+					stats.jobs++;
+					stats.jobMicros += jobEnd[job] - jobStart[job];
+				}
+
+				int first = Arrays.binarySearch(pauseEnds, jobStart[job]);
+				if (first < 0)
+					first = -first - 1;
+				while (first > 0 && pauseEnds[first - 1] >= jobStart[job])
+					first--;
+
+				for (int i = first; i < pauseCount && pauses.get(i).start <= jobEnd[job]; i++) {
+					if (pass == 0) {
+						activeJobs[i]++;
+					} else {
+						Pause pause = pauses.get(i);
+						stats.pauses.set(i);
+						stats.sharedMicros += (double) pause.duration / activeJobs[i];
+						stats.sharedPromoted += (double) pause.promoted / activeJobs[i];
+					}
+				}
+			}
+		}
+
+		ProcessStats idle = new ProcessStats();
+		idle.name = "(no job)";
+		idle.pauses = new BitSet(pauseCount);
+		for (int i = 0; i < pauseCount; i++) {
+			if (activeJobs[i] == 0) {
+				idle.pauses.set(i);
+				idle.sharedMicros += pauses.get(i).duration;
+				idle.sharedPromoted += pauses.get(i).promoted;
+			}
+		}
+
+		ProcessStats[] all = Arrays.copyOf(results, results.length + 1);
+		all[results.length] = idle;
+		for (ProcessStats stats : all) {
+			for (int i = stats.pauses.nextSetBit(0); i >= 0; i = stats.pauses.nextSetBit(i + 1)) {
+				stats.pauseMicros += pauses.get(i).duration;
+				stats.promoted += pauses.get(i).promoted;
+			}
+		}
+
+		Arrays.sort(all, 0, results.length, new Comparator<ProcessStats>() {
+			public int compare(ProcessStats a, ProcessStats b) {
+				return (a.sharedMicros < b.sharedMicros) ? 1 : ((a.sharedMicros > b.sharedMicros) ? -1 : a.name.compareTo(b.name));
+			}
+		});
+		return all;
+	}
+
+	private void writeResults(ProcessStats[] results) throws IOException {
+		PrintWriter out = new PrintWriter(_props.getProperty("outLoc"));
+		for (ProcessStats stats : results) {
+			out.println(stats.name + "," + stats.jobs + "," + millis(stats.jobMicros) + "," +
+					stats.pauses.cardinality() + "," + millis(stats.pauseMicros) + "," + stats.promoted + "," +
+					millis(stats.sharedMicros) + "," + Math.round(stats.sharedPromoted));
+		}
+		out.flush();
+		out.close();
+	}
+
+	private static String millis(double micros) {
+		return String.format(Locale.US, "%.3f", micros / 1e3);
+	}
+
+	private long parseDate(String stamp) {
+		try {
+			return dateStamp.parse(stamp).getTime();
+		} catch (ParseException pe) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Converts a size such as 1024K or 3.5M to bytes.
+	 */
+	private static long size(String value) {
+		char unit = value.charAt(value.length() - 1);
+		double number = Double.parseDouble(value.substring(0, value.length() - 1));
+		switch (unit) {
+		case 'K': return Math.round(number * 1024);
+		case 'M': return Math.round(number * 1024 * 1024);
+		case 'G': return Math.round(number * 1024 * 1024 * 1024);
+		default:  return Math.round(number);
+		}
+	}
+}
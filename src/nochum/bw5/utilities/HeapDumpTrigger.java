@@ -0,0 +1,158 @@
+package nochum.bw5.utilities;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Takes heap dumps only when the tenured generation crosses a threshold,
+ * instead of forcing a full collection on every call to BWProfile.heapDump
+ * just to compare the used heap with the threshold.
+ * <p>
+ * Enabled with the system property bw5.profile.dumpTrigger=true
+ * (java.property.bw5.profile.dumpTrigger=true in the engine TRA).  The first
+ * call to BWProfile.heapDump then sets the usage threshold and the collection
+ * usage threshold of the tenured memory pool to its memoryThreshold and
+ * returns; later calls return at once.  When the JVM reports that either
+ * threshold was exceeded the heap is dumped on a background thread to
+ * heapdump-&lt;pid&gt;-&lt;time&gt;.hprof.gz in the directory of the first
+ * file name, compressed in-process.
+ * <p>
+ * The collection usage threshold is checked only after a collection, so it
+ * reports live data rather than garbage awaiting collection.  Dumps are at
+ * least bw5.profile.dumpCooldown seconds apart (default 300) and at most
+ * bw5.profile.maxDumps (default 3) are taken.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class HeapDumpTrigger implements NotificationListener {
+
+	private static final Logger logger = org.apache.log4j.Logger.getLogger("bw.logger");
+
+	private static volatile HeapDumpTrigger instance;
+
+	private final File directory;
+	private final String prefix;
+	private final long cooldownMillis;
+	private final int maxDumps;
+
+	private final AtomicLong lastDump = new AtomicLong(0);
+	private final AtomicInteger dumps = new AtomicInteger(0);
+
+	private HeapDumpTrigger(File directory, long cooldownMillis, int maxDumps) {
+		this.directory = directory;
+		this.cooldownMillis = cooldownMillis;
+		this.maxDumps = maxDumps;
+
+		String procName = ManagementFactory.getRuntimeMXBean().getName();
+		String pid = procName.substring(0, Math.max(0, procName.indexOf('@')));
+		this.prefix = "heapdump-" + pid + "-";
+	}
+
+	/**
+	 * Determines whether heap dumps should be triggered by memory pool
+	 * notifications.
+	 */
+	static boolean isEnabled() {
+		return Boolean.getBoolean("bw5.profile.dumpTrigger");
+	}
+
+	/**
+	 * Sets the thresholds on the first call; later calls do nothing.
+	 * @param fileName         a heap dump file name, whose directory receives the dumps.
+	 * @param memoryThreshold  the tenured generation usage, in bytes, above which the heap is dumped.
+	 */
+	static void arm(String fileName, long memoryThreshold) {
+		if (instance != null)
+			return;
+
+		synchronized (HeapDumpTrigger.class) {
+			if (instance != null)
+				return;
+
+			long cooldown = Long.getLong("bw5.profile.dumpCooldown", 300L).longValue() * 1000L;
+			int maxDumps = Integer.getInteger("bw5.profile.maxDumps", 3).intValue();
+			HeapDumpTrigger trigger = new HeapDumpTrigger(new File(fileName).getAbsoluteFile().getParentFile(),
+					Math.max(0, cooldown), maxDumps);
+
+			MemoryPoolMXBean pool = getTenuredPool();
+			if (pool == null) {
+				logger.warn("BWProfile heap dump trigger: no heap memory pool supports usage thresholds.");
+			} else {
+				long max = pool.getUsage().getMax();
+				long threshold = (max > 0) ? Math.min(memoryThreshold, max) : memoryThreshold;
+
+				((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(trigger, null, null);
+				pool.setUsageThreshold(threshold);
+				if (pool.isCollectionUsageThresholdSupported())
+					pool.setCollectionUsageThreshold(threshold);
+
+				logger.info("BWProfile heap dump trigger armed on " + pool.getName() + " at " + threshold +
+						" bytes.  Cooldown: " + (cooldown / 1000) + "s.  Maximum dumps: " + maxDumps);
+			}
+
+			instance = trigger;
+		}
+	}
+
+	/**
+	 * Returns the heap pool that supports usage thresholds and has the
+	 * largest maximum size, which is the tenured generation under every
+	 * HotSpot collector.
+	 */
+	private static MemoryPoolMXBean getTenuredPool() {
+		MemoryPoolMXBean tenured = null;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported())
+				continue;
+			if (tenured == null || pool.getUsage().getMax() > tenured.getUsage().getMax())
+				tenured = pool;
+		}
+		return tenured;
+	}
+
+	/**
+	 * Called by the JVM when a threshold is exceeded.
+	 */
+	public void handleNotification(Notification notification, Object handback) {
+		String type = notification.getType();
+		if (!type.equals(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED) &&
+				!type.equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED))
+			return;
+
+		long now = System.currentTimeMillis();
+		long last = lastDump.get();
+		if ((last != 0 && now - last < cooldownMillis) || !lastDump.compareAndSet(last, now))
+			return;
+
+		if (dumps.incrementAndGet() > maxDumps)
+			return;
+
+		final String fileName = new File(directory, prefix + now + ".hprof").getPath();
+		logger.warn("BWProfile heap dump trigger: " + type + ".  Generating heap dump " + fileName + ".gz");
+
+		// notifications are delivered on a JVM service thread, which must not be held up
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					BWProfile.dumpHeap(fileName);
+				} catch (Throwable t) {
+					logger.error("BWProfile could not write " + fileName, t);
+				}
+			}
+		}, "BWProfile-heap-dump");
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
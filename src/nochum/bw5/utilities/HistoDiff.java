@@ -0,0 +1,260 @@
+package nochum.bw5.utilities;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reports which classes each BusinessWorks process actually allocates, from
+ * the heap histogram snapshots taken by a project that was instrumented
+ * using the "Optimize instrument" option.
+ * <p>
+ * HistoSummary reports only the total object count and size of each
+ * snapshot.  This class fully parses the start and end histograms of every
+ * job, computes the change in the number of instances and bytes of each
+ * class, and adds the changes up across all invocations of each process (or
+ * instrumented activity).  Snapshots are paired as they are by HistoSummary.
+ * <p>
+ * Class names are interned to dense integer ids as they are first seen, so
+ * the per-class counts of each histogram and each process are held in
+ * arrays indexed by class id rather than in maps of strings.  Pairs are
+ * parsed in parallel, one thread per processor.
+ * <p>
+ * The output is a file of comma-separated values listing, for each process,
+ * the classes with the greatest total growth in bytes (20 by default, set by
+ * -top): the process, the rank, the class, the total change in instances and
+ * bytes, the mean change in bytes per invocation, the number of invocations
+ * and how many of them overlapped another job.  The deltas of overlapping
+ * invocations include the other job's allocations.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class HistoDiff {
+
+	/**
+	 * The properties collected by the Optimize facade class
+	 */
+	private Properties _props = null;
+
+	/**
+	 * class name &lt;-&gt; class id
+	 */
+	private final ClassDictionary classes = new ClassDictionary();
+
+	/**
+	 * The per-class changes of a single start/end pair
+	 */
+	private static class PairDelta {
+		String name = null;
+		boolean overlapping = false;
+		int[] classIds = null;
+		long[] instances = null;
+		long[] bytes = null;
+	}
+
+	/**
+	 * The per-class changes of a process, summed over its invocations and
+	 * indexed by class id
+	 */
+	private static class ProcessDelta {
+		String name = null;
+		int invocations = 0;
+		int overlapping = 0;
+		long[] instances = new long[1024];
+		long[] bytes = new long[1024];
+
+		void add(PairDelta delta) {
+			invocations++;
+			if (delta.overlapping)
+				overlapping++;
+
+			for (int i = 0; i < delta.classIds.length; i++) {
+				int classId = delta.classIds[i];
+				if (classId >= bytes.length) {
+					int size = Math.max(classId + 1, bytes.length * 2);
+					instances = Arrays.copyOf(instances, size);
+					bytes = Arrays.copyOf(bytes, size);
+				}
+				instances[classId] += delta.instances[i];
+				bytes[classId] += delta.bytes[i];
+			}
+		}
+	}
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws IOException                    If errors are incurred reading the histograms.
+	 */
+	public HistoDiff(Properties props) throws IOException, UsageException {
+		final String usageString = "\nUsage: Optimize histoDiff [options]\n\n" +
+				"   where options are:\n\n" +
+				"-output    <output location>    - Full path and file name for output report.\n" +
+				"-profiles  <profile location>   - Full path to the directory containing the output from the profiling.\n" +
+				"-top       <number of classes>  - Optional.  The number of classes to report per process (default 20).\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("profileLoc")) {
+			throw(new UsageException("Required input parameter '-profiles' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		int top = 20;
+		if (_props.containsKey("top")) {
+			try {
+				top = Integer.parseInt(_props.getProperty("top"));
+			} catch (NumberFormatException nfe) {
+				top = -1;
+			}
+			if (top <= 0) {
+				throw(new UsageException("Input parameter '-top' must be a positive number.", usageString));
+			}
+		}
+
+		ArrayList<HistoSummary.SnapshotPair> pairs =
+				HistoSummary.pairSnapshots(HistoSummary.readSnapshots(_props.getProperty("profileLoc")));
+
+		writeResults(aggregate(diffPairs(pairs)), top);
+	}
+
+	/**
+	 * Computes the per-class changes of every complete pair in parallel.
+	 */
+	private ArrayList<PairDelta> diffPairs(ArrayList<HistoSummary.SnapshotPair> pairs) throws IOException {
+		ArrayList<PairDelta> deltas = new ArrayList<PairDelta>();
+
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			ArrayList<Future<PairDelta>> results = new ArrayList<Future<PairDelta>>();
+			for (final HistoSummary.SnapshotPair pair : pairs) {
+				if (pair.start == null || pair.end == null)
+					continue;
+
+				results.add(executor.submit(new Callable<PairDelta>() {
+					public PairDelta call() throws IOException {
+						return diffPair(pair);
+					}
+				}));
+			}
+
+			for (Future<PairDelta> result : results)
+				deltas.add(result.get());
+		} catch (InterruptedException ie) {
+			throw new IOException("Interrupted while reading histograms", ie);
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof IOException)
+				throw (IOException) ee.getCause();
+			throw new IOException("Unable to read histograms", ee.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return deltas;
+	}
+
+	private PairDelta diffPair(HistoSummary.SnapshotPair pair) throws IOException {
+		long[][] start = HistoSummary.parseHistogram(pair.start, classes);
+		long[][] end = HistoSummary.parseHistogram(pair.end, classes);
+
+		// keep only the classes that changed
+		int classCount = Math.max(start[0].length, end[0].length);
+		int[] ids = new int[classCount];
+		long[] instances = new long[classCount];
+		long[] bytes = new long[classCount];
+		int changed = 0;
+		for (int classId = 0; classId < classCount; classId++) {
+			long instanceDelta = value(end[0], classId) - value(start[0], classId);
+			long byteDelta = value(end[1], classId) - value(start[1], classId);
+			if (instanceDelta != 0 || byteDelta != 0) {
+				ids[changed] = classId;
+				instances[changed] = instanceDelta;
+				bytes[changed] = byteDelta;
+				changed++;
+			}
+		}
+
+		PairDelta delta = new PairDelta();
+		delta.name = pair.start.name;
+		delta.overlapping = pair.overlapping;
+		delta.classIds = Arrays.copyOf(ids, changed);
+		delta.instances = Arrays.copyOf(instances, changed);
+		delta.bytes = Arrays.copyOf(bytes, changed);
+		return delta;
+	}
+
+	private static long value(long[] counts, int classId) {
+		return (classId < counts.length) ? counts[classId] : 0;
+	}
+
+	private ArrayList<ProcessDelta> aggregate(ArrayList<PairDelta> deltas) {
+		HashMap<String, ProcessDelta> processes = new HashMap<String, ProcessDelta>();
+		for (PairDelta delta : deltas) {
+			ProcessDelta process = processes.get(delta.name);
+			if (process == null) {
+				process = new ProcessDelta();
+				process.name = delta.name;
+				processes.put(delta.name, process);
+			}
+			process.add(delta);
+		}
+
+		ArrayList<ProcessDelta> results = new ArrayList<ProcessDelta>(processes.values());
+		Collections.sort(results, new Comparator<ProcessDelta>() {
+			public int compare(ProcessDelta a, ProcessDelta b) {
+				return a.name.compareTo(b.name);
+			}
+		});
+		return results;
+	}
+
+	/**
+	 * Writes the classes with the greatest growth in bytes for each process.
+	 * @throws IOException
+	 */
+	private void writeResults(ArrayList<ProcessDelta> processes, int top) throws IOException {
+		PrintWriter out = new PrintWriter(_props.getProperty("outLoc"));
+
+		for (final ProcessDelta process : processes) {
+			ArrayList<Integer> growing = new ArrayList<Integer>();
+			for (int classId = 0; classId < process.bytes.length; classId++) {
+				if (process.bytes[classId] > 0)
+					growing.add(Integer.valueOf(classId));
+			}
+
+			Collections.sort(growing, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					long diff = process.bytes[b.intValue()] - process.bytes[a.intValue()];
+					return (diff > 0) ? 1 : ((diff < 0) ? -1 : 0);
+				}
+			});
+
+			for (int rank = 0; rank < Math.min(top, growing.size()); rank++) {
+				int classId = growing.get(rank).intValue();
+				out.println(process.name + "," + (rank + 1) + "," + classes.getName(classId) + "," +
+						process.instances[classId] + "," + process.bytes[classId] + "," +
+						(process.bytes[classId] / process.invocations) + "," +
+						process.invocations + "," + process.overlapping);
+			}
+		}
+
+		out.flush();
+		out.close();
+	}
+}
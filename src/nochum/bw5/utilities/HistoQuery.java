@@ -0,0 +1,202 @@
+package nochum.bw5.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * Queries a histogram store built by "Optimize histoSummary -store" (see
+ * HistoStore).  Only the store's columns are read, so repeated queries over a
+ * large load test take seconds rather than re-parsing every histogram.
+ * <p>
+ * The snapshots can be restricted to the processes matching -processes and to
+ * the time window given by -from and -to, each either milliseconds since the
+ * epoch or a local time "yyyy-MM-dd HH:mm:ss".
+ * <p>
+ * With -classes the output is a time series of comma-separated values with
+ * one line per snapshot and matching class: the snapshot time, the process,
+ * the job ID, the phase (start or end), the class, and its instances and
+ * bytes.  Without it the output has one line per process: the number of
+ * snapshots, the minimum, mean and maximum total bytes, and the class that
+ * holds the most bytes on average across its snapshots.
+ * <p>
+ * Patterns are globs, or regular expressions when prefixed with "regex:".
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class HistoQuery {
+
+	/**
+	 * The properties collected by the Optimize facade class
+	 */
+	private Properties _props = null;
+
+	private final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss.SSS");
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws IOException                    If errors are incurred reading the store.
+	 */
+	public HistoQuery(Properties props) throws IOException, UsageException {
+		final String usageString = "\nUsage: Optimize histoQuery [options]\n\n" +
+				"   where options are:\n\n" +
+				"-store     <store location>     - Full path to the histogram store built by histoSummary -store.\n" +
+				"-output    <output location>    - Full path and file name for output report.\n" +
+				"-processes <pattern>            - Optional.  Only query the processes matching this pattern.\n" +
+				"-classes   <pattern>            - Optional.  Report the instances and bytes of the matching classes per snapshot.\n" +
+				"-from      <time>               - Optional.  Ignore snapshots before this time.\n" +
+				"-to        <time>               - Optional.  Ignore snapshots after this time.\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("storeLoc")) {
+			throw(new UsageException("Required input parameter '-store' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		long from = parseTime("fromTime", Long.MIN_VALUE, usageString);
+		long to = parseTime("toTime", Long.MAX_VALUE, usageString);
+
+		HistoStore store = new HistoStore(new File(_props.getProperty("storeLoc")));
+
+		// resolve the patterns against the dictionaries once
+		boolean[] processes = match(store.processNames, _props.getProperty("processPattern"));
+
+		PrintWriter out = new PrintWriter(_props.getProperty("outLoc"));
+		try {
+			if (_props.containsKey("classPattern"))
+				writeSeries(out, store, processes, match(store.classNames, _props.getProperty("classPattern")), from, to);
+			else
+				writeTotals(out, store, processes, from, to);
+		} finally {
+			out.close();
+		}
+	}
+
+	private long parseTime(String key, long defaultTime, String usageString) throws UsageException {
+		String value = _props.getProperty(key);
+		if (value == null)
+			return defaultTime;
+
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException nfe) {
+			try {
+				return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(value).getTime();
+			} catch (ParseException pe) {
+				throw(new UsageException("Invalid time '" + value + "'.  Use milliseconds or yyyy-MM-dd HH:mm:ss.", usageString));
+			}
+		}
+	}
+
+	private static boolean[] match(String[] names, String pattern) {
+		boolean[] matches = new boolean[names.length];
+		Pattern compiled = (pattern == null) ? null : BWProcessUtil.compilePattern(pattern);
+		for (int i = 0; i < names.length; i++)
+			matches[i] = (compiled == null) || compiled.matcher(names[i]).matches();
+		return matches;
+	}
+
+	/**
+	 * Writes the instances and bytes of the matching classes in each snapshot.
+	 */
+	private void writeSeries(PrintWriter out, HistoStore store, boolean[] processes, boolean[] classes,
+			long from, long to) {
+		for (int i = 0; i < store.snapshotCount; i++) {
+			long time = store.time.getLong(i);
+			int process = store.process.getInt(i);
+			if (time < from || time > to || !processes[process])
+				continue;
+
+			String prefix = simpleDateFormat.format(time) + "," + store.processNames[process] + "," +
+					(store.job.getLong(i) < 0 ? "" : String.valueOf(store.job.getLong(i))) + "," +
+					(store.phase.getByte(i) == 1 ? "start" : "end") + ",";
+
+			long first = store.first.getLong(i);
+			long last = first + store.count.getInt(i);
+			for (long entry = first; entry < last; entry++) {
+				int classId = store.entryClass.getInt(entry);
+				if (classes[classId])
+					out.println(prefix + store.classNames[classId] + "," +
+							store.entryInstances.getLong(entry) + "," + store.entryBytes.getLong(entry));
+			}
+		}
+	}
+
+	/**
+	 * Writes the snapshot count, total byte range and largest class of each
+	 * process.  The bytes of each class are accumulated for one process at a
+	 * time, so a single array the size of the class table is needed.
+	 */
+	private void writeTotals(PrintWriter out, HistoStore store, boolean[] processes, long from, long to) {
+		int processCount = store.processNames.length;
+		int[] snapshots = new int[processCount];
+		long[] minBytes = new long[processCount];
+		long[] maxBytes = new long[processCount];
+		long[] sumBytes = new long[processCount];
+
+		// the snapshots of each process, in the order they were stored
+		int[][] selected = new int[processCount][];
+		int[] selectedCount = new int[processCount];
+
+		for (int i = 0; i < store.snapshotCount; i++) {
+			long time = store.time.getLong(i);
+			int process = store.process.getInt(i);
+			if (time < from || time > to || !processes[process])
+				continue;
+
+			long bytes = store.bytes.getLong(i);
+			if (snapshots[process]++ == 0) {
+				minBytes[process] = bytes;
+				maxBytes[process] = bytes;
+				selected[process] = new int[16];
+			}
+			minBytes[process] = Math.min(minBytes[process], bytes);
+			maxBytes[process] = Math.max(maxBytes[process], bytes);
+			sumBytes[process] += bytes;
+
+			if (selectedCount[process] == selected[process].length)
+				selected[process] = Arrays.copyOf(selected[process], selectedCount[process] * 2);
+			selected[process][selectedCount[process]++] = i;
+		}
+
+		long[] classBytes = new long[store.classNames.length];
+		for (int process = 0; process < processCount; process++) {
+			if (snapshots[process] == 0)
+				continue;
+
+			Arrays.fill(classBytes, 0L);
+			for (int s = 0; s < selectedCount[process]; s++) {
+				int i = selected[process][s];
+				long first = store.first.getLong(i);
+				long last = first + store.count.getInt(i);
+				for (long entry = first; entry < last; entry++)
+					classBytes[store.entryClass.getInt(entry)] += store.entryBytes.getLong(entry);
+			}
+			selected[process] = null;
+
+			int largest = -1;
+			for (int classId = 0; classId < classBytes.length; classId++) {
+				if (largest < 0 || classBytes[classId] > classBytes[largest])
+					largest = classId;
+			}
+
+			out.println(store.processNames[process] + "," + snapshots[process] + "," +
+					minBytes[process] + "," + (sumBytes[process] / snapshots[process]) + "," +
+					maxBytes[process] + "," + (largest < 0 ? "" : store.classNames[largest]) + "," +
+					(largest < 0 ? "" : String.valueOf(classBytes[largest] / snapshots[process])));
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package nochum.bw5.utilities;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A columnar binary store of parsed heap histograms, imported once by
+ * "Optimize histoSummary -store" and then queried repeatedly by
+ * "Optimize histoQuery" without re-reading the gzipped text histograms.
+ * <p>
+ * The store is a directory holding one file per column, each a big-endian
+ * array of a single primitive type:
+ * <ul>
+ * <li>snapshot.time, snapshot.job, snapshot.objects, snapshot.bytes and
+ * snapshot.first (longs), snapshot.process and snapshot.count (ints) and
+ * snapshot.phase (bytes, 1 for start and 0 for end) - one entry per
+ * snapshot, in time order.  The job is -1 when unknown.
+ * <li>entry.class (ints), entry.instances and entry.bytes (longs) - one entry
+ * per class present in a snapshot.  The entries of snapshot i are
+ * snapshot.first[i] to snapshot.first[i] + snapshot.count[i] - 1, in class
+ * id order.
+ * <li>classes.dict and processes.dict - the dictionaries that map the class
+ * and process ids to names: an int count followed by the UTF names in id
+ * order.
+ * </ul>
+ * The columns are memory-mapped for queries, so a query touches only the
+ * columns it needs.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class HistoStore {
+
+	// columns are mapped in regions of this size; a multiple of every element size
+	private static final long REGION_SIZE = 1L << 30;
+
+	// the number of snapshots parsed concurrently while importing
+	private static final int IMPORT_BATCH = 256;
+
+	/**
+	 * A single memory-mapped column
+	 */
+	static class Column {
+		private final MappedByteBuffer[] regions;
+
+		Column(File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				long length = raf.length();
+				regions = new MappedByteBuffer[(int) ((length + REGION_SIZE - 1) / REGION_SIZE)];
+				for (int i = 0; i < regions.length; i++) {
+					long position = i * REGION_SIZE;
+					regions[i] = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, position,
+							Math.min(REGION_SIZE, length - position));
+				}
+			} finally {
+				raf.close();
+			}
+		}
+
+		long getLong(long index) {
+			long position = index * 8;
+			return regions[(int) (position / REGION_SIZE)].getLong((int) (position % REGION_SIZE));
+		}
+
+		int getInt(long index) {
+			long position = index * 4;
+			return regions[(int) (position / REGION_SIZE)].getInt((int) (position % REGION_SIZE));
+		}
+
+		byte getByte(long index) {
+			return regions[(int) (index / REGION_SIZE)].get((int) (index % REGION_SIZE));
+		}
+	}
+
+	final int snapshotCount;
+	final Column time;
+	final Column job;
+	final Column phase;
+	final Column process;
+	final Column objects;
+	final Column bytes;
+	final Column first;
+	final Column count;
+	final Column entryClass;
+	final Column entryInstances;
+	final Column entryBytes;
+	final String[] classNames;
+	final String[] processNames;
+
+	/**
+	 * Opens an existing store for queries.
+	 * @param directory  the store directory.
+	 */
+	HistoStore(File directory) throws IOException {
+		File timeFile = new File(directory, "snapshot.time");
+		if (!timeFile.isFile())
+			throw new IOException(directory + " is not a histogram store.");
+
+		snapshotCount = (int) (timeFile.length() / 8);
+		time = new Column(timeFile);
+		job = new Column(new File(directory, "snapshot.job"));
+		phase = new Column(new File(directory, "snapshot.phase"));
+		process = new Column(new File(directory, "snapshot.process"));
+		objects = new Column(new File(directory, "snapshot.objects"));
+		bytes = new Column(new File(directory, "snapshot.bytes"));
+		first = new Column(new File(directory, "snapshot.first"));
+		count = new Column(new File(directory, "snapshot.count"));
+		entryClass = new Column(new File(directory, "entry.class"));
+		entryInstances = new Column(new File(directory, "entry.instances"));
+		entryBytes = new Column(new File(directory, "entry.bytes"));
+		classNames = readDictionary(new File(directory, "classes.dict"));
+		processNames = readDictionary(new File(directory, "processes.dict"));
+	}
+
+	private static String[] readDictionary(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			String[] names = new String[in.readInt()];
+			for (int i = 0; i < names.length; i++)
+				names[i] = in.readUTF();
+			return names;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeDictionary(File file, ClassDictionary dictionary) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		try {
+			out.writeInt(dictionary.size());
+			for (int i = 0; i < dictionary.size(); i++)
+				out.writeUTF(dictionary.getName(i));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Parses the histograms of the snapshots and writes them to a new store,
+	 * replacing any store already in the directory.
+	 * @param snapshots  the snapshots, in time order.
+	 * @param directory  the store directory, created if necessary.
+	 */
+	static void importSnapshots(List<HistoSummary.Snapshot> snapshots, File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create " + directory);
+
+		final ClassDictionary classes = new ClassDictionary();
+		ClassDictionary processes = new ClassDictionary();
+
+		String[] names = { "snapshot.time", "snapshot.job", "snapshot.phase", "snapshot.process",
+				"snapshot.objects", "snapshot.bytes", "snapshot.first", "snapshot.count",
+				"entry.class", "entry.instances", "entry.bytes" };
+		DataOutputStream[] columns = new DataOutputStream[names.length];
+		for (int i = 0; i < names.length; i++)
+			columns[i] = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(new File(directory, names[i])), 64 * 1024));
+
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			long entries = 0;
+			for (int batchStart = 0; batchStart < snapshots.size(); batchStart += IMPORT_BATCH) {
+				// parse a batch in parallel, then append it in order
+				ArrayList<Future<long[][]>> results = new ArrayList<Future<long[][]>>();
+				int batchEnd = Math.min(snapshots.size(), batchStart + IMPORT_BATCH);
+				for (int i = batchStart; i < batchEnd; i++) {
+					final HistoSummary.Snapshot snapshot = snapshots.get(i);
+					results.add(executor.submit(new Callable<long[][]>() {
+						public long[][] call() throws IOException {
+							return HistoSummary.parseHistogram(snapshot, classes);
+						}
+					}));
+				}
+
+				for (int i = batchStart; i < batchEnd; i++) {
+					HistoSummary.Snapshot snapshot = snapshots.get(i);
+					long[][] counts = results.get(i - batchStart).get();
+
+					int present = 0;
+					for (int classId = 0; classId < counts[0].length; classId++) {
+						if (counts[0][classId] != 0 || counts[1][classId] != 0) {
+							columns[8].writeInt(classId);
+							columns[9].writeLong(counts[0][classId]);
+							columns[10].writeLong(counts[1][classId]);
+							present++;
+						}
+					}
+
+					columns[0].writeLong(snapshot.timestamp);
+					columns[1].writeLong(parseJob(snapshot.jobId));
+					columns[2].writeByte(snapshot.start ? 1 : 0);
+					columns[3].writeInt(processes.intern(snapshot.name));
+					columns[4].writeLong(snapshot.totalObjects);
+					columns[5].writeLong(snapshot.totalSize);
+					columns[6].writeLong(entries);
+					columns[7].writeInt(present);
+					entries += present;
+				}
+			}
+		} catch (InterruptedException ie) {
+			throw new IOException("Interrupted while importing histograms", ie);
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof IOException)
+				throw (IOException) ee.getCause();
+			throw new IOException("Unable to import histograms", ee.getCause());
+		} finally {
+			executor.shutdownNow();
+			for (DataOutputStream column : columns)
+				column.close();
+		}
+
+		writeDictionary(new File(directory, "classes.dict"), classes);
+		writeDictionary(new File(directory, "processes.dict"), processes);
+	}
+
+	private static long parseJob(String jobId) {
+		try {
+			return (jobId == null) ? -1 : Long.parseLong(jobId);
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+}
@@ -1,18 +1,37 @@
 package nochum.bw5.utilities;
 
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Properties;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 
 
@@ -29,25 +48,103 @@ import java.util.zip.GZIPInputStream;
  * total number of live objects allocated and the total memory utilization
  * by live objects on the JVM heap at the beginning and at the end of each
  * BusinessWorks process invocation.  This allows the user to pinpoint
- * exactly where memory spikes are taking place.    
- * 
+ * exactly where memory spikes are taking place.
+ * <p>
+ * Snapshot file names carry the BW job ID and a sequence number
+ * (&lt;timestamp&gt;-&lt;job&gt;.&lt;sequence&gt;-&lt;process&gt;-&lt;activity&gt;),
+ * so each job's start and end snapshots are paired explicitly, as are the
+ * ProfileEnter and ProfileExit snapshots of instrumented activities.  The
+ * snapshots of projects instrumented before job IDs were recorded are paired
+ * in time order within each process, which is only reliable when jobs of the
+ * same process do not run concurrently.
+ * <p>
+ * The heap is shared by every job in the engine, so the delta between a
+ * start and an end snapshot is only attributable to the job when no other
+ * job ran in the meantime.  Pairs whose interval overlaps that of another
+ * job are therefore marked as overlapping.
+ * <p>
+ * The output is a file of comma-separated values with one line per pair,
+ * ordered by start time: the process (or process/activity), the job ID, the
+ * start and end times, the elapsed milliseconds, the total objects and bytes
+ * at the start and at the end, the object and byte deltas, and whether the
+ * pair overlaps another job.  A snapshot without a counterpart is reported
+ * with the missing fields left empty.
+ * <p>
+ * When the engine wrote its snapshots to the segmented profile log (see
+ * ProfileLog) the segments are memory-mapped and read sequentially.  The
+ * totals are taken from each record's header, so the histograms need not be
+ * decompressed.
+ * <p>
+ * Files are read in parallel, one task per file on a thread per processor.
+ * Only the last line of a histogram is needed, so an uncompressed histogram
+ * is read from its tail and a gzipped one is decompressed in large blocks,
+ * keeping only the last bytes, without splitting it into lines.
+ * <p>
+ * With -store the histograms are also fully parsed and imported into a
+ * columnar binary store (see HistoStore), which "Optimize histoQuery" can
+ * then query repeatedly without re-reading the text histograms.
+ *
  * @author Nochum Klein
  * @version %I%, %G%
- */ 
+ */
 public class HistoSummary {
 	private BufferedWriter bw = null;
 	/**
 	 * The properties required to invoke Hawk and traverse the project filesystem
 	 */
 	private Properties _props = null;
-	
+
+	/**
+	 * &lt;timestamp&gt;-&lt;job&gt;.&lt;sequence&gt;-&lt;rest&gt; or, for
+	 * older snapshots, &lt;timestamp&gt;-&lt;rest&gt;
+	 */
+	private static final Pattern SNAPSHOT_NAME = Pattern.compile("(\\d+)-(?:(\\d+)\\.(\\d+)-)?(.+?)(?:\\.gz)?");
+
+	private final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss.SSS");
+
+	/**
+	 * A single heap histogram snapshot
+	 */
+	static class Snapshot {
+		long timestamp;
+		String jobId = null;
+		long sequence = 0;
+		String name = null;
+		boolean start;
+		long totalObjects;
+		long totalSize;
+
+		/**
+		 * The file holding the histogram and, for a profile log segment, the
+		 * position and length of the gzipped histogram within it
+		 */
+		File source = null;
+		long histogramOffset = -1;
+		int histogramLength = 0;
+	}
+
+	/**
+	 * A start snapshot and the matching end snapshot, either of which may be
+	 * missing
+	 */
+	static class SnapshotPair {
+		Snapshot start = null;
+		Snapshot end = null;
+		boolean overlapping = false;
+
+		Snapshot first() {
+			return (start != null) ? start : end;
+		}
+	}
+
 	public HistoSummary(Properties props) throws IOException, UsageException {
 		final String usageString = "\nUsage: Optimize histoSummary [options]\n\n" +
 				"   where options are:\n\n" +
 				"-output    <output location>    - Full path and file name for output report.\n" +
-				"-profiles  <profile location>   - Full path to the directory containing the output from the profiling.\n"
+				"-profiles  <profile location>   - Full path to the directory containing the output from the profiling.\n" +
+				"-store     <store location>     - Optional.  Directory in which to build a histogram store for histoQuery.\n"
 				;
-		
+
 		_props = props;
 
 		if (!_props.containsKey("profileLoc")) {
@@ -61,70 +158,389 @@ public class HistoSummary {
 		File summaryFile = new File(_props.getProperty("outLoc"));
 		FileWriter fw = new FileWriter(summaryFile.getAbsoluteFile());
 		bw = new BufferedWriter(fw);
-		
-		processHistoFiles(_props.getProperty("profileLoc"));
-		
+
+		ArrayList<Snapshot> snapshots = readSnapshots(_props.getProperty("profileLoc"));
+		writePairs(pairSnapshots(snapshots));
+
+		// pairSnapshots has left the snapshots in time order
+		if (_props.containsKey("storeLoc"))
+			HistoStore.importSnapshots(snapshots, new File(_props.getProperty("storeLoc")));
+
 		bw.close();
 	}
-	
-	private void processHistoFiles(String histoDir) throws IOException {
+
+	/**
+	 * Reads the totals of every snapshot in the directory.
+	 * @throws IOException  if histoDir is not a directory or cannot be read.
+	 */
+	static ArrayList<Snapshot> readSnapshots(String histoDir) throws IOException {
 	       File file = new File(histoDir);
+	       ArrayList<Snapshot> snapshots = new ArrayList<Snapshot>();
 
 	        // Reading directory contents
 	        File[] files = file.listFiles();
+	        if (files == null)
+	        	throw new IOException(histoDir + " is not a directory or cannot be read.");
+
+	        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+	        try {
+	        	ArrayList<Future<ArrayList<Snapshot>>> results = new ArrayList<Future<ArrayList<Snapshot>>>(files.length);
+	        	for (int i = 0; i < files.length; i++) {
+	        		final File histoFile = files[i];
+	        		results.add(executor.submit(new Callable<ArrayList<Snapshot>>() {
+	        			public ArrayList<Snapshot> call() throws IOException {
+	        				if (histoFile.getName().endsWith(".seg"))
+	        					return readSegment(histoFile);
 
-	        for (int i = 0; i < files.length; i++) {
-	        	readHisto(files[i]);
+	        				ArrayList<Snapshot> found = new ArrayList<Snapshot>(1);
+	        				Snapshot snapshot = readHisto(histoFile);
+	        				if (snapshot != null)
+	        					found.add(snapshot);
+	        				return found;
+	        			}
+	        		}));
+	        	}
+
+	        	for (Future<ArrayList<Snapshot>> result : results)
+	        		snapshots.addAll(result.get());
+	        } catch (InterruptedException ie) {
+	        	throw new IOException("Interrupted while reading " + histoDir, ie);
+	        } catch (ExecutionException ee) {
+	        	if (ee.getCause() instanceof IOException)
+	        		throw (IOException) ee.getCause();
+	        	throw new IOException("Unable to read " + histoDir, ee.getCause());
+	        } finally {
+	        	executor.shutdownNow();
 	        }
+
+	        return snapshots;
 	}
-	
-	private void readHisto(File histoFile) throws IOException {
-		final String encoding = "US-ASCII";
-		
-		BufferedReader buffered = null;
-		InputStream gzipStream  = null;
-		InputStream fileStream = new FileInputStream(histoFile);
-		
+
+	/**
+	 * Reads the record headers of a profile log segment.
+	 */
+	private static ArrayList<Snapshot> readSegment(File segment) throws IOException {
+		ArrayList<Snapshot> found = new ArrayList<Snapshot>();
+		RandomAccessFile raf = new RandomAccessFile(segment, "r");
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (buffer.remaining() < 8 || buffer.getInt() != ProfileLog.MAGIC || buffer.getInt() != ProfileLog.VERSION) {
+				System.err.println(segment + " is not a profile log segment; skipping.");
+				return found;
+			}
+
+			while (buffer.remaining() >= 4) {
+				int length = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining())
+					break;    // a record cut short by a crash
+
+				int next = buffer.position() + length;
+				Snapshot snapshot = new Snapshot();
+				snapshot.timestamp = buffer.getLong();
+				snapshot.sequence = buffer.getLong();
+				snapshot.jobId = getString(buffer);
+				if (snapshot.jobId.length() == 0)
+					snapshot.jobId = null;
+				snapshot.name = getString(buffer);
+				snapshot.start = (buffer.get() == 1);
+				snapshot.totalObjects = buffer.getLong();
+				snapshot.totalSize = buffer.getLong();
+				snapshot.source = segment;
+				snapshot.histogramLength = buffer.getInt();
+				snapshot.histogramOffset = buffer.position();
+				if (snapshot.totalObjects >= 0)
+					found.add(snapshot);
+
+				// skip the histogram
+				buffer.position(next);
+			}
+		} finally {
+			raf.close();
+		}
+
+		return found;
+	}
+
+	private static String getString(ByteBuffer buffer) throws IOException {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static Snapshot readHisto(File histoFile) throws IOException {
+		// the "Total" line is well within the last few hundred bytes
+		final int tailSize = 512;
+
+		Snapshot snapshot = parseName(histoFile.getName());
+		if (snapshot == null)
+			return null;
+
+		byte[] tail = new byte[tailSize];
+		int tailLength = 0;
+
 		if ( histoFile.getName().endsWith(".gz") ) {
-			gzipStream = new GZIPInputStream(fileStream);
-			Reader decoder = new InputStreamReader(gzipStream, encoding);
-			buffered = new BufferedReader(decoder);
+			// decompress in large blocks, keeping only the end of the stream
+			InputStream gzipStream = new GZIPInputStream(new FileInputStream(histoFile), 64 * 1024);
+			try {
+				byte[] block = new byte[64 * 1024];
+				int read;
+				while ((read = gzipStream.read(block)) > 0) {
+					if (read >= tailSize) {
+						System.arraycopy(block, read - tailSize, tail, 0, tailSize);
+						tailLength = tailSize;
+					} else {
+						int keep = Math.min(tailLength, tailSize - read);
+						System.arraycopy(tail, tailLength - keep, tail, 0, keep);
+						System.arraycopy(block, 0, tail, keep, read);
+						tailLength = keep + read;
+					}
+				}
+			} finally {
+				gzipStream.close();
+			}
+		} else {
+			// seek straight to the tail
+			RandomAccessFile raf = new RandomAccessFile(histoFile, "r");
+			try {
+				long length = raf.length();
+				tailLength = (int) Math.min(tailSize, length);
+				raf.seek(length - tailLength);
+				raf.readFully(tail, 0, tailLength);
+			} finally {
+				raf.close();
+			}
+		}
+
+		long[] totals = ProfileLog.parseTotals(tail, tailLength);
+		if (totals[0] < 0)
+			return null;
+
+		snapshot.totalObjects = totals[0];
+		snapshot.totalSize = totals[1];
+		snapshot.source = histoFile;
+		return snapshot;
+	}
+
+	/**
+	 * Parses the full histogram of a snapshot into instance and byte counts
+	 * indexed by class id.  Lines have the form
+	 * "&lt;rank&gt;: &lt;instances&gt; &lt;bytes&gt; &lt;class name&gt;".
+	 * @param snapshot  the snapshot.
+	 * @param classes   assigns the class ids.
+	 * @return the instance counts and the byte counts.
+	 */
+	static long[][] parseHistogram(Snapshot snapshot, ClassDictionary classes) throws IOException {
+		long[] instances = new long[1024];
+		long[] bytes = new long[1024];
+
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(openHistogram(snapshot), "US-ASCII"), 64 * 1024);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int colon = line.indexOf(':');
+				if (colon < 0)
+					continue;
+
+				int pos = colon + 1;
+				int length = line.length();
+
+				// instances
+				while (pos < length && line.charAt(pos) == ' ')
+					pos++;
+				long instanceCount = 0;
+				int digits = pos;
+				for (; pos < length && Character.isDigit(line.charAt(pos)); pos++)
+					instanceCount = instanceCount * 10 + (line.charAt(pos) - '0');
+				if (pos == digits)
+					continue;
+
+				// bytes
+				while (pos < length && line.charAt(pos) == ' ')
+					pos++;
+				long byteCount = 0;
+				digits = pos;
+				for (; pos < length && Character.isDigit(line.charAt(pos)); pos++)
+					byteCount = byteCount * 10 + (line.charAt(pos) - '0');
+				if (pos == digits)
+					continue;
+
+				String className = line.substring(pos).trim();
+				if (className.length() == 0)
+					continue;
+
+				int classId = classes.intern(className);
+				if (classId >= bytes.length) {
+					int size = Math.max(classId + 1, bytes.length * 2);
+					instances = Arrays.copyOf(instances, size);
+					bytes = Arrays.copyOf(bytes, size);
+				}
+				instances[classId] += instanceCount;
+				bytes[classId] += byteCount;
+			}
+		} finally {
+			reader.close();
+		}
+
+		return new long[][] { instances, bytes };
+	}
+
+	/**
+	 * Opens the full, uncompressed histogram of a snapshot.
+	 */
+	static InputStream openHistogram(Snapshot snapshot) throws IOException {
+		if (snapshot.histogramOffset >= 0) {
+			RandomAccessFile raf = new RandomAccessFile(snapshot.source, "r");
+			try {
+				byte[] compressed = new byte[snapshot.histogramLength];
+				raf.seek(snapshot.histogramOffset);
+				raf.readFully(compressed);
+				return new GZIPInputStream(new ByteArrayInputStream(compressed), 64 * 1024);
+			} finally {
+				raf.close();
+			}
+		}
+
+		InputStream fileStream = new FileInputStream(snapshot.source);
+		if (snapshot.source.getName().endsWith(".gz"))
+			return new GZIPInputStream(fileStream, 64 * 1024);
+		else
+			return new BufferedInputStream(fileStream, 64 * 1024);
+	}
+
+	/**
+	 * Parses a snapshot file name, returning null if it is not one.
+	 */
+	static Snapshot parseName(String fileName) {
+		Matcher matcher = SNAPSHOT_NAME.matcher(fileName);
+		if (!matcher.matches())
+			return null;
+
+		// the activity is ProfileStart, ProfileEnd, ProfileEnter-<activity> or ProfileExit-<activity>
+		String rest = matcher.group(4);
+		int activityStart = rest.lastIndexOf("-Profile");
+		int enterExit = Math.max(rest.lastIndexOf("-ProfileEnter-"), rest.lastIndexOf("-ProfileExit-"));
+		if (enterExit >= 0)
+			activityStart = enterExit;
+		if (activityStart < 0)
+			return null;
+
+		Snapshot snapshot = new Snapshot();
+		snapshot.timestamp = Long.parseLong(matcher.group(1));
+		if (matcher.group(2) != null) {
+			snapshot.jobId = matcher.group(2);
+			snapshot.sequence = Long.parseLong(matcher.group(3));
+		}
+
+		String processName = rest.substring(0, activityStart);
+		String activity = rest.substring(activityStart + 1);
+		if (activity.equals("ProfileStart") || activity.equals("ProfileEnd")) {
+			snapshot.name = processName;
+			snapshot.start = activity.equals("ProfileStart");
+		} else if (activity.startsWith("ProfileEnter-") || activity.startsWith("ProfileExit-")) {
+			snapshot.name = processName + "/" + activity.substring(activity.indexOf('-') + 1);
+			snapshot.start = activity.startsWith("ProfileEnter-");
 		} else {
-			buffered = new BufferedReader(new InputStreamReader(fileStream));
+			return null;
 		}
 
-		String curLine = null;
-		String lastLine = null;
-		
-		while((curLine = buffered.readLine()) != null){
-			lastLine = curLine;
-	    }
-		
-		if ((lastLine != null) && !lastLine.isEmpty()) {
-			String fields[] = lastLine.split("\\s+");
-			
-			if (fields.length == 3) {
-				
-				String totalObjects = fields[1];
-				String totalSize = fields[2];
-				
-				// get the timestamp from the filename
-				String histoFileName = histoFile.getName();
-				int firstDash = histoFileName.indexOf('-');
-				String timeString = histoFileName.substring(0, firstDash);
-				Date processTime = new Date(new Long(timeString));
-				
-				// format the date
-				 SimpleDateFormat simpleDateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss.SSS");
-				 String formattedTime = simpleDateFormat.format(processTime);
-				
-				bw.write(histoFileName + "," + formattedTime + "," + totalObjects + "," + totalSize + "\n");
+		return snapshot;
+	}
+
+	/**
+	 * Pairs each start snapshot with the end snapshot of the same job and
+	 * process (or activity).  Recursive invocations within a job nest, so
+	 * an end is paired with the latest unmatched start.  Snapshots without a
+	 * job ID are paired first in, first out.
+	 */
+	static ArrayList<SnapshotPair> pairSnapshots(ArrayList<Snapshot> snapshots) {
+		Collections.sort(snapshots, new Comparator<Snapshot>() {
+			public int compare(Snapshot a, Snapshot b) {
+				if (a.timestamp != b.timestamp)
+					return (a.timestamp < b.timestamp) ? -1 : 1;
+				return (a.sequence < b.sequence) ? -1 : ((a.sequence > b.sequence) ? 1 : 0);
+			}
+		});
+
+		ArrayList<SnapshotPair> pairs = new ArrayList<SnapshotPair>();
+		HashMap<String, LinkedList<SnapshotPair>> open = new HashMap<String, LinkedList<SnapshotPair>>();
+
+		for (Snapshot snapshot : snapshots) {
+			String key = snapshot.jobId + "|" + snapshot.name;
+			LinkedList<SnapshotPair> unmatched = open.get(key);
+			if (unmatched == null) {
+				unmatched = new LinkedList<SnapshotPair>();
+				open.put(key, unmatched);
+			}
+
+			if (snapshot.start) {
+				SnapshotPair pair = new SnapshotPair();
+				pair.start = snapshot;
+				pairs.add(pair);
+				unmatched.add(pair);
+			} else if (unmatched.isEmpty()) {
+				SnapshotPair pair = new SnapshotPair();
+				pair.end = snapshot;
+				pairs.add(pair);
+			} else {
+				SnapshotPair pair = (snapshot.jobId != null) ? unmatched.removeLast() : unmatched.removeFirst();
+				pair.end = snapshot;
 			}
 		}
-		
-		if (gzipStream != null)
-			gzipStream.close();
-		
-		buffered.close();
+
+		markOverlapping(pairs);
+		return pairs;
+	}
+
+	/**
+	 * Marks the complete pairs whose interval overlaps that of a pair
+	 * belonging to another job.
+	 */
+	private static void markOverlapping(ArrayList<SnapshotPair> pairs) {
+		// pairs are in start order; active holds the pairs that have not yet ended
+		PriorityQueue<SnapshotPair> active = new PriorityQueue<SnapshotPair>(16, new Comparator<SnapshotPair>() {
+			public int compare(SnapshotPair a, SnapshotPair b) {
+				return (a.end.timestamp < b.end.timestamp) ? -1 : ((a.end.timestamp > b.end.timestamp) ? 1 : 0);
+			}
+		});
+
+		for (SnapshotPair pair : pairs) {
+			if (pair.start == null || pair.end == null)
+				continue;
+
+			while (!active.isEmpty() && active.peek().end.timestamp < pair.start.timestamp)
+				active.poll();
+
+			for (SnapshotPair other : active) {
+				if (pair.start.jobId == null || !pair.start.jobId.equals(other.start.jobId)) {
+					pair.overlapping = true;
+					other.overlapping = true;
+				}
+			}
+
+			active.add(pair);
+		}
+	}
+
+	private void writePairs(ArrayList<SnapshotPair> pairs) throws IOException {
+		for (SnapshotPair pair : pairs) {
+			Snapshot first = pair.first();
+			boolean complete = (pair.start != null && pair.end != null);
+
+			bw.write(first.name + "," +
+					(first.jobId == null ? "" : first.jobId) + "," +
+					(pair.start == null ? "" : format(pair.start.timestamp)) + "," +
+					(pair.end == null ? "" : format(pair.end.timestamp)) + "," +
+					(complete ? String.valueOf(pair.end.timestamp - pair.start.timestamp) : "") + "," +
+					(pair.start == null ? "," : pair.start.totalObjects + "," + pair.start.totalSize) + "," +
+					(pair.end == null ? "," : pair.end.totalObjects + "," + pair.end.totalSize) + "," +
+					(complete ? (pair.end.totalObjects - pair.start.totalObjects) + "," +
+							(pair.end.totalSize - pair.start.totalSize) : ",") + "," +
+					pair.overlapping + "\n");
+		}
+	}
+
+	private String format(long timestamp) {
+		return simpleDateFormat.format(new Date(timestamp));
 	}
 }
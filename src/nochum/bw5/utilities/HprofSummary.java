@@ -0,0 +1,681 @@
+package nochum.bw5.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Triages the heap dumps written by BWProfile.heapDump (or by any HotSpot
+ * JVM) without loading them into the Eclipse Memory Analyzer.  Every .hprof
+ * and .hprof.gz file in the -profiles directory is read as a stream, so the
+ * memory needed depends on the number of classes and not on the size of the
+ * dump.  Dumps are read in parallel, one thread per processor.
+ * <p>
+ * For each dump the report lists:
+ * <ul>
+ * <li>the classes with the greatest shallow size (20 by default, set by
+ * -top), with their instance count, shallow bytes and approximate retained
+ * bytes;
+ * <li>the largest object arrays;
+ * <li>the largest char[] and byte[] arrays, which hold the contents of the
+ * largest strings, with the start of their text.
+ * </ul>
+ * Shallow sizes are estimated as on a 64-bit JVM without compressed
+ * references, so they are somewhat larger than MAT's.  A true retained size
+ * needs the whole object graph.  Instead, up to 1000 instances of each class
+ * are sampled on a first pass and the objects they reference are sized on a
+ * second pass; the retained size is the shallow size plus the referenced
+ * bytes per sampled instance times the instance count.  An object referenced
+ * by several sampled instances is counted once, for the first.
+ * <p>
+ * The output is a file of comma-separated values: the dump, the section
+ * (class, array or string), the rank, the class, the instance count or array
+ * length, the shallow bytes, and then the retained bytes of a class, the
+ * object id of an array or the start of a string.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class HprofSummary {
+
+	// top-level record tags
+	private static final int TAG_STRING = 0x01;
+	private static final int TAG_LOAD_CLASS = 0x02;
+	private static final int TAG_HEAP_DUMP = 0x0C;
+	private static final int TAG_HEAP_DUMP_SEGMENT = 0x1C;
+
+	// heap dump sub-record tags
+	private static final int ROOT_UNKNOWN = 0xFF;
+	private static final int ROOT_JNI_GLOBAL = 0x01;
+	private static final int ROOT_JNI_LOCAL = 0x02;
+	private static final int ROOT_JAVA_FRAME = 0x03;
+	private static final int ROOT_NATIVE_STACK = 0x04;
+	private static final int ROOT_STICKY_CLASS = 0x05;
+	private static final int ROOT_THREAD_BLOCK = 0x06;
+	private static final int ROOT_MONITOR_USED = 0x07;
+	private static final int ROOT_THREAD_OBJECT = 0x08;
+	private static final int CLASS_DUMP = 0x20;
+	private static final int INSTANCE_DUMP = 0x21;
+	private static final int OBJECT_ARRAY_DUMP = 0x22;
+	private static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+
+	// basic types
+	private static final int TYPE_OBJECT = 2;
+	private static final int TYPE_CHAR = 5;
+	private static final int TYPE_BYTE = 8;
+	private static final String[] TYPE_NAMES = { null, null, "Object", null, "boolean", "char", "float",
+			"double", "byte", "short", "int", "long" };
+	private static final int[] TYPE_SIZES = { 0, 0, 0, 0, 1, 2, 4, 8, 1, 2, 4, 8 };
+
+	private static final int SAMPLES_PER_CLASS = 1000;
+	private static final int MAX_SAMPLED_REFERENCES = 1 << 20;
+	private static final int PREVIEW_LENGTH = 60;
+
+	/**
+	 * The properties collected by the Optimize facade class
+	 */
+	private Properties _props = null;
+
+	/**
+	 * The totals of a class, or of the arrays of a primitive type
+	 */
+	private static class ClassInfo {
+		String name = null;
+		long superId = 0;
+		byte[] fieldTypes = null;
+		long instances = 0;
+		long bytes = 0;
+		int sampled = 0;
+		long referencedBytes = 0;
+
+		long retained() {
+			return bytes + ((sampled == 0) ? 0 : referencedBytes * instances / sampled);
+		}
+	}
+
+	/**
+	 * A large array
+	 */
+	private static class LargeObject {
+		String className = null;
+		long id;
+		long length;
+		long bytes;
+		String preview = null;
+	}
+
+	private static final Comparator<LargeObject> BY_SIZE = new Comparator<LargeObject>() {
+		public int compare(LargeObject a, LargeObject b) {
+			return (a.bytes < b.bytes) ? -1 : ((a.bytes > b.bytes) ? 1 : 0);
+		}
+	};
+
+	/**
+	 * The objects referenced by sampled instances and the class of the
+	 * instance that first referenced each, in an open-addressed table
+	 */
+	private static class ReferenceTable {
+		private final long[] ids = new long[MAX_SAMPLED_REFERENCES * 2];
+		private final ClassInfo[] owners = new ClassInfo[MAX_SAMPLED_REFERENCES * 2];
+		int size = 0;
+
+		private int slot(long id) {
+			int mask = ids.length - 1;
+			int slot = (int) (((id ^ (id >>> 29)) * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+			while (ids[slot] != 0 && ids[slot] != id)
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+
+		void add(long id, ClassInfo owner) {
+			int slot = slot(id);
+			if (ids[slot] == 0) {
+				ids[slot] = id;
+				owners[slot] = owner;
+				size++;
+			}
+		}
+
+		ClassInfo get(long id) {
+			return owners[slot(id)];
+		}
+	}
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws IOException                    If errors are incurred reading the heap dumps.
+	 */
+	public HprofSummary(Properties props) throws IOException, UsageException {
+		final String usageString = "\nUsage: Optimize hprofSummary [options]\n\n" +
+				"   where options are:\n\n" +
+				"-output    <output location>    - Full path and file name for output report.\n" +
+				"-profiles  <profile location>   - Full path to the directory containing the .hprof or .hprof.gz files.\n" +
+				"-top       <number of entries>  - Optional.  The number of classes, arrays and strings to report per dump (default 20).\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("profileLoc")) {
+			throw(new UsageException("Required input parameter '-profiles' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		int top = 20;
+		if (_props.containsKey("top")) {
+			try {
+				top = Integer.parseInt(_props.getProperty("top"));
+			} catch (NumberFormatException nfe) {
+				top = -1;
+			}
+			if (top <= 0) {
+				throw(new UsageException("Input parameter '-top' must be a positive number.", usageString));
+			}
+		}
+
+		File[] files = new File(_props.getProperty("profileLoc")).listFiles();
+		if (files == null)
+			throw new IOException(_props.getProperty("profileLoc") + " is not a directory.");
+
+		ArrayList<File> dumps = new ArrayList<File>();
+		for (File file : files) {
+			if (file.isFile() && (file.getName().endsWith(".hprof") || file.getName().endsWith(".hprof.gz")))
+				dumps.add(file);
+		}
+		Collections.sort(dumps);
+
+		writeResults(summarize(dumps, top));
+	}
+
+	/**
+	 * Summarizes the dumps in parallel.
+	 * @return the report lines of each dump, in the order of the dumps.
+	 */
+	private ArrayList<ArrayList<String>> summarize(ArrayList<File> dumps, final int top) throws IOException {
+		ArrayList<ArrayList<String>> reports = new ArrayList<ArrayList<String>>();
+
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(dumps.size(), Runtime.getRuntime().availableProcessors())));
+		try {
+			ArrayList<Future<ArrayList<String>>> results = new ArrayList<Future<ArrayList<String>>>();
+			for (final File dump : dumps) {
+				results.add(executor.submit(new Callable<ArrayList<String>>() {
+					public ArrayList<String> call() throws IOException {
+						return new DumpReader(dump, top).summarize();
+					}
+				}));
+			}
+
+			for (Future<ArrayList<String>> result : results)
+				reports.add(result.get());
+		} catch (InterruptedException ie) {
+			throw new IOException("Interrupted while reading heap dumps", ie);
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof IOException)
+				throw (IOException) ee.getCause();
+			throw new IOException("Unable to read heap dumps", ee.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return reports;
+	}
+
+	private void writeResults(ArrayList<ArrayList<String>> reports) throws IOException {
+		PrintWriter out = new PrintWriter(_props.getProperty("outLoc"));
+		for (ArrayList<String> report : reports) {
+			for (String line : report)
+				out.println(line);
+		}
+		out.flush();
+		out.close();
+	}
+
+	/**
+	 * Reads a single dump
+	 */
+	private static class DumpReader {
+		private final File file;
+		private final int top;
+
+		private DataInputStream in = null;
+		private long position = 0;
+		private int idSize = 8;
+		private boolean secondPass = false;
+
+		private HashMap<Long, String> strings = new HashMap<Long, String>();
+		private final HashMap<Long, ClassInfo> classes = new HashMap<Long, ClassInfo>();
+		private final ClassInfo[] primitiveArrays = new ClassInfo[TYPE_NAMES.length];
+		private ReferenceTable references = null;
+		private final PriorityQueue<LargeObject> largestArrays = new PriorityQueue<LargeObject>(16, BY_SIZE);
+		private final PriorityQueue<LargeObject> largestStrings = new PriorityQueue<LargeObject>(16, BY_SIZE);
+
+		DumpReader(File file, int top) {
+			this.file = file;
+			this.top = top;
+		}
+
+		ArrayList<String> summarize() throws IOException {
+			references = new ReferenceTable();
+			read();
+			if (references.size > 0) {
+				secondPass = true;
+				read();
+			}
+			references = null;
+
+			ArrayList<ClassInfo> sorted = new ArrayList<ClassInfo>(classes.values());
+			for (ClassInfo info : primitiveArrays) {
+				if (info != null)
+					sorted.add(info);
+			}
+			Collections.sort(sorted, new Comparator<ClassInfo>() {
+				public int compare(ClassInfo a, ClassInfo b) {
+					return (a.bytes > b.bytes) ? -1 : ((a.bytes < b.bytes) ? 1 : 0);
+				}
+			});
+
+			String dump = file.getName();
+			ArrayList<String> lines = new ArrayList<String>();
+			for (int rank = 0; rank < Math.min(top, sorted.size()); rank++) {
+				ClassInfo info = sorted.get(rank);
+				if (info.instances == 0)
+					break;
+				lines.add(dump + ",class," + (rank + 1) + "," + info.name + "," + info.instances + "," +
+						info.bytes + "," + info.retained());
+			}
+
+			int rank = 1;
+			for (LargeObject array : descending(largestArrays))
+				lines.add(dump + ",array," + (rank++) + "," + array.className + "," + array.length + "," +
+						array.bytes + ",0x" + Long.toHexString(array.id));
+
+			rank = 1;
+			for (LargeObject string : descending(largestStrings))
+				lines.add(dump + ",string," + (rank++) + "," + string.className + "," + string.length + "," +
+						string.bytes + "," + string.preview);
+
+			return lines;
+		}
+
+		private static ArrayList<LargeObject> descending(PriorityQueue<LargeObject> queue) {
+			ArrayList<LargeObject> objects = new ArrayList<LargeObject>(queue);
+			Collections.sort(objects, Collections.reverseOrder(BY_SIZE));
+			return objects;
+		}
+
+		private void read() throws IOException {
+			InputStream raw = new FileInputStream(file);
+			if (file.getName().endsWith(".gz"))
+				raw = new GZIPInputStream(raw, 64 * 1024);
+			in = new DataInputStream(new BufferedInputStream(raw, 256 * 1024));
+			position = 0;
+
+			try {
+				// "JAVA PROFILE 1.0.x", a NUL, the identifier size and a timestamp
+				int c;
+				while ((c = in.read()) > 0)
+					position++;
+				if (c < 0)
+					throw new IOException(file + " is not a heap dump.");
+				position++;
+				idSize = u4();
+				if (idSize != 4 && idSize != 8)
+					throw new IOException(file + " has an unsupported identifier size: " + idSize);
+				skip(8);
+
+				while (true) {
+					int tag = in.read();
+					if (tag < 0)
+						break;
+					position++;
+					u4();
+					long length = u4() & 0xFFFFFFFFL;
+
+					if (tag == TAG_STRING && !secondPass && strings != null) {
+						long id = id();
+						byte[] utf8 = new byte[(int) (length - idSize)];
+						in.readFully(utf8);
+						position += utf8.length;
+						strings.put(Long.valueOf(id), new String(utf8, "UTF-8"));
+					} else if (tag == TAG_LOAD_CLASS && !secondPass) {
+						u4();
+						long classId = id();
+						u4();
+						String name = (strings == null) ? null : strings.get(Long.valueOf(id()));
+						getClass(classId).name = (name == null) ? "0x" + Long.toHexString(classId) : readableName(name);
+					} else if (tag == TAG_HEAP_DUMP || tag == TAG_HEAP_DUMP_SEGMENT) {
+						// the class names have all been loaded, so the symbols are no longer needed
+						strings = null;
+						readHeapDump(position + length);
+					} else {
+						skip(length);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		private void readHeapDump(long end) throws IOException {
+			while (position < end) {
+				int tag = u1();
+				switch (tag) {
+				case ROOT_UNKNOWN:
+				case ROOT_STICKY_CLASS:
+				case ROOT_MONITOR_USED:
+					skip(idSize);
+					break;
+				case ROOT_JNI_GLOBAL:
+					skip(2 * idSize);
+					break;
+				case ROOT_JNI_LOCAL:
+				case ROOT_JAVA_FRAME:
+				case ROOT_THREAD_OBJECT:
+					skip(idSize + 8);
+					break;
+				case ROOT_NATIVE_STACK:
+				case ROOT_THREAD_BLOCK:
+					skip(idSize + 4);
+					break;
+				case CLASS_DUMP:
+					readClass();
+					break;
+				case INSTANCE_DUMP:
+					readInstance();
+					break;
+				case OBJECT_ARRAY_DUMP:
+					readObjectArray();
+					break;
+				case PRIMITIVE_ARRAY_DUMP:
+					readPrimitiveArray();
+					break;
+				default:
+					throw new IOException(file + " has an unsupported heap dump record: 0x" + Integer.toHexString(tag));
+				}
+			}
+		}
+
+		private void readClass() throws IOException {
+			ClassInfo info = getClass(id());
+			u4();
+			info.superId = id();
+			skip(5 * idSize + 4);
+
+			int constants = u2();
+			for (int i = 0; i < constants; i++) {
+				u2();
+				skip(typeSize(u1()));
+			}
+
+			int statics = u2();
+			for (int i = 0; i < statics; i++) {
+				skip(idSize);
+				skip(typeSize(u1()));
+			}
+
+			int fields = u2();
+			byte[] fieldTypes = new byte[fields];
+			for (int i = 0; i < fields; i++) {
+				skip(idSize);
+				fieldTypes[i] = (byte) u1();
+			}
+			info.fieldTypes = fieldTypes;
+		}
+
+		private void readInstance() throws IOException {
+			long id = id();
+			u4();
+			ClassInfo info = getClass(id());
+			int length = u4();
+			long shallow = align(2 * idSize + length);
+
+			if (secondPass) {
+				skip(length);
+				ClassInfo owner = references.get(id);
+				if (owner != null)
+					owner.referencedBytes += shallow;
+				return;
+			}
+
+			info.instances++;
+			info.bytes += shallow;
+
+			if (info.sampled < SAMPLES_PER_CLASS && references.size < MAX_SAMPLED_REFERENCES && length > 0) {
+				byte[] data = new byte[length];
+				in.readFully(data);
+				position += length;
+				if (sampleReferences(info, data))
+					info.sampled++;
+			} else {
+				skip(length);
+			}
+		}
+
+		// records the objects referenced by the fields of an instance
+		private boolean sampleReferences(ClassInfo info, byte[] data) throws IOException {
+			int offset = 0;
+			for (ClassInfo type = info; type != null; type = (type.superId == 0) ? null : classes.get(Long.valueOf(type.superId))) {
+				if (type.fieldTypes == null)
+					return false;
+				for (byte fieldType : type.fieldTypes) {
+					if (fieldType == TYPE_OBJECT) {
+						if (offset + idSize > data.length)
+							return false;
+						long reference = 0;
+						for (int i = 0; i < idSize; i++)
+							reference = (reference << 8) | (data[offset + i] & 0xFF);
+						if (reference != 0 && references.size < MAX_SAMPLED_REFERENCES)
+							references.add(reference, info);
+						offset += idSize;
+					} else {
+						offset += typeSize(fieldType);
+					}
+				}
+			}
+			return true;
+		}
+
+		private void readObjectArray() throws IOException {
+			long id = id();
+			u4();
+			int length = u4();
+			ClassInfo info = getClass(id());
+			skip((long) length * idSize);
+			long shallow = align(2 * idSize + 4 + (long) length * idSize);
+
+			if (secondPass) {
+				ClassInfo owner = references.get(id);
+				if (owner != null)
+					owner.referencedBytes += shallow;
+				return;
+			}
+
+			info.instances++;
+			info.bytes += shallow;
+
+			if (isLarge(largestArrays, shallow)) {
+				LargeObject array = new LargeObject();
+				array.className = info.name;
+				array.id = id;
+				array.length = length;
+				array.bytes = shallow;
+				keep(largestArrays, array);
+			}
+		}
+
+		private void readPrimitiveArray() throws IOException {
+			long id = id();
+			u4();
+			int length = u4();
+			int type = u1();
+			int elementSize = typeSize(type);
+			long dataLength = (long) length * elementSize;
+			long shallow = align(2 * idSize + 4 + dataLength);
+
+			if (secondPass) {
+				skip(dataLength);
+				ClassInfo owner = references.get(id);
+				if (owner != null)
+					owner.referencedBytes += shallow;
+				return;
+			}
+
+			if (primitiveArrays[type] == null) {
+				primitiveArrays[type] = new ClassInfo();
+				primitiveArrays[type].name = TYPE_NAMES[type] + "[]";
+			}
+			primitiveArrays[type].instances++;
+			primitiveArrays[type].bytes += shallow;
+
+			if ((type == TYPE_CHAR || type == TYPE_BYTE) && isLarge(largestStrings, shallow)) {
+				int previewLength = Math.min(length, PREVIEW_LENGTH);
+				byte[] data = new byte[previewLength * elementSize];
+				in.readFully(data);
+				position += data.length;
+				skip(dataLength - data.length);
+
+				LargeObject string = new LargeObject();
+				string.className = primitiveArrays[type].name;
+				string.id = id;
+				string.length = length;
+				string.bytes = shallow;
+				string.preview = preview(data, type == TYPE_CHAR);
+				keep(largestStrings, string);
+			} else {
+				skip(dataLength);
+			}
+		}
+
+		private boolean isLarge(PriorityQueue<LargeObject> queue, long bytes) {
+			return queue.size() < top || bytes > queue.peek().bytes;
+		}
+
+		private void keep(PriorityQueue<LargeObject> queue, LargeObject object) {
+			queue.add(object);
+			if (queue.size() > top)
+				queue.poll();
+		}
+
+		// the text of a char[] (UTF-16) or byte[] (Latin-1), made safe for the report
+		private static String preview(byte[] data, boolean utf16) {
+			StringBuilder text = new StringBuilder();
+			for (int i = 0; i < data.length; i += utf16 ? 2 : 1) {
+				char c = utf16 ? (char) (((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF)) : (char) (data[i] & 0xFF);
+				text.append((c < ' ' || c == ',' || c == '"' || c == 0x7F) ? '.' : c);
+			}
+			return text.toString();
+		}
+
+		private ClassInfo getClass(long classId) {
+			Long key = Long.valueOf(classId);
+			ClassInfo info = classes.get(key);
+			if (info == null) {
+				info = new ClassInfo();
+				info.name = "0x" + Long.toHexString(classId);
+				classes.put(key, info);
+			}
+			return info;
+		}
+
+		// java/lang/String -> java.lang.String, [Ljava/lang/String; -> java.lang.String[]
+		private static String readableName(String name) {
+			int dimensions = 0;
+			while (dimensions < name.length() && name.charAt(dimensions) == '[')
+				dimensions++;
+
+			String element = name.substring(dimensions);
+			if (dimensions > 0) {
+				if (element.startsWith("L") && element.endsWith(";"))
+					element = element.substring(1, element.length() - 1);
+				else if (element.length() == 1)
+					element = primitiveName(element.charAt(0));
+			}
+
+			StringBuilder readable = new StringBuilder(element.replace('/', '.'));
+			for (int i = 0; i < dimensions; i++)
+				readable.append("[]");
+			return readable.toString();
+		}
+
+		private static String primitiveName(char descriptor) {
+			switch (descriptor) {
+			case 'Z': return "boolean";
+			case 'C': return "char";
+			case 'F': return "float";
+			case 'D': return "double";
+			case 'B': return "byte";
+			case 'S': return "short";
+			case 'I': return "int";
+			case 'J': return "long";
+			default: return String.valueOf(descriptor);
+			}
+		}
+
+		private int typeSize(int type) throws IOException {
+			if (type == TYPE_OBJECT)
+				return idSize;
+			if (type < 0 || type >= TYPE_SIZES.length || TYPE_SIZES[type] == 0)
+				throw new IOException(file + " has an unsupported basic type: " + type);
+			return TYPE_SIZES[type];
+		}
+
+		private long align(long size) {
+			return (size + 7) & ~7L;
+		}
+
+		private int u1() throws IOException {
+			position++;
+			return in.readUnsignedByte();
+		}
+
+		private int u2() throws IOException {
+			position += 2;
+			return in.readUnsignedShort();
+		}
+
+		private int u4() throws IOException {
+			position += 4;
+			return in.readInt();
+		}
+
+		private long id() throws IOException {
+			position += idSize;
+			return (idSize == 4) ? (in.readInt() & 0xFFFFFFFFL) : in.readLong();
+		}
+
+		private void skip(long count) throws IOException {
+			position += count;
+			while (count > 0) {
+				int skipped = in.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+				if (skipped <= 0) {
+					if (in.read() < 0)
+						throw new EOFException(file + " is truncated.");
+					skipped = 1;
+				}
+				count -= skipped;
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package nochum.bw5.utilities;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Emits a Java Flight Recorder event for each BusinessWorks job, and for each
+ * activity wrapped by "Optimize instrument -mode jfr -activities", so that
+ * JFR's own CPU, allocation and lock events can be attributed to the BW
+ * process, activity and job that was running on the thread.
+ * <p>
+ * The event type is nochum.bw5.Job (labelled "BW Job", in the BusinessWorks
+ * category), a duration event with the string fields process, activity
+ * (empty for a whole job) and jobId.  It is recorded when the engine runs
+ * with a recording that enables it, for example
+ * -XX:StartFlightRecording=settings=profile, and is read back by
+ * "Optimize jfrSummary".
+ * <p>
+ * The utilities are built to run on Java 6 engines, where jdk.jfr does not
+ * exist, so the event type is defined at run time through
+ * jdk.jfr.EventFactory and every JFR call is made reflectively.  When JFR is
+ * not available the calls do nothing.
+ * <p>
+ * An event is begun by the ProfileStart (or ProfileEnter) activity and
+ * committed by the matching ProfileEnd (or ProfileExit) of the same job, so
+ * open events are held in a map keyed by job and name.  At most 100000
+ * events are held open; beyond that the event begun longest ago is
+ * discarded uncommitted, so jobs that fault before their ProfileEnd do not
+ * stop later jobs from being recorded.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class JfrEvents {
+
+	static final String EVENT_NAME = "nochum.bw5.Job";
+
+	private static final int MAX_OPEN_EVENTS = 100000;
+
+	private static final Logger logger = org.apache.log4j.Logger.getLogger("bw.logger");
+
+	private static volatile JfrEvents instance;
+	private static volatile boolean unavailable = false;
+
+	private final Object factory;
+	private final Method newEvent;
+	private final Method set;
+	private final Method begin;
+	private final Method end;
+	private final Method commit;
+
+	/**
+	 * job, process and activity -> open event, in the order they were begun
+	 */
+	private final LinkedHashMap<String, Object> openEvents = new LinkedHashMap<String, Object>() {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+			return size() > MAX_OPEN_EVENTS;
+		}
+	};
+
+	private JfrEvents() throws Exception {
+		Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+		Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+		List<Object> annotations = new ArrayList<Object>();
+		annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), EVENT_NAME));
+		annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), "BW Job"));
+		annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "BusinessWorks" }));
+
+		Constructor<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+		List<Object> fields = new ArrayList<Object>();
+		fields.add(valueDescriptor.newInstance(String.class, "process"));
+		fields.add(valueDescriptor.newInstance(String.class, "activity"));
+		fields.add(valueDescriptor.newInstance(String.class, "jobId"));
+
+		Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+		factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+		eventFactory.getMethod("register").invoke(factory);
+		newEvent = eventFactory.getMethod("newEvent");
+
+		Class<?> event = Class.forName("jdk.jfr.Event");
+		set = event.getMethod("set", int.class, Object.class);
+		begin = event.getMethod("begin");
+		end = event.getMethod("end");
+		commit = event.getMethod("commit");
+	}
+
+	/**
+	 * Returns the event emitter, or null if JFR is not available.
+	 */
+	static JfrEvents getInstance() {
+		if (instance == null && !unavailable) {
+			synchronized (JfrEvents.class) {
+				if (instance == null && !unavailable) {
+					try {
+						instance = new JfrEvents();
+						logger.info("BWProfile " + EVENT_NAME + " JFR events registered.");
+					} catch (Throwable t) {
+						unavailable = true;
+						logger.warn("BWProfile JFR events are not available in this JVM: " + t);
+						return null;
+					}
+				}
+			}
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Begins the event of a job or activity.
+	 */
+	void start(String process, String activity, String jobId) {
+		try {
+			Object event = newEvent.invoke(factory);
+			set.invoke(event, Integer.valueOf(0), process);
+			set.invoke(event, Integer.valueOf(1), activity);
+			set.invoke(event, Integer.valueOf(2), jobId);
+			begin.invoke(event);
+			String key = key(process, activity, jobId);
+			synchronized (openEvents) {
+				// a restarted key is begun again, rather than keeping its old position
+				openEvents.remove(key);
+				openEvents.put(key, event);
+			}
+		} catch (Exception e) {
+			logger.warn("BWProfile could not begin a JFR event for " + process, e);
+		}
+	}
+
+	/**
+	 * Ends and commits the event begun by the matching start.
+	 */
+	void end(String process, String activity, String jobId) {
+		Object event = null;
+		synchronized (openEvents) {
+			event = openEvents.remove(key(process, activity, jobId));
+		}
+		if (event == null)
+			return;
+
+		try {
+			end.invoke(event);
+			commit.invoke(event);
+		} catch (Exception e) {
+			logger.warn("BWProfile could not commit a JFR event for " + process, e);
+		}
+	}
+
+	private static String key(String process, String activity, String jobId) {
+		return jobId + '\u0000' + process + '\u0000' + activity;
+	}
+}
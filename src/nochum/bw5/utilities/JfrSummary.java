@@ -0,0 +1,376 @@
+package nochum.bw5.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Attributes the CPU, allocation and blocking events of Java Flight Recorder
+ * recordings to the BusinessWorks processes and activities that were running,
+ * using the nochum.bw5.Job events emitted by a project instrumented with
+ * "Optimize instrument -mode jfr" (see JfrEvents).
+ * <p>
+ * Every .jfr file in the -profiles directory is read twice.  The first pass
+ * collects the interval of each BW job and activity event on each thread.
+ * The second pass assigns each jdk.ExecutionSample, each allocation event
+ * (jdk.ObjectAllocationSample, or the TLAB allocation events of JVMs that
+ * lack it) and each jdk.JavaMonitorEnter and jdk.ThreadPark event to the
+ * innermost interval on its thread that contains its start time.  The
+ * figures of a process therefore exclude those of its wrapped activities,
+ * which are reported as process/activity.  Events outside every interval are
+ * reported under "(outside BW jobs)".
+ * <p>
+ * The recordings are read through the jdk.jfr.consumer API, which requires
+ * running this command on Java 11 or later (or 8u262 or later); it is called
+ * reflectively so the utilities still build for Java 6.
+ * <p>
+ * The output is a file of comma-separated values with one line per process
+ * or activity, sorted by CPU samples: the name, the number of job or activity
+ * events, their total milliseconds, the CPU samples, the share of all CPU
+ * samples, the bytes allocated and the milliseconds blocked on monitors or
+ * parked.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class JfrSummary {
+
+	private static final String OUTSIDE = "(outside BW jobs)";
+
+	/**
+	 * The properties collected by the Optimize facade class
+	 */
+	private Properties _props = null;
+
+	/**
+	 * The totals attributed to a process or activity
+	 */
+	private static class Totals {
+		String name = null;
+		long events = 0;
+		long nanos = 0;
+		long cpuSamples = 0;
+		long sampledBytes = 0;
+		long tlabBytes = 0;
+		long blockedNanos = 0;
+	}
+
+	/**
+	 * The BW intervals of one thread, sorted by start time, with the index of
+	 * the interval that encloses each
+	 */
+	private static class Intervals {
+		int count = 0;
+		long[] starts = new long[16];
+		long[] ends = new long[16];
+		Totals[] owners = new Totals[16];
+		int[] parents = null;
+
+		void add(long start, long end, Totals owner) {
+			if (count == starts.length) {
+				starts = Arrays.copyOf(starts, count * 2);
+				ends = Arrays.copyOf(ends, count * 2);
+				owners = Arrays.copyOf(owners, count * 2);
+			}
+			starts[count] = start;
+			ends[count] = end;
+			owners[count] = owner;
+			count++;
+		}
+
+		void sort() {
+			Integer[] order = new Integer[count];
+			for (int i = 0; i < count; i++)
+				order[i] = Integer.valueOf(i);
+			// outer intervals before the intervals they enclose
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					int i = a.intValue(), j = b.intValue();
+					if (starts[i] != starts[j])
+						return (starts[i] < starts[j]) ? -1 : 1;
+					return (ends[i] > ends[j]) ? -1 : ((ends[i] < ends[j]) ? 1 : 0);
+				}
+			});
+
+			long[] sortedStarts = new long[count];
+			long[] sortedEnds = new long[count];
+			Totals[] sortedOwners = new Totals[count];
+			for (int i = 0; i < count; i++) {
+				sortedStarts[i] = starts[order[i].intValue()];
+				sortedEnds[i] = ends[order[i].intValue()];
+				sortedOwners[i] = owners[order[i].intValue()];
+			}
+			starts = sortedStarts;
+			ends = sortedEnds;
+			owners = sortedOwners;
+
+			parents = new int[count];
+			for (int i = 0; i < count; i++) {
+				int parent = i - 1;
+				while (parent >= 0 && ends[parent] < starts[i])
+					parent = parents[parent];
+				parents[i] = parent;
+			}
+		}
+
+		// the innermost interval containing the time, or null
+		Totals find(long time) {
+			int low = 0, high = count - 1, last = -1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (starts[middle] <= time) {
+					last = middle;
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+
+			while (last >= 0 && ends[last] < time)
+				last = parents[last];
+			return (last < 0) ? null : owners[last];
+		}
+	}
+
+	// the jdk.jfr.consumer methods, looked up once
+	private Method toPath;
+	private Method hasMoreEvents;
+	private Method readEvent;
+	private Method close;
+	private java.lang.reflect.Constructor<?> recordingFile;
+	private Method getEventType;
+	private Method getTypeName;
+	private Method getStartTime;
+	private Method getEndTime;
+	private Method getThread;
+	private Method getValue;
+	private Method hasField;
+	private Method getLong;
+	private Method getString;
+	private Method getJavaThreadId;
+	private Method getEpochSecond;
+	private Method getNano;
+
+	private final HashMap<String, Totals> totals = new HashMap<String, Totals>();
+	private HashMap<Long, Intervals> threads = null;
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws IOException                    If errors are incurred reading the recordings.
+	 */
+	public JfrSummary(Properties props) throws IOException, UsageException {
+		final String usageString = "\nUsage: Optimize jfrSummary [options]\n\n" +
+				"   where options are:\n\n" +
+				"-output    <output location>    - Full path and file name for output report.\n" +
+				"-profiles  <profile location>   - Full path to the directory containing the .jfr recordings.\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("profileLoc")) {
+			throw(new UsageException("Required input parameter '-profiles' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		File[] files = new File(_props.getProperty("profileLoc")).listFiles();
+		if (files == null)
+			throw new IOException(_props.getProperty("profileLoc") + " is not a directory.");
+		Arrays.sort(files);
+
+		try {
+			lookupMethods();
+		} catch (Exception e) {
+			throw new IOException("Reading JFR recordings requires Java 11 or later (or 8u262 or later).", e);
+		}
+
+		for (File file : files) {
+			if (!file.isFile() || !file.getName().endsWith(".jfr"))
+				continue;
+
+			threads = new HashMap<Long, Intervals>();
+			try {
+				readIntervals(file);
+				for (Intervals intervals : threads.values())
+					intervals.sort();
+				readSamples(file);
+			} catch (InvocationTargetException ite) {
+				if (ite.getCause() instanceof IOException)
+					throw (IOException) ite.getCause();
+				throw new IOException("Unable to read " + file, ite.getCause());
+			} catch (IllegalAccessException iae) {
+				throw new IOException("Unable to read " + file, iae);
+			}
+		}
+
+		writeResults();
+	}
+
+	private void lookupMethods() throws Exception {
+		toPath = File.class.getMethod("toPath");
+		Class<?> recording = Class.forName("jdk.jfr.consumer.RecordingFile");
+		recordingFile = recording.getConstructor(Class.forName("java.nio.file.Path"));
+		hasMoreEvents = recording.getMethod("hasMoreEvents");
+		readEvent = recording.getMethod("readEvent");
+		close = recording.getMethod("close");
+
+		Class<?> recordedEvent = Class.forName("jdk.jfr.consumer.RecordedEvent");
+		getEventType = recordedEvent.getMethod("getEventType");
+		getTypeName = Class.forName("jdk.jfr.EventType").getMethod("getName");
+		getStartTime = recordedEvent.getMethod("getStartTime");
+		getEndTime = recordedEvent.getMethod("getEndTime");
+		getThread = recordedEvent.getMethod("getThread");
+
+		Class<?> recordedObject = Class.forName("jdk.jfr.consumer.RecordedObject");
+		getValue = recordedObject.getMethod("getValue", String.class);
+		hasField = recordedObject.getMethod("hasField", String.class);
+		getLong = recordedObject.getMethod("getLong", String.class);
+		getString = recordedObject.getMethod("getString", String.class);
+		getJavaThreadId = Class.forName("jdk.jfr.consumer.RecordedThread").getMethod("getJavaThreadId");
+
+		Class<?> instant = Class.forName("java.time.Instant");
+		getEpochSecond = instant.getMethod("getEpochSecond");
+		getNano = instant.getMethod("getNano");
+	}
+
+	/**
+	 * Collects the BW job and activity intervals of every thread.
+	 */
+	private void readIntervals(File file) throws IOException, InvocationTargetException, IllegalAccessException {
+		Object recording = open(file);
+		try {
+			while (((Boolean) hasMoreEvents.invoke(recording)).booleanValue()) {
+				Object event = readEvent.invoke(recording);
+				if (!JfrEvents.EVENT_NAME.equals(getTypeName.invoke(getEventType.invoke(event))))
+					continue;
+
+				long thread = threadId(getThread.invoke(event));
+				String process = (String) getString.invoke(event, "process");
+				String activity = (String) getString.invoke(event, "activity");
+				String name = (activity == null || activity.length() == 0) ? process : process + "/" + activity;
+
+				long start = nanos(getStartTime.invoke(event));
+				long end = nanos(getEndTime.invoke(event));
+				Totals owner = getTotals(name);
+				owner.events++;
+				owner.nanos += end - start;
+
+				Intervals intervals = threads.get(Long.valueOf(thread));
+				if (intervals == null) {
+					intervals = new Intervals();
+					threads.put(Long.valueOf(thread), intervals);
+				}
+				intervals.add(start, end, owner);
+			}
+		} finally {
+			close.invoke(recording);
+		}
+	}
+
+	/**
+	 * Attributes the CPU, allocation and blocking events to the intervals.
+	 */
+	private void readSamples(File file) throws IOException, InvocationTargetException, IllegalAccessException {
+		Object recording = open(file);
+		try {
+			while (((Boolean) hasMoreEvents.invoke(recording)).booleanValue()) {
+				Object event = readEvent.invoke(recording);
+				String type = (String) getTypeName.invoke(getEventType.invoke(event));
+
+				if (type.equals("jdk.ExecutionSample")) {
+					attribute(getValue.invoke(event, "sampledThread"), event).cpuSamples++;
+				} else if (type.equals("jdk.ObjectAllocationSample")) {
+					attribute(getThread.invoke(event), event).sampledBytes += field(event, "weight");
+				} else if (type.equals("jdk.ObjectAllocationInNewTLAB")) {
+					attribute(getThread.invoke(event), event).tlabBytes += field(event, "tlabSize");
+				} else if (type.equals("jdk.ObjectAllocationOutsideTLAB")) {
+					attribute(getThread.invoke(event), event).tlabBytes += field(event, "allocationSize");
+				} else if (type.equals("jdk.JavaMonitorEnter") || type.equals("jdk.ThreadPark")) {
+					attribute(getThread.invoke(event), event).blockedNanos +=
+							nanos(getEndTime.invoke(event)) - nanos(getStartTime.invoke(event));
+				}
+			}
+		} finally {
+			close.invoke(recording);
+		}
+	}
+
+	private Object open(File file) throws InvocationTargetException, IllegalAccessException, IOException {
+		try {
+			return recordingFile.newInstance(toPath.invoke(file));
+		} catch (InstantiationException ie) {
+			throw new IOException("Unable to read " + file, ie);
+		}
+	}
+
+	private Totals attribute(Object thread, Object event) throws InvocationTargetException, IllegalAccessException {
+		Intervals intervals = threads.get(Long.valueOf(threadId(thread)));
+		Totals owner = (intervals == null) ? null : intervals.find(nanos(getStartTime.invoke(event)));
+		return (owner == null) ? getTotals(OUTSIDE) : owner;
+	}
+
+	private long field(Object event, String name) throws InvocationTargetException, IllegalAccessException {
+		return ((Boolean) hasField.invoke(event, name)).booleanValue() ?
+				((Long) getLong.invoke(event, name)).longValue() : 0;
+	}
+
+	private long threadId(Object thread) throws InvocationTargetException, IllegalAccessException {
+		return (thread == null) ? -1 : ((Long) getJavaThreadId.invoke(thread)).longValue();
+	}
+
+	private long nanos(Object instant) throws InvocationTargetException, IllegalAccessException {
+		return ((Long) getEpochSecond.invoke(instant)).longValue() * 1000000000L +
+				((Integer) getNano.invoke(instant)).intValue();
+	}
+
+	private Totals getTotals(String name) {
+		Totals owner = totals.get(name);
+		if (owner == null) {
+			owner = new Totals();
+			owner.name = name;
+			totals.put(name, owner);
+		}
+		return owner;
+	}
+
+	private void writeResults() throws IOException {
+		ArrayList<Totals> results = new ArrayList<Totals>(totals.values());
+		Collections.sort(results, new Comparator<Totals>() {
+			public int compare(Totals a, Totals b) {
+				return (a.cpuSamples > b.cpuSamples) ? -1 : ((a.cpuSamples < b.cpuSamples) ? 1 : a.name.compareTo(b.name));
+			}
+		});
+
+		long cpuSamples = 0;
+		boolean sampledAllocation = false;
+		for (Totals owner : results) {
+			cpuSamples += owner.cpuSamples;
+			sampledAllocation |= owner.sampledBytes > 0;
+		}
+
+		PrintWriter out = new PrintWriter(_props.getProperty("outLoc"));
+		for (Totals owner : results) {
+			// the allocation sample supersedes the TLAB events where both are recorded
+			long allocated = sampledAllocation ? owner.sampledBytes : owner.tlabBytes;
+			out.println(owner.name + "," + owner.events + "," +
+					String.format(Locale.US, "%.3f", owner.nanos / 1e6) + "," + owner.cpuSamples + "," +
+					String.format(Locale.US, "%.1f", (cpuSamples == 0) ? 0.0 : 100.0 * owner.cpuSamples / cpuSamples) + "," +
+					allocated + "," + String.format(Locale.US, "%.3f", owner.blockedNanos / 1e6));
+		}
+		out.flush();
+		out.close();
+	}
+}
@@ -0,0 +1,108 @@
+package nochum.bw5.utilities;
+
+/**
+ * A fixed-size histogram of signed long values with logarithmic buckets, used
+ * to report percentiles of millions of values without keeping or sorting
+ * them.
+ * <p>
+ * Magnitudes below 32 have a bucket each.  Above that every power of two is
+ * split into 32 buckets, so a percentile is accurate to within about 3% of
+ * its value.  Negative values are kept in a mirror image of the positive
+ * buckets.  The minimum and maximum are exact, and percentiles are clamped
+ * to them.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class LogHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = 64 << SUB_BITS;
+
+	private final long[] positive = new long[BUCKETS];
+	private final long[] negative = new long[BUCKETS];
+	private long zero = 0;
+	private long count = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = Long.MIN_VALUE;
+
+	void add(long value) {
+		count++;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+
+		if (value > 0)
+			positive[index(value)]++;
+		else if (value < 0)
+			negative[index(value == Long.MIN_VALUE ? Long.MAX_VALUE : -value)]++;
+		else
+			zero++;
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	long getMin() {
+		return (count == 0) ? 0 : min;
+	}
+
+	long getMax() {
+		return (count == 0) ? 0 : max;
+	}
+
+	/**
+	 * Returns the nearest-rank percentile.
+	 * @param p  the percentile, between 0 and 1.
+	 */
+	long percentile(double p) {
+		if (count == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(p * count));
+		long seen = 0;
+
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			seen += negative[i];
+			if (seen >= rank)
+				return clamp(-midpoint(i));
+		}
+
+		seen += zero;
+		if (seen >= rank)
+			return 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += positive[i];
+			if (seen >= rank)
+				return clamp(midpoint(i));
+		}
+
+		return max;
+	}
+
+	private long clamp(long value) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	// the bucket of a positive magnitude
+	private static int index(long magnitude) {
+		if (magnitude < SUB_BUCKETS)
+			return (int) magnitude;
+
+		int shift = (63 - Long.numberOfLeadingZeros(magnitude)) - SUB_BITS;
+		int subBucket = (int) (magnitude >>> shift) - SUB_BUCKETS;
+		return ((shift + 1) << SUB_BITS) + subBucket;
+	}
+
+	// the middle of the range of magnitudes in a bucket
+	private static long midpoint(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+
+		int shift = (index >> SUB_BITS) - 1;
+		long lowest = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+		return lowest + ((1L << shift) >> 1);
+	}
+}
@@ -0,0 +1,161 @@
+package nochum.bw5.utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Properties;
+
+/**
+ * Aggregates the start/end heap deltas of each BusinessWorks process (or
+ * instrumented activity) into a single line, to answer which process has the
+ * worst memory spikes.
+ * <p>
+ * The deltas are read either from the snapshots in a -profiles directory,
+ * paired as they are by HistoSummary, or streamed from a report already
+ * written by "Optimize histoSummary" (-summary).  Each process keeps two
+ * LogHistograms, one for the change in bytes and one for the change in
+ * objects, so the memory needed does not grow with the number of
+ * invocations.
+ * <p>
+ * The output is a file of comma-separated values with one line per process,
+ * sorted by the 99th percentile byte delta: the process, the number of
+ * invocations, how many of them overlapped another job, and the minimum,
+ * median, 95th and 99th percentile and maximum of the byte delta and then of
+ * the object delta.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class MemoryStats {
+
+	/**
+	 * The properties collected by the Optimize facade class
+	 */
+	private Properties _props = null;
+
+	/**
+	 * The deltas of a single process
+	 */
+	private static class ProcessStats {
+		String name = null;
+		long overlapping = 0;
+		final LogHistogram bytes = new LogHistogram();
+		final LogHistogram objects = new LogHistogram();
+	}
+
+	private final HashMap<String, ProcessStats> processes = new HashMap<String, ProcessStats>();
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws IOException                    If errors are incurred reading the snapshots.
+	 */
+	public MemoryStats(Properties props) throws IOException, UsageException {
+		final String usageString = "\nUsage: Optimize memoryStats [options]\n\n" +
+				"   where options are:\n\n" +
+				"-output    <output location>    - Full path and file name for output report.\n" +
+				"-profiles  <profile location>   - Full path to the directory containing the output from the profiling, or\n" +
+				"-summary   <summary location>   - The report written by histoSummary.\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("profileLoc") && !_props.containsKey("summaryLoc")) {
+			throw(new UsageException("Required input parameter '-profiles' or '-summary' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		if (_props.containsKey("profileLoc") && !new File(_props.getProperty("profileLoc")).isDirectory()) {
+			throw(new UsageException("Input parameter '-profiles' must refer to a directory.", usageString));
+		}
+
+		if (_props.containsKey("profileLoc"))
+			readProfiles(_props.getProperty("profileLoc"));
+		else
+			readSummary(_props.getProperty("summaryLoc"));
+
+		writeResults();
+	}
+
+	private void readProfiles(String profileLoc) throws IOException {
+		for (HistoSummary.SnapshotPair pair : HistoSummary.pairSnapshots(HistoSummary.readSnapshots(profileLoc))) {
+			if (pair.start == null || pair.end == null || pair.start.totalSize < 0 || pair.end.totalSize < 0)
+				continue;
+
+			add(pair.start.name, pair.end.totalSize - pair.start.totalSize,
+					pair.end.totalObjects - pair.start.totalObjects, pair.overlapping);
+		}
+	}
+
+	/**
+	 * Streams the lines of a histoSummary report.
+	 */
+	private void readSummary(String summaryLoc) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(summaryLoc), 64 * 1024);
+		try {
+			String line = null;
+			while ((line = in.readLine()) != null) {
+				// ..., delta objects, delta bytes, overlapping
+				String[] fields = line.split(",", -1);
+				if (fields.length < 12 || fields[9].length() == 0 || fields[10].length() == 0)
+					continue;
+
+				try {
+					add(fields[0], Long.parseLong(fields[10]), Long.parseLong(fields[9]),
+							Boolean.parseBoolean(fields[11]));
+				} catch (NumberFormatException nfe) {
+					continue;
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void add(String name, long byteDelta, long objectDelta, boolean overlapping) {
+		ProcessStats stats = processes.get(name);
+		if (stats == null) {
+			stats = new ProcessStats();
+			stats.name = name;
+			processes.put(name, stats);
+		}
+
+		stats.bytes.add(byteDelta);
+		stats.objects.add(objectDelta);
+		if (overlapping)
+			stats.overlapping++;
+	}
+
+	private void writeResults() throws IOException {
+		ArrayList<ProcessStats> results = new ArrayList<ProcessStats>(processes.values());
+		Collections.sort(results, new Comparator<ProcessStats>() {
+			public int compare(ProcessStats a, ProcessStats b) {
+				long diff = b.bytes.percentile(0.99) - a.bytes.percentile(0.99);
+				return (diff > 0) ? 1 : ((diff < 0) ? -1 : a.name.compareTo(b.name));
+			}
+		});
+
+		PrintWriter out = new PrintWriter(_props.getProperty("outLoc"));
+		for (ProcessStats stats : results) {
+			out.println(stats.name + "," + stats.bytes.getCount() + "," + stats.overlapping + "," +
+					describe(stats.bytes) + "," + describe(stats.objects));
+		}
+		out.flush();
+		out.close();
+	}
+
+	private static String describe(LogHistogram histogram) {
+		return histogram.getMin() + "," + histogram.percentile(0.5) + "," + histogram.percentile(0.95) + "," +
+				histogram.percentile(0.99) + "," + histogram.getMax();
+	}
+}
@@ -0,0 +1,382 @@
+package nochum.bw5.utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Looks for slow memory leaks in the heap snapshots of a long-running test,
+ * reading either the report written by "Optimize histoSummary" (totals only)
+ * or a histogram store written by "Optimize histoSummary -store" (totals and
+ * per-class counts).
+ * <p>
+ * The heap at the end of a job includes garbage that has not been collected
+ * yet, so a single snapshot says little.  The snapshots are instead grouped
+ * into time windows (10 minutes by default, set by -window) and the lowest
+ * post-job heap of each window is taken as its baseline, the memory that
+ * survived every collection in the window.  A least-squares line is fitted to
+ * the baselines of the engine, of each process (from its own end snapshots)
+ * and, from a store, of each class.  A trend is reported as monotonic when
+ * its baseline rose in at least 70% of the window-to-window changes.
+ * <p>
+ * For each process the number of invocations per window is also correlated
+ * with the change in the engine baseline over that window, so a process whose
+ * busy windows are the ones in which the baseline grows stands out even when
+ * its own snapshots are dominated by other jobs.
+ * <p>
+ * The snapshots are read in time order and only running sums are kept, so
+ * the memory needed depends on the number of processes and classes and not
+ * on the number of snapshots.
+ * <p>
+ * The output is a file of comma-separated values: the scope (engine, process
+ * or class), the name, the number of windows, the first and last baseline
+ * bytes, the fitted growth in bytes per hour, the fraction of increases, the
+ * correlation with the engine baseline (processes only) and the finding.  The
+ * engine line comes first, followed by the processes and by the classes with
+ * the greatest growth (20 by default, set by -top), each sorted by growth.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class MemoryTrend {
+
+	/**
+	 * The fraction of increases above which a trend is monotonic
+	 */
+	private static final double MONOTONIC = 0.7;
+
+	/**
+	 * The correlation above which a process is reported as driving growth
+	 */
+	private static final double CORRELATED = 0.5;
+
+	/**
+	 * The properties collected by the Optimize facade class
+	 */
+	private Properties _props = null;
+
+	/**
+	 * The least-squares fit and direction counts of a series of window
+	 * baselines
+	 */
+	private static class Trend {
+		String name = null;
+		int windows = 0;
+		long first = 0;
+		long last = 0;
+		int increases = 0;
+		int decreases = 0;
+		double sumX = 0, sumY = 0, sumXY = 0, sumXX = 0;
+
+		void add(double hours, long baseline) {
+			if (windows == 0)
+				first = baseline;
+			else if (baseline > last)
+				increases++;
+			else if (baseline < last)
+				decreases++;
+			last = baseline;
+
+			windows++;
+			sumX += hours;
+			sumY += baseline;
+			sumXY += hours * baseline;
+			sumXX += hours * hours;
+		}
+
+		// bytes per hour
+		double slope() {
+			double denominator = windows * sumXX - sumX * sumX;
+			return (windows < 2 || denominator == 0) ? 0 : (windows * sumXY - sumX * sumY) / denominator;
+		}
+
+		double increasing() {
+			int changes = increases + decreases;
+			return (changes == 0) ? 0 : (double) increases / changes;
+		}
+
+		boolean isMonotonic() {
+			return windows >= 3 && slope() > 0 && increasing() >= MONOTONIC;
+		}
+	}
+
+	/**
+	 * The running Pearson correlation of two series
+	 */
+	private static class Correlation {
+		int n = 0;
+		double sumX = 0, sumY = 0, sumXY = 0, sumXX = 0, sumYY = 0;
+
+		void add(double x, double y) {
+			n++;
+			sumX += x;
+			sumY += y;
+			sumXY += x * y;
+			sumXX += x * x;
+			sumYY += y * y;
+		}
+
+		double value() {
+			double denominator = Math.sqrt(n * sumXX - sumX * sumX) * Math.sqrt(n * sumYY - sumY * sumY);
+			return (n < 3 || denominator == 0) ? 0 : (n * sumXY - sumX * sumY) / denominator;
+		}
+	}
+
+	/**
+	 * The state of a process: its baseline in the current window, its
+	 * invocations in the current window, and its trends
+	 */
+	private static class ProcessTrend extends Trend {
+		long windowBaseline = Long.MAX_VALUE;
+		int windowInvocations = 0;
+		Correlation correlation = new Correlation();
+	}
+
+	private final long windowMillis;
+
+	private long origin = -1;
+	private long windowStart = -1;
+	private long windowEnd = -1;
+	private long engineBaseline = Long.MAX_VALUE;
+	private int windowSnapshots = 0;
+	private final Trend engine = new Trend();
+
+	private final ClassDictionary processNames = new ClassDictionary();
+	private final ArrayList<ProcessTrend> processes = new ArrayList<ProcessTrend>();
+
+	// per-class state, indexed by class id, only when reading a store
+	private String[] classNames = null;
+	private Trend[] classes = null;
+	private long[] classBaseline = null;
+	private int[] classPresent = null;
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws IOException                    If errors are incurred reading the snapshots.
+	 */
+	public MemoryTrend(Properties props) throws IOException, UsageException {
+		final String usageString = "\nUsage: Optimize memoryTrend [options]\n\n" +
+				"   where options are:\n\n" +
+				"-output    <output location>    - Full path and file name for output report.\n" +
+				"-summary   <summary location>   - The report written by histoSummary, or\n" +
+				"-store     <store location>     - The histogram store written by histoSummary -store, for per-class trends.\n" +
+				"-window    <minutes>            - Optional.  The length of a baseline window (default 10).\n" +
+				"-top       <number of classes>  - Optional.  The number of classes to report (default 20).\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("summaryLoc") && !_props.containsKey("storeLoc")) {
+			throw(new UsageException("Required input parameter '-summary' or '-store' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		int top = 20;
+		long window = 10;
+		try {
+			if (_props.containsKey("top"))
+				top = Integer.parseInt(_props.getProperty("top"));
+			if (_props.containsKey("trendWindow"))
+				window = Long.parseLong(_props.getProperty("trendWindow"));
+		} catch (NumberFormatException nfe) {
+			throw(new UsageException("Input parameters '-top' and '-window' must be numbers.", usageString));
+		}
+		if (top <= 0)
+			throw(new UsageException("Input parameter '-top' must be a positive number.", usageString));
+		if (window < 1)
+			throw(new UsageException("Input parameter '-window' must be at least 1 minute.", usageString));
+		windowMillis = window * 60 * 1000L;
+
+		if (_props.containsKey("storeLoc"))
+			readStore(new HistoStore(new File(_props.getProperty("storeLoc"))));
+		else
+			readSummary(_props.getProperty("summaryLoc"));
+		closeWindow();
+
+		writeResults(top);
+	}
+
+	/**
+	 * Streams the end snapshots of a histogram store, which are in time order.
+	 */
+	private void readStore(HistoStore store) {
+		classNames = store.classNames;
+		classes = new Trend[classNames.length];
+		classBaseline = new long[classNames.length];
+		classPresent = new int[classNames.length];
+
+		for (int i = 0; i < store.snapshotCount; i++) {
+			if (store.phase.getByte(i) == 1)
+				continue;
+
+			long time = store.time.getLong(i);
+			add(time, store.processNames[store.process.getInt(i)], store.bytes.getLong(i));
+
+			long first = store.first.getLong(i);
+			long last = first + store.count.getInt(i);
+			for (long entry = first; entry < last; entry++) {
+				int classId = store.entryClass.getInt(entry);
+				long bytes = store.entryBytes.getLong(entry);
+				if (classPresent[classId]++ == 0 || bytes < classBaseline[classId])
+					classBaseline[classId] = bytes;
+			}
+		}
+	}
+
+	/**
+	 * Streams the lines of a histoSummary report, which are in start order.
+	 */
+	private void readSummary(String summaryLoc) throws IOException {
+		SimpleDateFormat simpleDateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss.SSS");
+
+		BufferedReader in = new BufferedReader(new FileReader(summaryLoc), 64 * 1024);
+		try {
+			String line = null;
+			while ((line = in.readLine()) != null) {
+				// process, job, start, end, elapsed, start objects, start bytes, end objects, end bytes, ...
+				String[] fields = line.split(",", -1);
+				if (fields.length < 9 || fields[3].length() == 0 || fields[8].length() == 0)
+					continue;
+
+				try {
+					add(simpleDateFormat.parse(fields[3]).getTime(), fields[0], Long.parseLong(fields[8]));
+				} catch (ParseException pe) {
+					continue;
+				} catch (NumberFormatException nfe) {
+					continue;
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Adds the post-job heap of a single invocation.  Snapshots that arrive
+	 * slightly out of order are counted in the current window.
+	 */
+	private void add(long time, String processName, long bytes) {
+		if (origin < 0)
+			origin = time;
+		if (windowEnd >= 0 && time >= windowEnd)
+			closeWindow();
+		if (windowSnapshots == 0) {
+			windowStart = time;
+			windowEnd = time + windowMillis;
+		}
+
+		int processId = processNames.intern(processName);
+		if (processId == processes.size()) {
+			ProcessTrend process = new ProcessTrend();
+			process.name = processName;
+			processes.add(process);
+		}
+
+		ProcessTrend process = processes.get(processId);
+		process.windowBaseline = Math.min(process.windowBaseline, bytes);
+		process.windowInvocations++;
+		engineBaseline = Math.min(engineBaseline, bytes);
+		windowSnapshots++;
+	}
+
+	/**
+	 * Adds the baselines of the current window to the trends and starts a
+	 * new window.
+	 */
+	private void closeWindow() {
+		if (windowSnapshots == 0)
+			return;
+
+		double hours = (windowStart - origin) / 3600000.0;
+		long previous = engine.last;
+		boolean hasPrevious = engine.windows > 0;
+		engine.add(hours, engineBaseline);
+
+		for (ProcessTrend process : processes) {
+			if (process.windowInvocations > 0)
+				process.add(hours, process.windowBaseline);
+			if (hasPrevious)
+				process.correlation.add(process.windowInvocations, engineBaseline - previous);
+			process.windowBaseline = Long.MAX_VALUE;
+			process.windowInvocations = 0;
+		}
+
+		if (classes != null) {
+			for (int classId = 0; classId < classes.length; classId++) {
+				// a class missing from any snapshot in the window has a baseline of zero
+				long baseline = (classPresent[classId] == windowSnapshots) ? classBaseline[classId] : 0;
+				if (classes[classId] == null) {
+					if (classPresent[classId] == 0)
+						continue;
+					classes[classId] = new Trend();
+					classes[classId].name = classNames[classId];
+				}
+				classes[classId].add(hours, baseline);
+				classPresent[classId] = 0;
+			}
+		}
+
+		engineBaseline = Long.MAX_VALUE;
+		windowSnapshots = 0;
+	}
+
+	private void writeResults(int top) throws IOException {
+		Comparator<Trend> bySlope = new Comparator<Trend>() {
+			public int compare(Trend a, Trend b) {
+				return Double.compare(b.slope(), a.slope());
+			}
+		};
+
+		PrintWriter out = new PrintWriter(_props.getProperty("outLoc"));
+
+		if (engine.windows > 0)
+			writeTrend(out, "engine", engine, null,
+					engine.isMonotonic() ? "Engine baseline is growing" : "");
+
+		ArrayList<ProcessTrend> sortedProcesses = new ArrayList<ProcessTrend>(processes);
+		Collections.sort(sortedProcesses, bySlope);
+		for (ProcessTrend process : sortedProcesses) {
+			String finding = process.isMonotonic() ? "Post-job heap is growing" : "";
+			if (engine.slope() > 0 && process.correlation.value() >= CORRELATED)
+				finding += (finding.length() > 0 ? "; " : "") + "Invocations correlate with baseline growth";
+			writeTrend(out, "process", process, process.correlation, finding);
+		}
+
+		if (classes != null) {
+			ArrayList<Trend> sortedClasses = new ArrayList<Trend>();
+			for (Trend trend : classes) {
+				if (trend != null && trend.slope() > 0)
+					sortedClasses.add(trend);
+			}
+			Collections.sort(sortedClasses, bySlope);
+			for (Trend trend : sortedClasses.subList(0, Math.min(top, sortedClasses.size())))
+				writeTrend(out, "class", trend, null, trend.isMonotonic() ? "Baseline is growing" : "");
+		}
+
+		out.flush();
+		out.close();
+	}
+
+	private static void writeTrend(PrintWriter out, String scope, Trend trend, Correlation correlation, String finding) {
+		out.println(scope + "," + (trend.name == null ? "" : trend.name) + "," + trend.windows + "," +
+				trend.first + "," + trend.last + "," +
+				String.format(Locale.US, "%.0f", trend.slope()) + "," +
+				String.format(Locale.US, "%.2f", trend.increasing()) + "," +
+				(correlation == null ? "" : String.format(Locale.US, "%.2f", correlation.value())) + "," +
+				finding);
+	}
+}
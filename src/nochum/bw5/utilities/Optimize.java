@@ -15,6 +15,35 @@ import java.util.Properties;
  * <li>-namespaces - Removes unused namespace declarations from processes. 
  * <li>-xpathRef   - Reports on the number and depth of XPath references
  * for each activity in each process.  Highlights optimization opportunities.
+ * <li>-loops      - Reports on iterate and repeat groups that accumulate output
+ * or contain expensive activities.
+ * <li>-jdbc       - Reports on JDBC activities with database round-trip problems.
+ * <li>-timeouts   - Reports on HTTP, SOAP, JDBC and JMS activities with missing,
+ * infinite or excessive timeouts.
+ * <li>-tra        - Performs sanity checks on engine TRA and properties files.
+ * <li>-starters   - Reports on the concurrency model of each process starter.
+ * <li>-probeSummary - Reports latency percentiles, CPU and allocation per
+ * process from timing probes.
+ * <li>-histoDiff  - Reports the classes that grow the most between the start
+ * and end of each process.
+ * <li>-histoQuery - Queries a histogram store built by histoSummary for class
+ * trends and process totals.
+ * <li>-memoryTrend - Detects slow memory leaks from baseline heap trends per
+ * engine, process and class.
+ * <li>-memoryStats - Reports percentiles of the heap and object deltas of each
+ * process.
+ * <li>-hprofSummary - Reports the largest classes, arrays and strings in heap
+ * dumps.
+ * <li>-jfrSummary - Attributes JFR CPU, allocation and blocking events to BW
+ * processes and activities.
+ * <li>-gcCorrelate - Attributes GC pause time and promoted bytes to the
+ * processes whose jobs were running.
+ * <li>-contention - Reports the processes contending on each critical section,
+ * lock and shared variable.
+ * <li>-schemas    - Reports the XSDs and WSDLs no process needs and the load
+ * size of each schema tree.
+ * <li>-startupCost - Estimates the engine startup cost of each process and
+ * folder.
  * </ul>
  * 
  * @author Nochum Klein
@@ -47,6 +76,38 @@ public class Optimize {
 				new BWInstrument(props);
 			else if (opType.equalsIgnoreCase("histoSummary"))
 				new HistoSummary(props);
+			else if (opType.equalsIgnoreCase("loops"))
+				new BWLoops(props);
+			else if (opType.equalsIgnoreCase("jdbc"))
+				new BWJdbc(props);
+			else if (opType.equalsIgnoreCase("timeouts"))
+				new BWTimeouts(props);
+			else if (opType.equalsIgnoreCase("tra"))
+				new BWTra(props);
+			else if (opType.equalsIgnoreCase("starters"))
+				new BWStarterReport(props);
+			else if (opType.equalsIgnoreCase("probeSummary"))
+				new ProbeSummary(props);
+			else if (opType.equalsIgnoreCase("histoDiff"))
+				new HistoDiff(props);
+			else if (opType.equalsIgnoreCase("histoQuery"))
+				new HistoQuery(props);
+			else if (opType.equalsIgnoreCase("memoryTrend"))
+				new MemoryTrend(props);
+			else if (opType.equalsIgnoreCase("memoryStats"))
+				new MemoryStats(props);
+			else if (opType.equalsIgnoreCase("hprofSummary"))
+				new HprofSummary(props);
+			else if (opType.equalsIgnoreCase("jfrSummary"))
+				new JfrSummary(props);
+			else if (opType.equalsIgnoreCase("gcCorrelate"))
+				new GcCorrelate(props);
+			else if (opType.equalsIgnoreCase("contention"))
+				new BWContention(props);
+			else if (opType.equalsIgnoreCase("schemas"))
+				new BWSchemas(props);
+			else if (opType.equalsIgnoreCase("startupCost"))
+				new BWStartupCost(props);
 			else
 				usage();
 		} catch (UsageException ue) {
@@ -72,7 +133,23 @@ public class Optimize {
 				"  namespaces   - Remove unused namespace declarations from processes.\n" +
 				"  xpathRef     - Report on the number and depth of XPath references for each activity in each process.\n" +
 				"  instrument   - Instrument a BACKUP COPY of a BW project for memory profiling.\n" +
-				"  histoSummary - Create a summary report of BW memory utilization by class within BW process.\n\n" +
+				"  histoSummary - Create a summary report of BW memory utilization by class within BW process.\n" +
+				"  loops        - Report on iterate and repeat groups that accumulate output or contain expensive activities.\n" +
+				"  jdbc         - Report on JDBC activities with database round-trip problems.\n" +
+				"  timeouts     - Report on HTTP, SOAP, JDBC and JMS activities with missing, infinite or excessive timeouts.\n" +
+				"  tra          - Perform sanity checks on engine TRA and properties files.\n" +
+				"  starters     - Report on the concurrency model of each process starter.\n" +
+				"  probeSummary - Report latency percentiles, CPU and allocation per process from timing probes.\n" +
+				"  histoDiff    - Report the classes that grow the most between the start and end of each process.\n" +
+				"  histoQuery   - Query a histogram store built by histoSummary for class trends and process totals.\n" +
+				"  memoryTrend  - Detect slow memory leaks from baseline heap trends per engine, process and class.\n" +
+				"  memoryStats  - Report percentiles of the heap and object deltas of each process, by worst p99.\n" +
+				"  hprofSummary - Report the largest classes, arrays and strings in heap dumps without loading them into MAT.\n" +
+				"  jfrSummary   - Attribute JFR CPU, allocation and blocking events to BW processes and activities.\n" +
+				"  gcCorrelate  - Attribute GC pause time and promoted bytes to the processes whose jobs were running.\n" +
+				"  contention   - Report the processes contending on each critical section, lock and shared variable.\n" +
+				"  schemas      - Report the XSDs and WSDLs no process needs and the load size of each schema tree.\n" +
+				"  startupCost  - Estimate the engine startup cost of each process and folder from its size, mappings and schemas.\n\n" +
 				"Most commands print help when invoked w/o parameters.\n";
 				
         System.err.print(usageString);
@@ -153,6 +230,91 @@ public class Optimize {
 					usage();
 				props.put("profileLoc", args[i + 1]);
 				i += 2;
+			} else if (args[i].equals("-maxTimeout")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("maxTimeout", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-tra")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("traLoc", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-containerMem")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("containerMem", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-histo")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("histoMode", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-config")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("profileConfig", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-mode")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("instrumentMode", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-processes")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("processPattern", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-activities")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("activityPattern", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-top")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("top", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-store")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("storeLoc", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-classes")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("classPattern", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-from")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("fromTime", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-to")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("toTime", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-summary")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("summaryLoc", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-window")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("trendWindow", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-gclog")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("gcLoc", args[i + 1]);
+				i += 2;
+			} else if (args[i].equals("-calibrate")) {
+				if ((i + 1) >= args.length)
+					usage();
+				props.put("calibrateRuns", args[i + 1]);
+				i += 2;
 			} else {
 				System.err.println("Unrecognized parameter: " + args[i]);
 				usage();
@@ -0,0 +1,241 @@
+package nochum.bw5.utilities;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A preallocated, lock-free ring buffer of timing probe samples taken by
+ * BWProfile.probeStart and BWProfile.probeEnd, and the background thread
+ * that periodically flushes it to a binary probe file.
+ * <p>
+ * Job threads claim a slot with a compare-and-set on the head sequence, fill
+ * it in and publish it by storing the slot's sequence number.  The flusher
+ * thread drains published slots in sequence order once a second and on JVM
+ * shutdown.  When the buffer is full the sample is dropped rather than
+ * blocking the job; the number of dropped samples is logged.
+ * <p>
+ * Each JVM writes a single file, probes-&lt;pid&gt;-&lt;start time&gt;.bin,
+ * in the output directory.  The file is a sequence of big-endian records,
+ * each introduced by a tag byte:
+ * <ul>
+ * <li>NAME: int id, UTF name - defines a probe name before its first use.
+ * <li>START and END: int name id, long thread id, long nanoTime, long thread
+ * CPU time in nanoseconds, long thread allocated bytes.
+ * </ul>
+ * The file begins with the MAGIC int and the VERSION int, followed by the
+ * clock: System.currentTimeMillis() and System.nanoTime() read together, and
+ * the JVM start time in milliseconds, which place the nanoTime of each sample
+ * and the uptime of the JVM's GC log on the wall clock.  Version 1 files have
+ * no clock.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class ProbeBuffer implements Runnable {
+
+	static final int MAGIC = 0x42575052;   // "BWPR"
+	static final int VERSION = 2;
+
+	static final byte NAME = 0;
+	static final byte START = 1;
+	static final byte END = 2;
+
+	private static final Logger logger = org.apache.log4j.Logger.getLogger("bw.logger");
+
+	// the longs making up one slot: event and name id, thread id, nanoTime, cpu, allocated
+	private static final int SLOT_SIZE = 5;
+
+	private static final long FLUSH_INTERVAL = 1000L;
+
+	private static volatile ProbeBuffer instance;
+
+	private final int capacity;
+	private final long[] slots;
+	private final AtomicLongArray published;
+	private final AtomicLong head = new AtomicLong();
+	private volatile long tail = 0;
+
+	private final ConcurrentHashMap<String, Integer> names = new ConcurrentHashMap<String, Integer>();
+	private final AtomicInteger nextNameId = new AtomicInteger();
+	private int namesWritten = 0;
+	private final String[] nameTable;
+
+	private final AtomicLong dropped = new AtomicLong();
+	private long droppedLogged = 0;
+
+	private final File file;
+	private DataOutputStream out = null;
+
+	private ProbeBuffer(String outputDir, int capacity) {
+		this.capacity = capacity;
+		this.slots = new long[capacity * SLOT_SIZE];
+		this.published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++)
+			published.set(i, -1);
+		this.nameTable = new String[Integer.getInteger("bw5.probe.maxNames", 65536).intValue()];
+
+		String procName = ManagementFactory.getRuntimeMXBean().getName();
+		String pid = procName.substring(0, Math.max(0, procName.indexOf('@')));
+		this.file = new File(outputDir, "probes-" + pid + "-" + System.currentTimeMillis() + ".bin");
+	}
+
+	/**
+	 * Returns the buffer, starting the flusher on first use.
+	 * @param outputDir  the directory to which the probe file is written.
+	 */
+	static ProbeBuffer getInstance(String outputDir) {
+		if (instance == null) {
+			synchronized (ProbeBuffer.class) {
+				if (instance == null) {
+					final ProbeBuffer buffer = new ProbeBuffer(outputDir,
+							Math.max(1024, Integer.getInteger("bw5.probe.bufferSize", 65536).intValue()));
+
+					Thread flusher = new Thread(buffer, "BWProfile-probe-flusher");
+					flusher.setDaemon(true);
+					flusher.start();
+					Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+						public void run() {
+							buffer.flush();
+						}
+					}, "BWProfile-probe-shutdown"));
+
+					instance = buffer;
+					logger.info("BWProfile probes are written to " + buffer.file);
+				}
+			}
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Records a sample for the current thread.
+	 * @param event      START or END
+	 * @param name       the probe name
+	 * @param nanoTime   System.nanoTime() when the probe fired
+	 * @param cpuTime    the CPU time of the current thread
+	 * @param allocated  the bytes allocated by the current thread
+	 */
+	void record(byte event, String name, long nanoTime, long cpuTime, long allocated) {
+		Integer nameId = names.get(name);
+		if (nameId == null)
+			nameId = register(name);
+		if (nameId.intValue() < 0) {
+			dropped.incrementAndGet();
+			return;
+		}
+
+		long sequence;
+		do {
+			sequence = head.get();
+			if (sequence - tail >= capacity) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!head.compareAndSet(sequence, sequence + 1));
+
+		int index = (int) (sequence % capacity);
+		int offset = index * SLOT_SIZE;
+		slots[offset] = ((long) event << 32) | nameId.intValue();
+		slots[offset + 1] = Thread.currentThread().getId();
+		slots[offset + 2] = nanoTime;
+		slots[offset + 3] = cpuTime;
+		slots[offset + 4] = allocated;
+
+		// publishing the sequence makes the slot visible to the flusher
+		published.set(index, sequence);
+	}
+
+	// assign an id to a probe name the first time it is seen
+	private Integer register(String name) {
+		synchronized (names) {
+			Integer nameId = names.get(name);
+			if (nameId == null) {
+				int id = nextNameId.get();
+				if (id >= nameTable.length)
+					return Integer.valueOf(-1);
+
+				nameTable[id] = name;
+				nextNameId.set(id + 1);
+				nameId = Integer.valueOf(id);
+				names.put(name, nameId);
+			}
+			return nameId;
+		}
+	}
+
+	/**
+	 * Flushes the buffer once a second until the JVM exits.
+	 */
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(FLUSH_INTERVAL);
+			} catch (InterruptedException ie) {
+				return;
+			}
+			flush();
+		}
+	}
+
+	/**
+	 * Writes every published sample to the probe file.
+	 */
+	synchronized void flush() {
+		try {
+			if (out == null) {
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(System.currentTimeMillis());
+				out.writeLong(System.nanoTime());
+				out.writeLong(ManagementFactory.getRuntimeMXBean().getStartTime());
+			}
+
+			long sequence = tail;
+			while (sequence < head.get()) {
+				int index = (int) (sequence % capacity);
+				if (published.get(index) != sequence)
+					break;    // claimed but not yet filled in
+
+				int offset = index * SLOT_SIZE;
+				int nameId = (int) slots[offset];
+
+				// a name is registered before the samples that use it are published
+				for (; namesWritten <= nameId; namesWritten++) {
+					out.writeByte(NAME);
+					out.writeInt(namesWritten);
+					out.writeUTF(nameTable[namesWritten]);
+				}
+
+				out.writeByte((byte) (slots[offset] >>> 32));
+				out.writeInt(nameId);
+				out.writeLong(slots[offset + 1]);
+				out.writeLong(slots[offset + 2]);
+				out.writeLong(slots[offset + 3]);
+				out.writeLong(slots[offset + 4]);
+				sequence++;
+			}
+			tail = sequence;
+			out.flush();
+		} catch (IOException ioe) {
+			logger.error("BWProfile could not write probes to " + file, ioe);
+		}
+
+		long droppedNow = dropped.get();
+		if (droppedNow != droppedLogged) {
+			droppedLogged = droppedNow;
+			logger.warn("BWProfile probe buffer full; " + droppedNow + " samples dropped so far");
+		}
+	}
+}
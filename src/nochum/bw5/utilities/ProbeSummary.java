@@ -0,0 +1,263 @@
+package nochum.bw5.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Summarizes the probe files written by BWProfile.probeStart and
+ * BWProfile.probeEnd after running a project instrumented with
+ * "Optimize instrument -mode probe".
+ * <p>
+ * Each END sample is paired with the most recent START sample of the same
+ * name on the same thread, which also pairs the probes of called
+ * subprocesses that run inline on the caller's thread.  A job that resumes
+ * on a different thread, for example after a Wait activity, cannot be paired
+ * and is not counted.
+ * <p>
+ * The output is a file of comma-separated values with one line per process
+ * (or per activity, for activity probes), sorted by total elapsed time: the
+ * name, the number of invocations, the 50th, 90th and 99th percentile and the
+ * maximum elapsed milliseconds, the mean and total CPU milliseconds, and the
+ * mean and total bytes allocated.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class ProbeSummary {
+
+	/**
+	 * The properties collected by the Optimize facade class
+	 */
+	private Properties _props = null;
+
+	/**
+	 * The elapsed times and totals of a single probe name
+	 */
+	private static class ProbeStats {
+		String name = null;
+		long[] elapsed = new long[64];
+		int count = 0;
+		long totalElapsed = 0;
+		long totalCpu = 0;
+		long totalAllocated = 0;
+
+		void add(long elapsedNanos, long cpuNanos, long allocatedBytes) {
+			if (count == elapsed.length)
+				elapsed = Arrays.copyOf(elapsed, count * 2);
+			elapsed[count++] = elapsedNanos;
+			totalElapsed += elapsedNanos;
+			totalCpu += cpuNanos;
+			totalAllocated += allocatedBytes;
+		}
+
+		// nearest-rank percentile of the sorted elapsed times
+		long percentile(double p) {
+			int rank = (int) Math.ceil(p * count);
+			return elapsed[Math.max(0, Math.min(count, rank) - 1)];
+		}
+	}
+
+	/**
+	 * An open START sample awaiting its END
+	 */
+	private static class OpenProbe {
+		final int nameId;
+		final long nanoTime;
+		final long cpuTime;
+		final long allocated;
+
+		OpenProbe(int nameId, long nanoTime, long cpuTime, long allocated) {
+			this.nameId = nameId;
+			this.nanoTime = nanoTime;
+			this.cpuTime = cpuTime;
+			this.allocated = allocated;
+		}
+	}
+
+	/**
+	 * Receives the paired samples of a probe file
+	 */
+	static abstract class ProbeHandler {
+		/**
+		 * Called before the first probe of a file that records its clock.
+		 * @param wallMillis  System.currentTimeMillis() when the file was started.
+		 * @param nanoTime    System.nanoTime() at the same instant.
+		 * @param jvmStart    the JVM start time in milliseconds.
+		 */
+		void clock(long wallMillis, long nanoTime, long jvmStart) {
+		}
+
+		/**
+		 * Called for each END sample paired with its START.
+		 */
+		abstract void probe(String name, long startNanos, long endNanos, long cpuNanos, long allocatedBytes);
+	}
+
+	/**
+	 * probe name -> statistics
+	 */
+	private HashMap<String, ProbeStats> stats = new HashMap<String, ProbeStats>();
+
+	/**
+	 * Class constructor triggers all processing and signals completion.
+	 * @param props                           the properties collected by the Optimize facade class.
+	 * @throws UsageException                 if required options are missing or invalid
+	 * @throws IOException                    If errors are incurred reading the probe files.
+	 */
+	public ProbeSummary(Properties props) throws IOException, UsageException {
+		final String usageString = "\nUsage: Optimize probeSummary [options]\n\n" +
+				"   where options are:\n\n" +
+				"-output    <output location>    - Full path and file name for output report.\n" +
+				"-profiles  <profile location>   - Full path to the directory containing the probe files.\n"
+				;
+
+		_props = props;
+
+		if (!_props.containsKey("profileLoc")) {
+			throw(new UsageException("Required input parameter '-profiles' has not been specified.", usageString));
+		}
+
+		if (!_props.containsKey("outLoc")) {
+			throw(new UsageException("Required input parameter '-output' has not been specified.", usageString));
+		}
+
+		File[] files = new File(_props.getProperty("profileLoc")).listFiles();
+		if (files == null) {
+			throw(new UsageException("Input parameter '-profiles' must refer to a directory.", usageString));
+		}
+
+		for (File file : files) {
+			if (file.getName().startsWith("probes-") && file.getName().endsWith(".bin")) {
+				readProbes(file, new ProbeHandler() {
+					void probe(String name, long startNanos, long endNanos, long cpuNanos, long allocatedBytes) {
+						ProbeStats probeStats = stats.get(name);
+						if (probeStats == null) {
+							probeStats = new ProbeStats();
+							probeStats.name = name;
+							stats.put(name, probeStats);
+						}
+						probeStats.add(endNanos - startNanos, cpuNanos, allocatedBytes);
+					}
+				});
+			}
+		}
+
+		writeResults();
+	}
+
+	/**
+	 * Pairs the START and END samples of a single probe file.
+	 */
+	static void readProbes(File file, ProbeHandler handler) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			int version = 0;
+			if (in.readInt() != ProbeBuffer.MAGIC || (version = in.readInt()) < 1 || version > ProbeBuffer.VERSION) {
+				System.err.println(file + " is not a probe file; skipping.");
+				return;
+			}
+			if (version >= 2)
+				handler.clock(in.readLong(), in.readLong(), in.readLong());
+
+			ArrayList<String> names = new ArrayList<String>();
+			HashMap<Long, ArrayList<OpenProbe>> threads = new HashMap<Long, ArrayList<OpenProbe>>();
+
+			while (true) {
+				byte tag;
+				try {
+					tag = in.readByte();
+				} catch (EOFException eof) {
+					break;
+				}
+
+				if (tag == ProbeBuffer.NAME) {
+					int nameId = in.readInt();
+					String name = in.readUTF();
+					while (names.size() <= nameId)
+						names.add(null);
+					names.set(nameId, name);
+					continue;
+				}
+
+				int nameId = in.readInt();
+				Long threadId = Long.valueOf(in.readLong());
+				long nanoTime = in.readLong();
+				long cpuTime = in.readLong();
+				long allocated = in.readLong();
+
+				ArrayList<OpenProbe> open = threads.get(threadId);
+				if (open == null) {
+					open = new ArrayList<OpenProbe>();
+					threads.put(threadId, open);
+				}
+
+				if (tag == ProbeBuffer.START) {
+					open.add(new OpenProbe(nameId, nanoTime, cpuTime, allocated));
+				} else if (tag == ProbeBuffer.END) {
+					// unwind to the matching start, discarding starts whose end was never seen
+					for (int i = open.size() - 1; i >= 0; i--) {
+						if (open.get(i).nameId == nameId) {
+							OpenProbe start = open.get(i);
+							open.subList(i, open.size()).clear();
+
+							handler.probe(names.get(nameId), start.nanoTime, nanoTime, cpuTime - start.cpuTime,
+									(allocated < 0) ? 0 : allocated - start.allocated);
+							break;
+						}
+					}
+				}
+			}
+		} catch (EOFException eof) {
+			// a file still being written ends with a partial record
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes one line per probe name to the output report.
+	 * @throws IOException
+	 */
+	private void writeResults() throws IOException {
+		ArrayList<ProbeStats> results = new ArrayList<ProbeStats>(stats.values());
+		Collections.sort(results, new Comparator<ProbeStats>() {
+			public int compare(ProbeStats a, ProbeStats b) {
+				return (a.totalElapsed < b.totalElapsed) ? 1 : ((a.totalElapsed > b.totalElapsed) ? -1 : 0);
+			}
+		});
+
+		PrintWriter out = new PrintWriter(_props.getProperty("outLoc"));
+
+		for (ProbeStats probeStats : results) {
+			Arrays.sort(probeStats.elapsed, 0, probeStats.count);
+			out.println(probeStats.name + "," + probeStats.count + "," +
+					millis(probeStats.percentile(0.50)) + "," +
+					millis(probeStats.percentile(0.90)) + "," +
+					millis(probeStats.percentile(0.99)) + "," +
+					millis(probeStats.elapsed[probeStats.count - 1]) + "," +
+					millis(probeStats.totalCpu / probeStats.count) + "," +
+					millis(probeStats.totalCpu) + "," +
+					(probeStats.totalAllocated / probeStats.count) + "," +
+					probeStats.totalAllocated);
+		}
+
+		out.flush();
+		out.close();
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.US, "%.3f", nanos / 1e6);
+	}
+}
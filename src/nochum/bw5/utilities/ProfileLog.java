@@ -0,0 +1,202 @@
+package nochum.bw5.utilities;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only log of heap histogram snapshots, written in place of one
+ * gzipped file per snapshot when the system property bw5.profile.log=true is
+ * set (java.property.bw5.profile.log=true in the engine TRA).  A load test
+ * otherwise leaves hundreds of thousands of small files in one directory.
+ * <p>
+ * The log is a series of segment files named
+ * profile-&lt;pid&gt;-&lt;start time&gt;-&lt;number&gt;.seg in the snapshot
+ * directory.  A new segment is started once the current one would exceed
+ * bw5.profile.segmentSize bytes (default 64m).  Each segment begins with the
+ * MAGIC int and the VERSION int, followed by big-endian records:
+ * <pre>
+ *   int     length of the remainder of the record
+ *   long    timestamp
+ *   long    sequence number
+ *   short   length, then the UTF-8 bytes of the job ID (empty if unknown)
+ *   short   length, then the UTF-8 bytes of the process (or process/activity)
+ *   byte    1 for a start snapshot, 0 for an end snapshot
+ *   long    total objects
+ *   long    total bytes
+ *   int     length, then the gzipped histogram
+ * </pre>
+ * The totals are copied from the last line of the histogram so that
+ * HistoSummary need not decompress it.  A record cut short by a crash is
+ * recognized by its length and ignored.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class ProfileLog {
+
+	static final int MAGIC = 0x4257504C;   // "BWPL"
+	static final int VERSION = 1;
+
+	private static final Logger logger = org.apache.log4j.Logger.getLogger("bw.logger");
+
+	private static volatile ProfileLog instance;
+
+	private final File directory;
+	private final String prefix;
+	private final long segmentSize;
+
+	private int segmentNumber = 0;
+	private long written = 0;
+	private DataOutputStream out = null;
+
+	private ProfileLog(File directory, long segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		String procName = ManagementFactory.getRuntimeMXBean().getName();
+		String pid = procName.substring(0, Math.max(0, procName.indexOf('@')));
+		this.prefix = "profile-" + pid + "-" + System.currentTimeMillis() + "-";
+	}
+
+	/**
+	 * Determines whether snapshots should be appended to the log.
+	 */
+	static boolean isEnabled() {
+		return Boolean.getBoolean("bw5.profile.log");
+	}
+
+	/**
+	 * Returns the log, creating it in the directory of the first snapshot.
+	 */
+	static ProfileLog getInstance(String fileName) {
+		if (instance == null) {
+			synchronized (ProfileLog.class) {
+				if (instance == null) {
+					long segmentSize = BWTra.parseSize(System.getProperty("bw5.profile.segmentSize", "64m"), 1L);
+					instance = new ProfileLog(new File(fileName).getAbsoluteFile().getParentFile(),
+							Math.max(1024 * 1024, segmentSize));
+				}
+			}
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Appends a histogram to the log.
+	 * @param fileName  the snapshot file name that would otherwise have been
+	 *                  written, which identifies the job, process and phase.
+	 * @param histogram the uncompressed histogram.
+	 * @return false if the file name is not that of a snapshot, in which case
+	 *         nothing is written.
+	 */
+	boolean append(String fileName, byte[] histogram) throws IOException {
+		HistoSummary.Snapshot snapshot = HistoSummary.parseName(new File(fileName).getName());
+		if (snapshot == null)
+			return false;
+
+		long[] totals = parseTotals(histogram, histogram.length);
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(histogram.length / 4);
+		OutputStream gzip = new GZIPOutputStream(compressed, 64 * 1024);
+		gzip.write(histogram);
+		gzip.close();
+
+		byte[] jobId = (snapshot.jobId == null ? "" : snapshot.jobId).getBytes("UTF-8");
+		byte[] name = snapshot.name.getBytes("UTF-8");
+		int length = 8 + 8 + 2 + jobId.length + 2 + name.length + 1 + 8 + 8 + 4 + compressed.size();
+
+		synchronized (this) {
+			if (out == null || (written + 4 + length > segmentSize && written > 8))
+				nextSegment();
+
+			out.writeInt(length);
+			out.writeLong(snapshot.timestamp);
+			out.writeLong(snapshot.sequence);
+			out.writeShort(jobId.length);
+			out.write(jobId);
+			out.writeShort(name.length);
+			out.write(name);
+			out.writeByte(snapshot.start ? 1 : 0);
+			out.writeLong(totals[0]);
+			out.writeLong(totals[1]);
+			out.writeInt(compressed.size());
+			compressed.writeTo(out);
+			out.flush();
+			written += 4 + length;
+		}
+
+		return true;
+	}
+
+	// close the current segment and start the next
+	private void nextSegment() throws IOException {
+		if (out != null)
+			out.close();
+
+		File segment = new File(directory, prefix + String.format("%06d", ++segmentNumber) + ".seg");
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment), 64 * 1024));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		written = 8;
+
+		logger.info("BWProfile snapshots are written to " + segment);
+	}
+
+	/**
+	 * Reads the total objects and bytes from the last line of a histogram
+	 * ("Total &lt;objects&gt; &lt;bytes&gt;").
+	 * @param histogram  the histogram, or its last bytes.
+	 * @param length     the number of bytes of histogram to examine.
+	 * @return the totals, or -1 for each if the last line is not a total.
+	 */
+	static long[] parseTotals(byte[] histogram, int length) {
+		int end = length;
+		while (end > 0 && (histogram[end - 1] == '\n' || histogram[end - 1] == '\r'))
+			end--;
+		int start = end;
+		while (start > 0 && histogram[start - 1] != '\n')
+			start--;
+
+		// three whitespace-separated fields, the last two numeric, parsed in place
+		long[] totals = new long[] { -1, -1 };
+		int field = 0;
+		int i = start;
+		while (i < end) {
+			while (i < end && histogram[i] <= ' ')
+				i++;
+			if (i == end)
+				break;
+
+			if (field > 2)
+				return new long[] { -1, -1 };
+
+			long value = 0;
+			boolean numeric = true;
+			for (; i < end && histogram[i] > ' '; i++) {
+				if (histogram[i] >= '0' && histogram[i] <= '9')
+					value = value * 10 + (histogram[i] - '0');
+				else
+					numeric = false;
+			}
+
+			if (field > 0) {
+				if (!numeric)
+					return new long[] { -1, -1 };
+				totals[field - 1] = value;
+			}
+			field++;
+		}
+
+		return (field == 3) ? totals : new long[] { -1, -1 };
+	}
+}
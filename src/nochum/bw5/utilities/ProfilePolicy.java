@@ -0,0 +1,246 @@
+package nochum.bw5.utilities;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decides which BWProfile capture requests are actually served, so that an
+ * instrumented project can run at production rates without a heap histogram
+ * being taken for every job.
+ * <p>
+ * The decision is taken at the ProfileStart of each process, taken from the
+ * histogram file name, and remembered for its job, so that the ProfileEnd of
+ * that job is captured exactly when its ProfileStart was and every captured
+ * start has its end.  Each process is governed separately by the following
+ * settings:
+ * <ul>
+ * <li>bw5.profile.sampleRate - capture 1 in N invocations (default 1).
+ * <li>bw5.profile.tokensPerSecond - the rate at which a token bucket is
+ * refilled; a capture consumes one token (default 0, unlimited).
+ * <li>bw5.profile.burst - the capacity of the token bucket (default 1).
+ * <li>bw5.profile.heapDelta - capture only when used heap has changed by more
+ * than this amount since the last capture of the same process, for example
+ * 64m (default 0, always).
+ * </ul>
+ * The settings are read from the properties file given to BWInstrument by
+ * -config, if any, and may be overridden by system properties of the same
+ * name (java.property.bw5.profile.sampleRate=100 in the engine TRA).  All
+ * conditions must be met for a capture to be taken.  The 1 in N test comes
+ * first and the heap delta second; a token is taken only when both have
+ * passed, so rejected captures do not use up the rate limit.
+ * <p>
+ * The decisions of at most 10000 starts awaiting their ends are kept; the
+ * oldest are forgotten first, so a job that faulted before its ProfileEnd
+ * does not hold its entry for ever.  Without a job ID the decisions of a
+ * process are matched with its ends in last in, first out order.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class ProfilePolicy {
+
+	private static final Logger logger = org.apache.log4j.Logger.getLogger("bw.logger");
+
+	/**
+	 * config location -> policy.  The empty string maps to the policy that is
+	 * configured through system properties alone.
+	 */
+	private static final ConcurrentHashMap<String, ProfilePolicy> policies = new ConcurrentHashMap<String, ProfilePolicy>();
+
+	private static final int MAX_PENDING = 10000;
+
+	/**
+	 * The state of a single process
+	 */
+	private static class PointState {
+		final AtomicLong invocations = new AtomicLong();
+		final AtomicLong lastHeapUsed = new AtomicLong(-1);
+		double tokens;
+		long lastRefill = System.nanoTime();
+
+		PointState(int burst) {
+			tokens = burst;
+		}
+	}
+
+	private final int sampleRate;
+	private final double tokensPerSecond;
+	private final int burst;
+	private final long heapDelta;
+
+	private final ConcurrentHashMap<String, PointState> points = new ConcurrentHashMap<String, PointState>();
+
+	/**
+	 * job|process -> the decisions of its starts that have not yet ended,
+	 * the latest last, in the order the first of them was taken
+	 */
+	private final LinkedHashMap<String, LinkedList<Boolean>> pending = new LinkedHashMap<String, LinkedList<Boolean>>() {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, LinkedList<Boolean>> eldest) {
+			return size() > MAX_PENDING;
+		}
+	};
+
+	private ProfilePolicy(Properties settings) {
+		sampleRate = Math.max(1, parseInt(settings.getProperty("bw5.profile.sampleRate"), 1));
+		tokensPerSecond = parseDouble(settings.getProperty("bw5.profile.tokensPerSecond"));
+		burst = Math.max(1, parseInt(settings.getProperty("bw5.profile.burst"), 1));
+		heapDelta = BWTra.parseSize(settings.getProperty("bw5.profile.heapDelta"), 1L);
+	}
+
+	/**
+	 * Returns the policy configured by the properties file and the system
+	 * properties.
+	 * @param configLoc  the full path to the properties file, or null.
+	 */
+	static ProfilePolicy getPolicy(String configLoc) {
+		String key = (configLoc == null) ? "" : configLoc.trim();
+
+		ProfilePolicy policy = policies.get(key);
+		if (policy == null) {
+			Properties settings = new Properties();
+			if (key.length() > 0) {
+				try {
+					InputStream in = new FileInputStream(new File(key));
+					try {
+						settings.load(in);
+					} finally {
+						in.close();
+					}
+				} catch (IOException ioe) {
+					logger.warn("Unable to read profiling policy " + key + ": " + ioe.getMessage());
+				}
+			}
+
+			for (String name : new String[] { "bw5.profile.sampleRate", "bw5.profile.tokensPerSecond",
+					"bw5.profile.burst", "bw5.profile.heapDelta" }) {
+				String value = System.getProperty(name);
+				if (value != null)
+					settings.setProperty(name, value);
+			}
+
+			ProfilePolicy existing = policies.putIfAbsent(key, new ProfilePolicy(settings));
+			policy = policies.get(key);
+			if (existing == null)
+				logger.info("BWProfile policy " + (key.length() > 0 ? key : "(system properties)") + ": " + policy);
+		}
+
+		return policy;
+	}
+
+	/**
+	 * Determines whether the capture for the given histogram file should be
+	 * taken: at a ProfileStart by the policy, and at a ProfileEnd by the
+	 * decision taken at the start of the same process in the same job.
+	 * @param fileName  the histogram file name, made up of a timestamp, the
+	 *                  process name and the activity name separated by '-'.
+	 * @param jobId     the ID of the job, or null if it is not known.
+	 */
+	boolean shouldCapture(String fileName, String jobId) {
+		String name = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+		HistoSummary.Snapshot snapshot = HistoSummary.parseName(name);
+		if (snapshot == null) {
+			int dash = name.indexOf('-');
+			return decide((dash < 0) ? name : name.substring(dash + 1));
+		}
+
+		String key = ((jobId == null) ? "" : jobId.trim()) + "|" + snapshot.name;
+
+		if (snapshot.start) {
+			boolean capture = decide(snapshot.name);
+			synchronized (pending) {
+				LinkedList<Boolean> decisions = pending.get(key);
+				if (decisions == null) {
+					decisions = new LinkedList<Boolean>();
+					pending.put(key, decisions);
+				}
+				decisions.addLast(Boolean.valueOf(capture));
+			}
+			return capture;
+		}
+
+		// an end whose start was not seen, or has been forgotten, is not captured
+		synchronized (pending) {
+			LinkedList<Boolean> decisions = pending.get(key);
+			if (decisions == null)
+				return false;
+			boolean capture = decisions.removeLast().booleanValue();
+			if (decisions.isEmpty())
+				pending.remove(key);
+			return capture;
+		}
+	}
+
+	/**
+	 * Applies the policy to a process.
+	 */
+	private boolean decide(String point) {
+		PointState state = points.get(point);
+		if (state == null) {
+			points.putIfAbsent(point, new PointState(burst));
+			state = points.get(point);
+		}
+
+		// 1 in N
+		if (sampleRate > 1 && (state.invocations.getAndIncrement() % sampleRate) != 0)
+			return false;
+
+		// heap delta
+		long used = -1;
+		if (heapDelta > 0) {
+			used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			long last = state.lastHeapUsed.get();
+			if (last >= 0 && Math.abs(used - last) < heapDelta)
+				return false;
+		}
+
+		// token bucket, once the capture is otherwise certain
+		if (tokensPerSecond > 0) {
+			synchronized (state) {
+				long now = System.nanoTime();
+				state.tokens = Math.min(burst, state.tokens + (now - state.lastRefill) * tokensPerSecond / 1e9);
+				state.lastRefill = now;
+				if (state.tokens < 1)
+					return false;
+				state.tokens -= 1;
+			}
+		}
+
+		if (used >= 0)
+			state.lastHeapUsed.set(used);
+		return true;
+	}
+
+	public String toString() {
+		return "sampleRate=" + sampleRate + ", tokensPerSecond=" + tokensPerSecond +
+				", burst=" + burst + ", heapDelta=" + heapDelta;
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		try {
+			return (value == null) ? defaultValue : Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			return defaultValue;
+		}
+	}
+
+	private static double parseDouble(String value) {
+		try {
+			return (value == null) ? 0 : Double.parseDouble(value.trim());
+		} catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
+}
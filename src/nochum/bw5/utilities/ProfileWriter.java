@@ -0,0 +1,225 @@
+package nochum.bw5.utilities;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Serves BWProfile capture requests on a dedicated background thread so that
+ * the ProfileStart and ProfileEnd activities injected by BWInstrument return
+ * as soon as the request is queued, rather than after the histogram or heap
+ * dump has been taken and compressed.
+ * <p>
+ * Asynchronous profiling is enabled with the system property
+ * bw5.profile.async=true, which is set in the engine TRA as
+ * java.property.bw5.profile.async=true.  Requests are placed on a bounded
+ * queue whose capacity is given by bw5.profile.queueSize (default 100).
+ * When the queue is full the policy given by bw5.profile.queuePolicy applies:
+ * <ul>
+ * <li>drop (the default) discards the new request.
+ * <li>coalesce absorbs the new request into a queued request for the same
+ * capture point (process and activity) of the same job, which is captured
+ * once under its own file name only.  Any other request is dropped.
+ * </ul>
+ * The numbers of submitted, served, dropped, coalesced and failed requests are
+ * logged to bw.logger at most once a minute and are available from
+ * BWProfile.getProfileStatistics().
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class ProfileWriter implements Runnable {
+
+	/**
+	 * The kinds of capture BWProfile can request
+	 */
+	enum Kind { JMAP_HISTO, CLASS_HISTO, HEAP_DUMP }
+
+	/**
+	 * A single capture request
+	 */
+	static class CaptureRequest {
+		final Kind kind;
+		final String fileName;
+		final String jmapLoc;
+		final Long memoryThreshold;
+
+		/**
+		 * The job and capture point of the request, or null if its file name
+		 * does not carry a job ID
+		 */
+		private final String captureKey;
+		private boolean closed = false;
+
+		CaptureRequest(Kind kind, String fileName, String jmapLoc, Long memoryThreshold) {
+			this.kind = kind;
+			this.fileName = fileName;
+			this.jmapLoc = jmapLoc;
+			this.memoryThreshold = memoryThreshold;
+
+			HistoSummary.Snapshot snapshot = HistoSummary.parseName(new File(fileName).getName());
+			captureKey = (snapshot == null || snapshot.jobId == null) ? null :
+				kind + "|" + snapshot.jobId + "|" + snapshot.name + "|" + snapshot.start;
+		}
+
+		/**
+		 * Absorbs another request for the same capture point of the same job.
+		 * @return false if the requests differ or this request has already
+		 *         been taken by the writer.
+		 */
+		synchronized boolean absorb(CaptureRequest request) {
+			return !closed && captureKey != null && captureKey.equals(request.captureKey);
+		}
+
+		/**
+		 * Marks the request as taken, so that nothing more is absorbed into it.
+		 */
+		synchronized void close() {
+			closed = true;
+		}
+	}
+
+	private static final Logger logger = org.apache.log4j.Logger.getLogger("bw.logger");
+
+	private static final long STATISTICS_INTERVAL = 60 * 1000L;
+
+	private static volatile ProfileWriter instance;
+
+	private final BlockingQueue<CaptureRequest> queue;
+	private final boolean coalesce;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong served = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile long lastLogged = System.currentTimeMillis();
+
+	private ProfileWriter(int queueSize, boolean coalesce) {
+		this.queue = new ArrayBlockingQueue<CaptureRequest>(queueSize);
+		this.coalesce = coalesce;
+	}
+
+	/**
+	 * Determines whether capture requests should be served asynchronously.
+	 */
+	static boolean isEnabled() {
+		return Boolean.getBoolean("bw5.profile.async");
+	}
+
+	/**
+	 * Returns the writer, starting its thread on first use.
+	 */
+	static ProfileWriter getInstance() {
+		if (instance == null) {
+			synchronized (ProfileWriter.class) {
+				if (instance == null) {
+					int queueSize = Integer.getInteger("bw5.profile.queueSize", 100).intValue();
+					if (queueSize < 1)
+						queueSize = 1;
+					String policy = System.getProperty("bw5.profile.queuePolicy", "drop");
+
+					ProfileWriter writer = new ProfileWriter(queueSize, policy.equalsIgnoreCase("coalesce"));
+					Thread thread = new Thread(writer, "BWProfile-writer");
+					thread.setDaemon(true);
+					thread.start();
+					instance = writer;
+
+					logger.info("BWProfile asynchronous writer started.  Queue size: " + queueSize +
+							".  Policy when full: " + (writer.coalesce ? "coalesce" : "drop"));
+				}
+			}
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Returns the statistics of the writer, or an empty string if it has not
+	 * been started.
+	 */
+	static String getStatistics() {
+		ProfileWriter writer = instance;
+		return (writer == null) ? "" : writer.describe();
+	}
+
+	/**
+	 * Queues a capture request without blocking the calling job thread.
+	 */
+	void submit(CaptureRequest request) {
+		submitted.incrementAndGet();
+
+		if (queue.offer(request))
+			return;
+
+		if (coalesce) {
+			for (CaptureRequest queued : queue) {
+				if (queued.absorb(request)) {
+					coalesced.incrementAndGet();
+					return;
+				}
+			}
+		}
+
+		dropped.incrementAndGet();
+	}
+
+	/**
+	 * Serves queued requests until the JVM exits.
+	 */
+	public void run() {
+		while (true) {
+			CaptureRequest request = null;
+			try {
+				request = queue.take();
+			} catch (InterruptedException ie) {
+				return;
+			}
+
+			request.close();
+			try {
+				serve(request);
+				served.incrementAndGet();
+			} catch (Throwable t) {
+				failed.incrementAndGet();
+				logger.error("BWProfile could not write " + request.fileName, t);
+			}
+
+			long now = System.currentTimeMillis();
+			if (now - lastLogged >= STATISTICS_INTERVAL) {
+				lastLogged = now;
+				logger.info(describe());
+			}
+		}
+	}
+
+	private void serve(CaptureRequest request) throws Exception {
+		byte[] histogram = null;
+
+		switch (request.kind) {
+		case JMAP_HISTO:
+			histogram = BWProfile.jmapHistogram(request.jmapLoc);
+			break;
+		case CLASS_HISTO:
+			histogram = BWProfile.classHistogram();
+			break;
+		case HEAP_DUMP:
+			BWProfile.dumpHeap(request.fileName, request.memoryThreshold);
+			return;
+		}
+
+		BWProfile.writeHistogram(histogram, request.fileName);
+	}
+
+	private String describe() {
+		return "BWProfile captures - submitted: " + submitted.get() +
+				", served: " + served.get() +
+				", dropped: " + dropped.get() +
+				", coalesced: " + coalesced.get() +
+				", failed: " + failed.get() +
+				", queued: " + queue.size();
+	}
+}
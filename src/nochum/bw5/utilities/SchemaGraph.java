@@ -0,0 +1,379 @@
+package nochum.bw5.utilities;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import static nochum.bw5.utilities.BWProcessUtil.getRelativeName;
+
+/**
+ * The dependency graph of the processes, shared resources, WSDLs and XSDs of
+ * a BusinessWorks project.  Every file is parsed once when the graph is
+ * built; only its size and references are kept.
+ * <p>
+ * A file refers to another through the schemaLocation of an xsd:import,
+ * xsd:include or xsd:redefine, the location of a wsdl:import, or any
+ * attribute or element text that is the path of an XSD, WSDL, shared
+ * resource or process, as Designer writes for the resources used by
+ * activities.  Paths beginning
+ * with a slash are relative to the project root and others to the referring
+ * file.  An xsd:import without a schemaLocation refers to every XSD and WSDL
+ * defining its namespace.
+ * <p>
+ * A process xsd:import whose namespace prefix is declared but never used,
+ * which "Optimize namespaces" would remove, is not followed.
+ * <p>
+ * The activities of each process, including its starter and those within
+ * groups, and the elements of their input mappings are counted as it is
+ * parsed.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class SchemaGraph {
+
+	/**
+	 * A single file of the project
+	 */
+	static class FileNode {
+		String name = null;
+		long bytes = 0;
+
+		/**
+		 * The project-relative names of the files it refers to
+		 */
+		final ArrayList<String> references = new ArrayList<String>();
+
+		/**
+		 * The target namespaces it defines, for an XSD or WSDL
+		 */
+		final ArrayList<String> namespaces = new ArrayList<String>();
+
+		/**
+		 * The namespaces it imports without a location
+		 */
+		final ArrayList<String> namespaceImports = new ArrayList<String>();
+
+		/**
+		 * The activities and input mapping elements, for a process
+		 */
+		int activities = 0;
+		int mappingNodes = 0;
+
+		boolean isSchema() {
+			return name.endsWith(".xsd") || name.endsWith(".wsdl");
+		}
+
+		boolean isProcess() {
+			return name.endsWith(".process");
+		}
+	}
+
+	private final File root;
+
+	/**
+	 * project-relative name -> file
+	 */
+	private final HashMap<String, FileNode> files = new HashMap<String, FileNode>();
+
+	/**
+	 * target namespace -> the schemas defining it
+	 */
+	private final HashMap<String, ArrayList<String>> namespaceFiles = new HashMap<String, ArrayList<String>>();
+
+	private final DocumentBuilder dBuilder;
+
+	/**
+	 * Parses every process, shared resource, WSDL and XSD of the project.
+	 * @param projectRoot                     the project root directory
+	 * @throws ParserConfigurationException   If errors are incurred creating the parser.
+	 * @throws IOException                    If errors are incurred reading the project.
+	 */
+	SchemaGraph(String projectRoot) throws ParserConfigurationException, IOException {
+		root = new File(projectRoot).getCanonicalFile();
+
+		DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+		dbFactory.setNamespaceAware(false);
+		dBuilder = dbFactory.newDocumentBuilder();
+
+		traverse(root);
+
+		// resolve the imports made by namespace alone, now that every namespace is known
+		for (FileNode node : files.values()) {
+			for (String namespace : node.namespaceImports) {
+				ArrayList<String> defining = namespaceFiles.get(namespace);
+				if (defining != null) {
+					for (String name : defining) {
+						if (!name.equals(node.name) && !node.references.contains(name))
+							node.references.add(name);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determines whether a file can refer to schemas.
+	 */
+	private static boolean isGraphFile(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		if (dot < 0)
+			return false;
+
+		String extension = fileName.substring(dot + 1).toLowerCase();
+		return extension.equals("process") || extension.equals("xsd") || extension.equals("wsdl") ||
+				extension.equals("serviceagent") || extension.startsWith("shared");
+	}
+
+	private void traverse(File file) throws IOException {
+		if (file.isDirectory()) {
+			String entries[] = file.list();
+			if (entries != null) {
+				for (String entry : entries)
+					traverse(new File(file, entry));
+			}
+		} else if (isGraphFile(file.getName())) {
+			parse(file);
+		}
+	}
+
+	private void parse(File file) throws IOException {
+		FileNode node = new FileNode();
+		node.name = getRelativeName(root.getPath(), file);
+		node.bytes = file.length();
+		files.put(node.name, node);
+
+		Document doc = null;
+		try {
+			doc = dBuilder.parse(file);
+		} catch (SAXException se) {
+			System.err.println(node.name + " could not be parsed: " + se.getMessage());
+			return;
+		}
+
+		Element documentElement = doc.getDocumentElement();
+		File directory = file.getParentFile();
+
+		if (node.isSchema()) {
+			addNamespace(node, documentElement.getAttribute("targetNamespace"));
+			NodeList schemas = documentElement.getElementsByTagName("*");
+			for (int i = 0; i < schemas.getLength(); i++) {
+				Element element = (Element) schemas.item(i);
+				if (localName(element).equals("schema"))
+					addNamespace(node, element.getAttribute("targetNamespace"));
+			}
+		}
+
+		// the text of a process, to find the namespace prefixes it uses
+		String processText = node.isProcess() ? textOf(documentElement) : null;
+
+		NodeList elements = documentElement.getElementsByTagName("*");
+		for (int i = -1; i < elements.getLength(); i++) {
+			Element element = (i < 0) ? documentElement : (Element) elements.item(i);
+			String localName = localName(element);
+
+			if (processText != null) {
+				if (element.getTagName().equals("pd:activity") || element.getTagName().equals("pd:starter"))
+					node.activities++;
+				else if (localName.equals("inputBindings"))
+					node.mappingNodes += element.getElementsByTagName("*").getLength();
+			}
+
+			if (localName.equals("import") || localName.equals("include") || localName.equals("redefine")) {
+				String location = element.getAttribute("schemaLocation");
+				if (location.length() == 0)
+					location = element.getAttribute("location");
+				String namespace = element.getAttribute("namespace");
+
+				if (processText != null && namespace.length() > 0 && !isNamespaceUsed(documentElement, namespace, processText))
+					continue;
+
+				if (location.length() > 0)
+					addReference(node, directory, location);
+				else if (namespace.length() > 0 && localName.equals("import"))
+					node.namespaceImports.add(namespace);
+				continue;
+			}
+
+			NamedNodeMap attributes = element.getAttributes();
+			for (int j = 0; j < attributes.getLength(); j++) {
+				String value = ((Attr) attributes.item(j)).getValue().trim();
+				if (isReference(value))
+					addReference(node, directory, value);
+			}
+
+			NodeList children = element.getChildNodes();
+			for (int j = 0; j < children.getLength(); j++) {
+				Node child = children.item(j);
+				if (child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+					String value = child.getNodeValue().trim();
+					if (isReference(value))
+						addReference(node, directory, value);
+				}
+			}
+		}
+	}
+
+	private static String localName(Element element) {
+		String tagName = element.getTagName();
+		return tagName.substring(tagName.indexOf(':') + 1);
+	}
+
+	private static boolean isReference(String value) {
+		return isGraphFile(value) && value.indexOf(' ') < 0 && value.indexOf('\n') < 0 && value.indexOf("://") < 0;
+	}
+
+	private void addNamespace(FileNode node, String namespace) {
+		if (namespace.length() == 0 || node.namespaces.contains(namespace))
+			return;
+
+		node.namespaces.add(namespace);
+		ArrayList<String> defining = namespaceFiles.get(namespace);
+		if (defining == null) {
+			defining = new ArrayList<String>();
+			namespaceFiles.put(namespace, defining);
+		}
+		defining.add(node.name);
+	}
+
+	/**
+	 * Resolves a location against the project root or the referring file's
+	 * directory.
+	 */
+	private void addReference(FileNode node, File directory, String location) throws IOException {
+		File target = location.startsWith("/") ? new File(root, location.substring(1)) : new File(directory, location);
+		if (!target.exists() && !location.startsWith("/"))
+			target = new File(root, location);
+
+		String name = getRelativeName(root.getPath(), target.getCanonicalFile());
+		if (!name.equals(node.name) && !node.references.contains(name))
+			node.references.add(name);
+	}
+
+	/**
+	 * Determines whether a namespace imported by a process is referred to
+	 * through one of its prefixes, as "Optimize namespaces" does.  A
+	 * namespace with no prefix is assumed to be used.
+	 */
+	private static boolean isNamespaceUsed(Element documentElement, String namespace, String processText) {
+		boolean declared = false;
+		NamedNodeMap attrs = documentElement.getAttributes();
+		for (int i = 0; i < attrs.getLength(); i++) {
+			Attr attr = (Attr) attrs.item(i);
+			if (attr.getName().startsWith("xmlns:") && attr.getValue().equals(namespace)) {
+				declared = true;
+				if (processText.indexOf(attr.getName().substring(6) + ":") >= 0)
+					return true;
+			}
+		}
+
+		return !declared;
+	}
+
+	/**
+	 * Returns the element and attribute names, attribute values and text of
+	 * a process, without its namespace declarations.
+	 */
+	private static String textOf(Element documentElement) {
+		StringBuilder text = new StringBuilder();
+		NodeList elements = documentElement.getElementsByTagName("*");
+		for (int i = -1; i < elements.getLength(); i++) {
+			Element element = (i < 0) ? documentElement : (Element) elements.item(i);
+			text.append(element.getTagName()).append(' ');
+
+			NamedNodeMap attributes = element.getAttributes();
+			for (int j = 0; j < attributes.getLength(); j++) {
+				Attr attr = (Attr) attributes.item(j);
+				if (!attr.getName().startsWith("xmlns"))
+					text.append(attr.getName()).append(' ').append(attr.getValue()).append(' ');
+			}
+
+			NodeList children = element.getChildNodes();
+			for (int j = 0; j < children.getLength(); j++) {
+				Node child = children.item(j);
+				if (child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE)
+					text.append(child.getNodeValue()).append(' ');
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Returns the file with the given project-relative name, or null.
+	 */
+	FileNode getFile(String name) {
+		return files.get(name);
+	}
+
+	/**
+	 * Returns the location of a file of the graph.
+	 */
+	File getLocation(FileNode node) {
+		return new File(root, node.name);
+	}
+
+	/**
+	 * Returns every file of the graph.
+	 */
+	Collection<FileNode> getFiles() {
+		return files.values();
+	}
+
+	/**
+	 * Returns the schemas loaded on behalf of a file: the XSDs and WSDLs it
+	 * refers to, directly or through shared resources and other schemas, but
+	 * not through other processes.  The file itself is included if it is a
+	 * schema.
+	 */
+	HashSet<String> getSchemaClosure(String name) {
+		HashSet<String> visited = new HashSet<String>();
+		HashSet<String> schemas = new HashSet<String>();
+		LinkedList<String> pending = new LinkedList<String>();
+		pending.add(name);
+		visited.add(name);
+
+		while (!pending.isEmpty()) {
+			FileNode node = files.get(pending.removeFirst());
+			if (node == null)
+				continue;
+			if (node.isSchema())
+				schemas.add(node.name);
+
+			for (String reference : node.references) {
+				FileNode target = files.get(reference);
+				if (target != null && !target.isProcess() && visited.add(reference))
+					pending.add(reference);
+			}
+		}
+
+		return schemas;
+	}
+
+	/**
+	 * Returns the total size in bytes of the given files.
+	 */
+	long getBytes(Collection<String> names) {
+		long bytes = 0;
+		for (String name : names) {
+			FileNode node = files.get(name);
+			if (node != null)
+				bytes += node.bytes;
+		}
+		return bytes;
+	}
+}
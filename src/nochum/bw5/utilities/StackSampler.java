@@ -0,0 +1,407 @@
+package nochum.bw5.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A sampling profiler that runs inside the engine and attributes the stacks
+ * of its job threads to the BusinessWorks process and activity each thread
+ * is executing, which never appear in a plain Java stack.
+ * <p>
+ * Enabled with the system property bw5.profile.sampler=true
+ * (java.property.bw5.profile.sampler=true in the engine TRA) on an engine
+ * instrumented with "Optimize instrument -mode probe" or "-mode jfr".  The
+ * injected activities report each job and wrapped activity as it starts and
+ * ends, with its job ID, which tells the sampler what every job thread is
+ * running.  A job belongs to the thread that reported it last, so a job that
+ * resumes on another thread is no longer charged to the thread it left, and
+ * a thread is charged only while its job is still open.  At most 10000 jobs
+ * are tracked; the job started longest ago, such as one that faulted before
+ * its ProfileEnd, is forgotten first.  Every bw5.profile.sampleInterval
+ * milliseconds (default 20) a daemon thread takes the stacks of the threads
+ * that own an open job and are RUNNABLE, to a depth of
+ * bw5.profile.sampleDepth frames (default 64).
+ * <p>
+ * If a round of sampling takes more than bw5.profile.sampleOverhead percent
+ * (default 2) of the interval, the interval is doubled, up to a second; it
+ * returns toward the configured interval once sampling is cheap again.  At
+ * most bw5.profile.maxStacks (default 100000) distinct stacks are kept per
+ * process; further new stacks are counted as [truncated].
+ * <p>
+ * Every 10 seconds and on shutdown, the samples are written as flame graph
+ * folded stacks, one file per process named
+ * stacks-&lt;pid&gt;-&lt;process&gt;.folded, in bw5.profile.samplerDir (by
+ * default the probe output directory, or java.io.tmpdir).  Each line is the
+ * process, the wrapped activity if any, and the Java frames from the bottom
+ * of the stack up, separated by semicolons and followed by the number of
+ * samples.  The files are cumulative and can be fed to flamegraph.pl.
+ *
+ * @author Nochum Klein
+ * @version %I%, %G%
+ */
+class StackSampler implements Runnable {
+
+	private static final Logger logger = org.apache.log4j.Logger.getLogger("bw.logger");
+
+	private static final long FLUSH_INTERVAL = 10000L;
+	private static final long MAX_INTERVAL = 1000L;
+
+	private static volatile StackSampler instance;
+
+	private static final int MAX_JOBS = 10000;
+
+	/**
+	 * The processes and activities a job is running, changed only by the
+	 * thread running the job
+	 */
+	private static class JobContext {
+		final String key;
+		final ArrayList<String> names = new ArrayList<String>();
+
+		/**
+		 * The thread that reported the job last
+		 */
+		volatile long owner;
+
+		/**
+		 * The folded-stack prefix and the innermost process, read by the
+		 * sampler; null once the job has ended
+		 */
+		volatile String[] context = null;
+
+		JobContext(String key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * The BW context of a thread, changed only by the thread itself
+	 */
+	private static class ThreadContext {
+		/**
+		 * The job the thread reported last, or null
+		 */
+		volatile JobContext job = null;
+	}
+
+	/**
+	 * job ID -> context, in the order the jobs started
+	 */
+	private static final LinkedHashMap<String, JobContext> jobs = new LinkedHashMap<String, JobContext>() {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, JobContext> eldest) {
+			return size() > MAX_JOBS;
+		}
+	};
+
+	private static final ConcurrentHashMap<Long, ThreadContext> threads = new ConcurrentHashMap<Long, ThreadContext>();
+
+	private static final ThreadLocal<ThreadContext> currentContext = new ThreadLocal<ThreadContext>() {
+		protected ThreadContext initialValue() {
+			ThreadContext context = new ThreadContext();
+			threads.put(Long.valueOf(Thread.currentThread().getId()), context);
+			return context;
+		}
+	};
+
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private final File directory;
+	private final String pid;
+	private final long configuredInterval;
+	private final int depth;
+	private final double overhead;
+	private final int maxStacks;
+
+	// process -> folded stack -> samples, shared by the sampler and the shutdown hook
+	private final HashMap<String, HashMap<String, long[]>> samples = new HashMap<String, HashMap<String, long[]>>();
+
+	private StackSampler(File directory) {
+		this.directory = directory;
+		this.configuredInterval = Math.max(1, Long.getLong("bw5.profile.sampleInterval", 20L).longValue());
+		this.depth = Math.max(1, Integer.getInteger("bw5.profile.sampleDepth", 64).intValue());
+		this.overhead = Double.parseDouble(System.getProperty("bw5.profile.sampleOverhead", "2")) / 100.0;
+		this.maxStacks = Math.max(1, Integer.getInteger("bw5.profile.maxStacks", 100000).intValue());
+
+		String procName = ManagementFactory.getRuntimeMXBean().getName();
+		this.pid = procName.substring(0, Math.max(0, procName.indexOf('@')));
+	}
+
+	/**
+	 * Determines whether the sampler should run.
+	 */
+	static boolean isEnabled() {
+		return Boolean.getBoolean("bw5.profile.sampler");
+	}
+
+	/**
+	 * Starts the sampler on first use.
+	 * @param outputDir  the directory for the folded stacks unless
+	 *                   bw5.profile.samplerDir is set, or null.
+	 */
+	private static void start(String outputDir) {
+		if (instance != null)
+			return;
+
+		synchronized (StackSampler.class) {
+			if (instance != null)
+				return;
+
+			String dir = System.getProperty("bw5.profile.samplerDir",
+					(outputDir == null) ? System.getProperty("java.io.tmpdir") : outputDir);
+			final StackSampler sampler = new StackSampler(new File(dir));
+
+			Thread thread = new Thread(sampler, "BWProfile-stack-sampler");
+			thread.setDaemon(true);
+			thread.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() {
+					sampler.flush();
+				}
+			}, "BWProfile-sampler-shutdown"));
+
+			instance = sampler;
+			logger.info("BWProfile stack samples are written to " + sampler.directory +
+					" every " + sampler.configuredInterval + "ms");
+		}
+	}
+
+	/**
+	 * Records that the current thread has started a job or an activity.
+	 * @param outputDir  the probe output directory, or null.
+	 * @param name       the process, or process/activity.
+	 * @param jobId      the BW job ID, or null if it is not known.
+	 */
+	static void enter(String outputDir, String name, String jobId) {
+		start(outputDir);
+
+		ThreadContext thread = currentContext.get();
+		String key = jobKey(jobId);
+		JobContext job = null;
+		synchronized (jobs) {
+			job = jobs.get(key);
+			if (job == null) {
+				job = new JobContext(key);
+				jobs.put(key, job);
+			}
+		}
+
+		// the thread now runs this job, whatever it ran before
+		job.owner = Thread.currentThread().getId();
+		job.names.add(name);
+		job.context = fold(job.names);
+		thread.job = job;
+	}
+
+	/**
+	 * Records that the current thread has finished a job or an activity,
+	 * along with anything it started since.
+	 * @param name   the name given to the matching enter.
+	 * @param jobId  the job ID given to the matching enter.
+	 */
+	static void exit(String name, String jobId) {
+		ThreadContext thread = currentContext.get();
+		String key = jobKey(jobId);
+		JobContext job = null;
+		synchronized (jobs) {
+			job = jobs.get(key);
+		}
+		if (job == null)
+			return;
+
+		int index = job.names.lastIndexOf(name);
+		if (index >= 0) {
+			while (job.names.size() > index)
+				job.names.remove(job.names.size() - 1);
+		}
+
+		job.owner = Thread.currentThread().getId();
+		if (job.names.isEmpty()) {
+			synchronized (jobs) {
+				jobs.remove(key);
+			}
+			job.context = null;
+		} else {
+			job.context = fold(job.names);
+		}
+		thread.job = job;
+	}
+
+	// without a job ID each thread is taken to run a single job
+	private static String jobKey(String jobId) {
+		return (jobId == null || jobId.trim().length() == 0) ?
+				"thread-" + Thread.currentThread().getId() : jobId.trim();
+	}
+
+	/**
+	 * Returns the innermost process followed by the folded frames of the
+	 * context: each process once, and each activity.
+	 */
+	private static String[] fold(ArrayList<String> names) {
+		StringBuilder frames = new StringBuilder();
+		String process = null;
+		for (String name : names) {
+			int slash = name.indexOf('/');
+			String nameProcess = (slash < 0) ? name : name.substring(0, slash);
+			if (!nameProcess.equals(process)) {
+				if (frames.length() > 0)
+					frames.append(';');
+				frames.append(frame(nameProcess));
+				process = nameProcess;
+			}
+			if (slash >= 0)
+				frames.append(';').append(frame(name.substring(slash + 1)));
+		}
+		return new String[] { process, frames.toString() };
+	}
+
+	// a folded frame may not contain the separator or a line break
+	private static String frame(String name) {
+		return name.replace(';', ':').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	/**
+	 * Samples until the JVM exits.
+	 */
+	public void run() {
+		long interval = configuredInterval;
+		long lastFlush = System.currentTimeMillis();
+
+		while (true) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException ie) {
+				return;
+			}
+
+			long started = System.nanoTime();
+			try {
+				sample();
+			} catch (Throwable t) {
+				logger.error("BWProfile stack sampling failed", t);
+			}
+			long elapsed = System.nanoTime() - started;
+
+			// keep the cost of sampling within its share of the interval
+			double budget = interval * 1000000.0 * overhead;
+			if (elapsed > budget && interval < MAX_INTERVAL) {
+				interval = Math.min(MAX_INTERVAL, interval * 2);
+				logger.info("BWProfile stack sampling took " + (elapsed / 1000) + "us.  Interval raised to " + interval + "ms");
+			} else if (elapsed < budget / 4 && interval > configuredInterval) {
+				interval = Math.max(configuredInterval, interval / 2);
+			}
+
+			long now = System.currentTimeMillis();
+			if (now - lastFlush >= FLUSH_INTERVAL) {
+				lastFlush = now;
+				flush();
+			}
+		}
+	}
+
+	private void sample() {
+		// the contexts are read before the stacks, as close to them as possible;
+		// a thread counts only while it owns a job that is still open
+		ArrayList<Long> ids = new ArrayList<Long>();
+		ArrayList<String[]> contexts = new ArrayList<String[]>();
+		synchronized (jobs) {
+			for (Map.Entry<Long, ThreadContext> entry : threads.entrySet()) {
+				JobContext job = entry.getValue().job;
+				if (job == null || job.owner != entry.getKey().longValue() || jobs.get(job.key) != job)
+					continue;
+
+				String[] context = job.context;
+				if (context != null) {
+					ids.add(entry.getKey());
+					contexts.add(context);
+				}
+			}
+		}
+		if (ids.isEmpty())
+			return;
+
+		long[] threadIds = new long[ids.size()];
+		for (int i = 0; i < threadIds.length; i++)
+			threadIds[i] = ids.get(i).longValue();
+
+		ThreadInfo[] infos = threadBean.getThreadInfo(threadIds, depth);
+		for (int i = 0; i < infos.length; i++) {
+			if (infos[i] == null) {
+				// the thread has ended
+				threads.remove(ids.get(i));
+				continue;
+			}
+			if (infos[i].getThreadState() != Thread.State.RUNNABLE)
+				continue;
+
+			String[] context = contexts.get(i);
+			StringBuilder folded = new StringBuilder(context[1]);
+			StackTraceElement[] stack = infos[i].getStackTrace();
+			for (int frame = stack.length - 1; frame >= 0; frame--)
+				folded.append(';').append(stack[frame].getClassName()).append('.').append(stack[frame].getMethodName());
+			add(context[0], folded.toString());
+		}
+	}
+
+	private void add(String process, String folded) {
+		synchronized (samples) {
+			HashMap<String, long[]> stacks = samples.get(process);
+			if (stacks == null) {
+				stacks = new HashMap<String, long[]>();
+				samples.put(process, stacks);
+			}
+
+			long[] count = stacks.get(folded);
+			if (count == null) {
+				if (stacks.size() >= maxStacks)
+					folded = frame(process) + ";[truncated]";
+				count = stacks.get(folded);
+				if (count == null) {
+					count = new long[1];
+					stacks.put(folded, count);
+				}
+			}
+			count[0]++;
+		}
+	}
+
+	/**
+	 * Rewrites the folded stack file of every process.
+	 */
+	void flush() {
+		synchronized (samples) {
+			for (Map.Entry<String, HashMap<String, long[]>> process : samples.entrySet()) {
+				String name = process.getKey().replaceAll("[^A-Za-z0-9._-]", "_");
+				File file = new File(directory, "stacks-" + pid + "-" + name + ".folded");
+				File temp = new File(directory, file.getName() + ".tmp");
+				try {
+					PrintWriter out = new PrintWriter(temp);
+					try {
+						for (Map.Entry<String, long[]> stack : process.getValue().entrySet())
+							out.println(stack.getKey() + " " + stack.getValue()[0]);
+					} finally {
+						out.close();
+					}
+					if (!temp.renameTo(file)) {
+						file.delete();
+						if (!temp.renameTo(file))
+							throw new IOException("Unable to rename " + temp + " to " + file);
+					}
+				} catch (IOException ioe) {
+					logger.error("BWProfile could not write " + file, ioe);
+				}
+			}
+		}
+	}
+}